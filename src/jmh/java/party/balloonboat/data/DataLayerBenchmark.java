@@ -0,0 +1,298 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.data;
+
+import net.dv8tion.jda.core.entities.Guild;
+import net.dv8tion.jda.core.entities.Member;
+import net.dv8tion.jda.core.entities.User;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks the rating tables against H2, in memory or on disk, or with
+ * ratings kept in a {@link RatingLog}, seeded with a synthetic graph of
+ * the given number of users.
+ *
+ * <p>Every user rates a few others, with targets skewed towards a small
+ * number of popular users the way real ratings are. Run with the GC
+ * profiler (the default for {@code gradle jmh}) to see allocation rates
+ * alongside throughput.
+ *
+ * @author Kaidan Gustave
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DataLayerBenchmark
+{
+    private static final long SEED = 42;
+    private static final int GUILD_SIZE = 1000;
+    private static final int BATCH_SIZE = 10000;
+
+    @Param({"mem", "file", "log"})
+    public String storage;
+
+    @Param({"10000", "100000", "1000000"})
+    public int users;
+
+    @Param({"5"})
+    public int ratingsPerUser;
+
+    private Path directory;
+    private ConnectionPool pool;
+    private RatingGraph graph;
+    private CalculationsTable calcTable;
+    private RatingsTable ratings;
+    private RatingLog log;
+
+    private long[] userIds;
+    private Guild guild;
+
+    @Setup(Level.Trial)
+    public void setup() throws SQLException, IOException
+    {
+        String url;
+        if(storage.equals("file") || storage.equals("log"))
+        {
+            directory = Files.createTempDirectory("balloonboat-bench");
+            url = "jdbc:h2:" + directory.resolve("bench").toAbsolutePath();
+            if(storage.equals("log"))
+                log = new RatingLog(directory.resolve("ratings.log"));
+        }
+        else
+        {
+            url = "jdbc:h2:mem:bench" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        }
+
+        pool = new ConnectionPool(url, "sa", "", ConnectionPool.DEFAULT_SIZE);
+        try (Connection connection = pool.getConnection())
+        {
+            for(Database.Table table : Database.Table.values())
+                table.createUsing(connection);
+        }
+        new SchemaTable(pool).migrate();
+
+        userIds = new long[users];
+        for(int i = 0; i < users; i++)
+            userIds[i] = 100000000000000000L + i;
+        seed();
+
+        graph = new RatingGraph();
+        GlobalStats stats = new GlobalStats();
+        calcTable = new CalculationsTable(pool, graph, stats, Leaderboard.DEFAULT_SIZE, log);
+        ratings = new RatingsTable(pool, calcTable, graph, stats, WriteQueue.DEFAULT_CAPACITY,
+                WriteQueue.DEFAULT_BATCH_SIZE, WriteQueue.DEFAULT_FLUSH_MILLIS, log);
+        if(log == null)
+        {
+            calcTable.load();
+            ratings.load();
+        }
+        else
+        {
+            // Seeded the same way the bot starts a new log
+            log.open();
+            calcTable.copyTo(log);
+            ratings.copyTo(log);
+            log.flush();
+            log.load(graph);
+            graph.recalculateAll();
+            calcTable.loadRanks();
+        }
+        graph.computeStats(stats);
+        ratings.startWriting();
+
+        guild = guild(userIds, GUILD_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        ratings.stopWriting();
+        if(log != null)
+            log.close();
+        pool.close();
+        if(directory != null)
+        {
+            try (Stream<Path> files = Files.walk(directory))
+            {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @Benchmark
+    public void setRating() throws SQLException
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        ratings.setRating(randomUser(random), popularUser(random), (short) (random.nextInt(5) + 1));
+    }
+
+    @Benchmark
+    public int getPosition()
+    {
+        return calcTable.getPosition(randomUser(ThreadLocalRandom.current()));
+    }
+
+    @Benchmark
+    public long[] getTop()
+    {
+        return calcTable.getTop();
+    }
+
+    @Benchmark
+    public List<Member> getMembersByRating()
+    {
+        return calcTable.getMembersByRating((short) (ThreadLocalRandom.current().nextInt(5) + 1), guild);
+    }
+
+    @Benchmark
+    public Map<Long, Short> getRatingsTo()
+    {
+        return ratings.getAllUsersRating(popularUser(ThreadLocalRandom.current()));
+    }
+
+    @Benchmark
+    public Map<Long, Short> getRatingsFrom()
+    {
+        return ratings.getRatingsByUser(randomUser(ThreadLocalRandom.current()));
+    }
+
+    private long randomUser(Random random)
+    {
+        return userIds[random.nextInt(userIds.length)];
+    }
+
+    // Lower indexes are picked much more often
+    private long popularUser(Random random)
+    {
+        double skew = random.nextDouble();
+        return userIds[(int) (skew * skew * skew * userIds.length)];
+    }
+
+    // Writes the synthetic graph straight to the tables, so it is loaded the same way a real one is
+    private void seed() throws SQLException
+    {
+        Random random = new Random(SEED);
+        short[] effective = new short[users];
+        try (Connection connection = pool.getConnection())
+        {
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "INSERT INTO CALCULATIONS (USER_ID, TRUE_RATING, EFFECTIVE_RATING) VALUES (?, ?, ?)"))
+            {
+                for(int i = 0; i < users; i++)
+                {
+                    double trueRating = 1 + random.nextDouble() * 4;
+                    effective[i] = CalculationsTable.toEffectiveRating(trueRating);
+                    statement.setLong(1, userIds[i]);
+                    statement.setDouble(2, trueRating);
+                    statement.setShort(3, effective[i]);
+                    statement.addBatch();
+                    if(i % BATCH_SIZE == BATCH_SIZE - 1)
+                        statement.executeBatch();
+                }
+                statement.executeBatch();
+            }
+
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "INSERT INTO RATINGS (USER_RATING, USER_ID, TARGET_ID, RATING) VALUES (?, ?, ?, ?)"))
+            {
+                int count = 0;
+                for(int i = 0; i < users; i++)
+                {
+                    // Duplicate targets are skipped rather than retried, so some users rate fewer
+                    List<Long> targets = new ArrayList<>(ratingsPerUser);
+                    for(int j = 0; j < ratingsPerUser; j++)
+                    {
+                        long targetId = popularUser(random);
+                        if(targetId == userIds[i] || targets.contains(targetId))
+                            continue;
+                        targets.add(targetId);
+                        statement.setShort(1, effective[i]);
+                        statement.setLong(2, userIds[i]);
+                        statement.setLong(3, targetId);
+                        statement.setShort(4, (short) (random.nextInt(5) + 1));
+                        statement.addBatch();
+                        if(++count % BATCH_SIZE == 0)
+                            statement.executeBatch();
+                    }
+                }
+                statement.executeBatch();
+            }
+            connection.commit();
+        }
+    }
+
+    // Only what getMembersByRating needs of a guild
+    private static Guild guild(long[] userIds, int size)
+    {
+        List<Member> members = new ArrayList<>(size);
+        for(int i = 0; i < size && i < userIds.length; i++)
+        {
+            long userId = userIds[(int) ((long) i * userIds.length / size)];
+            User user = proxy(User.class, (method, args) -> {
+                if(method.equals("getIdLong"))
+                    return userId;
+                return null;
+            });
+            members.add(proxy(Member.class, (method, args) -> {
+                if(method.equals("getUser"))
+                    return user;
+                return null;
+            }));
+        }
+        return proxy(Guild.class, (method, args) -> {
+            if(method.equals("getMembers"))
+                return members;
+            return null;
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, Stub stub)
+    {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class[] { type }, (proxy, method, args) -> {
+            switch(method.getName())
+            {
+                case "equals":   return proxy == args[0];
+                case "hashCode": return System.identityHashCode(proxy);
+                case "toString": return type.getSimpleName();
+                default:         return stub.invoke(method.getName(), args);
+            }
+        }));
+    }
+
+    @FunctionalInterface
+    private interface Stub
+    {
+        Object invoke(String method, Object[] args);
+    }
+}
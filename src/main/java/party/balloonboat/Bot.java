@@ -20,7 +20,6 @@ import com.jagrosh.jdautilities.waiter.EventWaiter;
 import net.dv8tion.jda.core.AccountType;
 import net.dv8tion.jda.core.JDABuilder;
 import net.dv8tion.jda.core.Permission;
-import net.dv8tion.jda.core.entities.Role;
 import net.dv8tion.jda.core.entities.TextChannel;
 import net.dv8tion.jda.core.events.ReadyEvent;
 import net.dv8tion.jda.core.events.ShutdownEvent;
@@ -33,7 +32,15 @@ import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import party.balloonboat.commands.*;
+import party.balloonboat.data.AsyncDatabase;
+import party.balloonboat.data.AuditWebhook;
+import party.balloonboat.data.ConnectionPool;
 import party.balloonboat.data.Database;
+import party.balloonboat.data.Leaderboard;
+import party.balloonboat.data.SlowQueryLog;
+import party.balloonboat.data.WriteQueue;
+import party.balloonboat.metrics.CommandMetrics;
+import party.balloonboat.metrics.MetricsServer;
 import javax.security.auth.login.LoginException;
 import java.awt.*;
 import java.io.IOException;
@@ -61,6 +68,7 @@ public class Bot extends ListenerAdapter
     }
 
     private final Database database;
+    private final MetricsServer metricsServer;
 
     private Bot() throws IOException, SQLException, JSONException,
             LoginException, RateLimitedException, IllegalAccessException,
@@ -73,16 +81,41 @@ public class Bot extends ListenerAdapter
                 config.getDatabaseUsername(),
                 config.getDatabasePassword(),
                 config.getWebhookId(),
-                config.getWebhookToken()
+                config.getWebhookToken(),
+                config.getLeaderboardSize(),
+                config.getDatabasePoolSize(),
+                config.getDatabaseThreads(),
+                config.getWriteQueueSize(),
+                config.getWriteBatchSize(),
+                config.getWriteFlushMillis(),
+                config.getAuditBufferSize(),
+                config.getSlowQueryMillis(),
+                config.getRatingLogPathname()
         );
 
         database.init();
 
+        // Scraping is off unless a port is configured
+        if(config.getMetricsPort() > 0)
+        {
+            metricsServer = new MetricsServer(database.getMetrics(), database::isHealthy,
+                    config.getMetricsHost(), config.getMetricsPort());
+            metricsServer.start();
+        }
+        else
+        {
+            metricsServer = null;
+        }
+
         // Event Waiter
         EventWaiter waiter = new EventWaiter();
 
         CommandClientBuilder builder = new CommandClientBuilder();
 
+        // Always on, debug mode adds to this rather than replacing it
+        CommandMetrics commandMetrics = new CommandMetrics(database.getMetrics());
+        builder.setListener(commandMetrics);
+
         // No default help
         builder.useHelpBuilder(false);
 
@@ -97,8 +130,9 @@ public class Bot extends ListenerAdapter
                 new ToCommand(database, waiter),
 
                 new EvalCommand(database),
-                new ModeCommand(),
-                new ShutdownCommand(database)
+                new ModeCommand(commandMetrics),
+                new ShutdownCommand(database),
+                new SlowQueriesCommand(database)
         );
 
         builder.setPrefix(Config.PREFIX);
@@ -137,12 +171,15 @@ public class Bot extends ListenerAdapter
                 5, TimeUnit.MINUTES
         );
 
-        database.updateRoles(event.getJDA(), 10, TimeUnit.MINUTES);
+        database.reconcileRoles(event.getJDA(), 6, TimeUnit.HOURS);
     }
 
     @Override
     public void onShutdown(ShutdownEvent event)
     {
+        if(metricsServer != null)
+            metricsServer.stop();
+
         // ONLY shutdown database here
         database.shutdown();
     }
@@ -151,22 +188,7 @@ public class Bot extends ListenerAdapter
     public void onGuildMemberJoin(GuildMemberJoinEvent event)
     {
         // Add roles to new member
-
-        short rating = database.getUserRating(event.getUser());
-
-        if(rating == -1)
-            return;
-
-        Role role = database.getRatingRole(event.getGuild(), rating);
-
-        // Role is not null
-        // Can interact with role
-        // Can interact with member
-        if(role != null && event.getGuild().getSelfMember().canInteract(role)
-                && event.getGuild().getSelfMember().canInteract(event.getMember()))
-        {
-            event.getGuild().getController().addRolesToMember(event.getMember(), role).queue(v -> {}, v -> {});
-        }
+        database.reconcileRoles(event.getMember());
     }
 
     public static class Config
@@ -198,11 +220,22 @@ public class Bot extends ListenerAdapter
         private final String databaseUsername;
         private final String databasePassword;
         private final String databasePathname;
+        private final int databasePoolSize;
+        private final int databaseThreads;
         private final long webhookId;
         private final String webhookToken;
         private final String discordBotsKey;
         private final String carbonitexKey;
         private final String discordBotsListKey;
+        private final int leaderboardSize;
+        private final int writeQueueSize;
+        private final int writeBatchSize;
+        private final long writeFlushMillis;
+        private final int auditBufferSize;
+        private final String metricsHost;
+        private final int metricsPort;
+        private final long slowQueryMillis;
+        private final String ratingLogPathname;
 
         public Config(Path path) throws IOException, JSONException
         {
@@ -218,12 +251,29 @@ public class Bot extends ListenerAdapter
             this.databaseUsername = json.getString("database_username");
             this.databasePassword = json.getString("database_password");
             this.databasePathname = json.getString("database_pathname");
+            this.databasePoolSize = json.optInt("database_pool_size", ConnectionPool.DEFAULT_SIZE);
+            this.databaseThreads = json.optInt("database_threads", AsyncDatabase.DEFAULT_THREADS);
             this.webhookId = json.getLong("webhook_id");
             this.webhookToken = json.getString("webhook_token");
 
             this.discordBotsKey = json.optString("discord_bots_key", null);
             this.carbonitexKey = json.optString("carbonitex_key", null);
             this.discordBotsListKey = json.optString("discord_bots_list_key", null);
+
+            this.leaderboardSize = json.optInt("leaderboard_size", Leaderboard.DEFAULT_SIZE);
+
+            this.writeQueueSize = json.optInt("write_queue_size", WriteQueue.DEFAULT_CAPACITY);
+            this.writeBatchSize = json.optInt("write_batch_size", WriteQueue.DEFAULT_BATCH_SIZE);
+            this.writeFlushMillis = json.optLong("write_flush_millis", WriteQueue.DEFAULT_FLUSH_MILLIS);
+
+            this.auditBufferSize = json.optInt("audit_buffer_size", AuditWebhook.DEFAULT_CAPACITY);
+
+            this.metricsHost = json.optString("metrics_host", MetricsServer.DEFAULT_HOST);
+            this.metricsPort = json.optInt("metrics_port", 0);
+
+            this.slowQueryMillis = json.optLong("slow_query_millis", SlowQueryLog.DEFAULT_THRESHOLD_MILLIS);
+
+            this.ratingLogPathname = json.optString("rating_log_pathname", null);
         }
 
         public String getJagroshId()
@@ -256,6 +306,16 @@ public class Bot extends ListenerAdapter
             return databasePathname;
         }
 
+        public int getDatabasePoolSize()
+        {
+            return databasePoolSize;
+        }
+
+        public int getDatabaseThreads()
+        {
+            return databaseThreads;
+        }
+
         public String getDiscordBotsKey()
         {
             return discordBotsKey;
@@ -280,5 +340,53 @@ public class Bot extends ListenerAdapter
         {
             return webhookToken;
         }
+
+        public int getLeaderboardSize()
+        {
+            return leaderboardSize;
+        }
+
+        public int getWriteQueueSize()
+        {
+            return writeQueueSize;
+        }
+
+        public int getWriteBatchSize()
+        {
+            return writeBatchSize;
+        }
+
+        public long getWriteFlushMillis()
+        {
+            return writeFlushMillis;
+        }
+
+        public int getAuditBufferSize()
+        {
+            return auditBufferSize;
+        }
+
+        public String getMetricsHost()
+        {
+            return metricsHost;
+        }
+
+        // 0 if metrics aren't served
+        public int getMetricsPort()
+        {
+            return metricsPort;
+        }
+
+        // 0 or less if slow statements aren't logged
+        public long getSlowQueryMillis()
+        {
+            return slowQueryMillis;
+        }
+
+        // Null if ratings are kept in the database
+        public String getRatingLogPathname()
+        {
+            return ratingLogPathname;
+        }
     }
 }
\ No newline at end of file
@@ -94,16 +94,23 @@ public class AboutCommand extends DatabaseCommand
             b.addField("\uD83D\uDCCA Stats", event.getClient().getTotalGuilds()+" servers\n"+
                     event.getJDA().getUserCache().size()+" users", true);
 
-        b.addField(Bot.Config.BOT_EMOJI+" Ratings", database.getGlobalTotalRatings()+" unique ratings\n"+
-                String.format("%.3f average rating", database.getGlobalAverage()), true);
+        async.getGlobalTotalRatings().thenCombine(async.getGlobalAverage(), (total, average) -> {
+            b.addField(Bot.Config.BOT_EMOJI+" Ratings", total+" unique ratings\n"+
+                    String.format("%.3f average rating", average), true);
 
-        b.addField("\uD83C\uDF10 Links",
-                (invite != null && !invite.isEmpty() ? "[Invite]("+invite+")\n" : "")+
-                "[Support]("+event.getClient().getServerInvite()+")", true);
+            b.addField("\uD83C\uDF10 Links",
+                    (invite != null && !invite.isEmpty() ? "[Invite]("+invite+")\n" : "")+
+                    "[Support]("+event.getClient().getServerInvite()+")", true);
 
-        b.setFooter("Last Restart", null);
-        b.setTimestamp(event.getClient().getStartTime());
+            b.setFooter("Last Restart", null);
+            b.setTimestamp(event.getClient().getStartTime());
 
-        event.reply(b.build());
+            return b.build();
+        }).whenComplete((embed, t) -> {
+            if(t != null)
+                replyFailure(event, t);
+            else
+                event.reply(embed);
+        });
     }
 }
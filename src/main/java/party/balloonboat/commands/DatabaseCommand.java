@@ -16,6 +16,8 @@
 package party.balloonboat.commands;
 
 import com.jagrosh.jdautilities.commandclient.Command;
+import com.jagrosh.jdautilities.commandclient.CommandEvent;
+import party.balloonboat.data.AsyncDatabase;
 import party.balloonboat.data.Database;
 
 /**
@@ -26,9 +28,18 @@ public abstract class DatabaseCommand extends Command
     // Database Wrapper Command for BalloonBoat commands using the database
 
     final Database database;
+    final AsyncDatabase async;
 
     public DatabaseCommand(Database database)
     {
         this.database = database;
+        this.async = database.async();
+    }
+
+    // For when a database operation fails
+    void replyFailure(CommandEvent event, Throwable t)
+    {
+        Database.LOG.warn("Encountered an exception while running "+name+": ", t);
+        event.replyError("Something went wrong while accessing the database! Try again later.");
     }
 }
@@ -79,28 +79,38 @@ public class FromCommand extends DatabaseCommand
             member = members.get(0);
         }
 
-        event.replyWarning("Getting Ratings...", message -> {
+        event.replyWarning("Getting Ratings...", message -> async.getRatingsFrom(member.getUser()).whenComplete((ratings, t) -> {
+            if(t != null)
+            {
+                message.delete().queue(v -> {}, v -> {});
+                replyFailure(event, t);
+                return;
+            }
 
-            pBuilder.clearItems();
-            pBuilder.setText((page, total) -> String.format("Ratings made by **%s**#%s | Page %d/%d",
-                    member.getUser().getName(), member.getUser().getDiscriminator(), page, total));
+            // This is shared between uses, and may be used by more than one thread at once
+            synchronized(pBuilder)
+            {
+                pBuilder.clearItems();
+                pBuilder.setText((page, total) -> String.format("Ratings made by **%s**#%s | Page %d/%d",
+                        member.getUser().getName(), member.getUser().getDiscriminator(), page, total));
 
-            database.getRatingsFrom(member.getUser()).forEach((userId, rating) -> {
-                final User user;
-                if(event.getJDA().getShardInfo() != null)
-                    user = event.getJDA().asBot().getShardManager().getUserById(userId);
-                else
-                    user = event.getJDA().getUserById(userId);
-                if(user != null)
-                    pBuilder.addItems(String.format("**%s**#%s %d", user.getName(), user.getDiscriminator(), rating));
-                else
-                    pBuilder.addItems(String.format("**Unknown** (ID: %d) %d", userId, rating));
-            });
+                ratings.forEach((userId, rating) -> {
+                    final User user;
+                    if(event.getJDA().getShardInfo() != null)
+                        user = event.getJDA().asBot().getShardManager().getUserById(userId);
+                    else
+                        user = event.getJDA().getUserById(userId);
+                    if(user != null)
+                        pBuilder.addItems(String.format("**%s**#%s %d", user.getName(), user.getDiscriminator(), rating));
+                    else
+                        pBuilder.addItems(String.format("**Unknown** (ID: %d) %d", userId, rating));
+                });
 
-            if(member.getColor() != null)
-                pBuilder.setColor(member.getColor());
+                if(member.getColor() != null)
+                    pBuilder.setColor(member.getColor());
 
-            pBuilder.build().display(message);
-        });
+                pBuilder.build().display(message);
+            }
+        }));
     }
 }
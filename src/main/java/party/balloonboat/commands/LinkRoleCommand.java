@@ -126,10 +126,7 @@ public class LinkRoleCommand extends DatabaseCommand
 
         database.setRatingRole(role, rating);
 
+        // Members will have their roles fixed shortly after this
         event.replySuccess("Set "+role.getName()+" as the role for users with a rating of `"+rating+"`!");
-
-        database.getMembersByRating(rating, event.getGuild()).forEach(member -> {
-            event.getGuild().getController().addRolesToMember(member, role).queue(v -> {}, v -> {});
-        });
     }
 }
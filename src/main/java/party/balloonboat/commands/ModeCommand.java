@@ -32,10 +32,13 @@ import javax.annotation.Nullable;
  */
 public class ModeCommand extends Command
 {
+    private final CommandListener base;
     private Mode mode = Mode.STANDARD;
 
-    public ModeCommand()
+    // The base listener is kept whatever the mode is
+    public ModeCommand(@Nullable CommandListener base)
     {
+        this.base = base;
         this.name = "Mode";
         this.arguments = "[Standard | Debug]";
         this.help = "Sets the bot's mode.";
@@ -80,10 +83,46 @@ public class ModeCommand extends Command
 
         mode = newMode;
 
-        event.getClient().setListener(mode.listener);
+        event.getClient().setListener(combine(base, mode.listener));
         event.replySuccess("Successfully set mode to **"+mode.name()+"**!");
     }
 
+    @Nullable
+    private static CommandListener combine(@Nullable CommandListener first, @Nullable CommandListener second)
+    {
+        if(first == null)
+            return second;
+        if(second == null)
+            return first;
+        return new CommandListener()
+        {
+            @Override
+            public void onCommand(CommandEvent event, Command command)
+            {
+                first.onCommand(event, command);
+                second.onCommand(event, command);
+            }
+            @Override
+            public void onCompletedCommand(CommandEvent event, Command command)
+            {
+                first.onCompletedCommand(event, command);
+                second.onCompletedCommand(event, command);
+            }
+            @Override
+            public void onTerminatedCommand(CommandEvent event, Command command)
+            {
+                first.onTerminatedCommand(event, command);
+                second.onTerminatedCommand(event, command);
+            }
+            @Override
+            public void onNonCommandMessage(MessageReceivedEvent event)
+            {
+                first.onNonCommandMessage(event);
+                second.onNonCommandMessage(event);
+            }
+        };
+    }
+
     @SuppressWarnings("unused")
     public enum Mode
     {
@@ -62,11 +62,13 @@ public class RankCommand extends DatabaseCommand
             user = members.get(0).getUser();
         }
 
-        short rating = database.getUserRating(user);
-
-        if(event.getAuthor().equals(user))
-            event.replySuccess("Your rank is `" + rating + "`!");
-        else
-            event.replySuccess("**" + user.getName() + "**#" + user.getDiscriminator() + "'s rank is `" + rating + "`!");
+        async.getUserRating(user).whenComplete((rating, t) -> {
+            if(t != null)
+                replyFailure(event, t);
+            else if(event.getAuthor().equals(user))
+                event.replySuccess("Your rank is `" + rating + "`!");
+            else
+                event.replySuccess("**" + user.getName() + "**#" + user.getDiscriminator() + "'s rank is `" + rating + "`!");
+        });
     }
 }
@@ -22,6 +22,7 @@ import party.balloonboat.data.Database;
 import party.balloonboat.utils.FormatUtils;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author Kaidan Gustave
@@ -89,14 +90,18 @@ public class RateCommand extends DatabaseCommand
             return;
         }
 
-        if(database.ratingEquals(event.getAuthor(), member.getUser(), rating))
-        {
-            event.replyWarning("You've already rated "+member.getUser().getName()+" a `"+rating+"`!");
-            return;
-        }
-
-        database.setRating(event.getAuthor(), member.getUser(), rating);
-
-        event.replySuccess(String.format("You rated **%#s** a `%d/5`", member.getUser(), rating));
+        // Completes with false if this rating was already given
+        async.ratingEquals(event.getAuthor(), member.getUser(), rating).thenCompose(equal -> {
+            if(equal)
+                return CompletableFuture.completedFuture(false);
+            return async.setRating(event.getAuthor(), member.getUser(), rating).thenApply(v -> true);
+        }).whenComplete((rated, t) -> {
+            if(t != null)
+                replyFailure(event, t);
+            else if(rated)
+                event.replySuccess(String.format("You rated **%#s** a `%d/5`", member.getUser(), rating));
+            else
+                event.replyWarning("You've already rated "+member.getUser().getName()+" a `"+rating+"`!");
+        });
     }
 }
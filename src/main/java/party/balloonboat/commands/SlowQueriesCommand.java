@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.commands;
+
+import com.jagrosh.jdautilities.commandclient.CommandEvent;
+import net.dv8tion.jda.core.entities.Message;
+import party.balloonboat.data.Database;
+import party.balloonboat.data.SlowQueryLog;
+import party.balloonboat.metrics.Timer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Kaidan Gustave
+ */
+public class SlowQueriesCommand extends DatabaseCommand
+{
+    private static final int DEFAULT_COUNT = 10;
+    private static final int MAX_COUNT = 25;
+
+    public SlowQueriesCommand(Database database)
+    {
+        super(database);
+        this.name = "SlowQueries";
+        this.arguments = "[Count]";
+        this.help = "Lists the slowest statements since starting up.";
+        this.usesTopicTags = false;
+        this.guildOnly = false;
+        this.ownerCommand = true;
+    }
+
+    @Override
+    protected void execute(CommandEvent event)
+    {
+        int count = DEFAULT_COUNT;
+        if(!event.getArgs().isEmpty())
+        {
+            try {
+                count = Math.min(Integer.parseInt(event.getArgs()), MAX_COUNT);
+            } catch(NumberFormatException e) {
+                event.replyError("Count must be a number!");
+                return;
+            }
+            if(count < 1)
+            {
+                event.replyError("Count must be at least 1!");
+                return;
+            }
+        }
+
+        // Statements are timed by their SQL, slowest is the one with the highest max
+        List<Map.Entry<String, Timer>> statements = new ArrayList<>();
+        for(Map.Entry<String, Timer> entry : database.getMetrics().getTimers().entrySet())
+        {
+            if(entry.getKey().startsWith("sql."))
+                statements.add(entry);
+        }
+        statements.sort((a, b) -> Long.compare(b.getValue().getMax(), a.getValue().getMax()));
+
+        if(statements.isEmpty())
+        {
+            event.replyWarning("No statements have been run yet!");
+            return;
+        }
+
+        StringBuilder builder = new StringBuilder("Slowest statements since starting up");
+        SlowQueryLog slowQueries = database.getSlowQueryLog();
+        if(slowQueries != null)
+            builder.append(", ").append(slowQueries.getLoggedCount()).append(" over ")
+                   .append(slowQueries.getThresholdMillis()).append("ms were logged");
+        builder.append(":\n");
+        for(int i = 0; i < count && i < statements.size(); i++)
+        {
+            Timer timer = statements.get(i).getValue();
+            String line = String.format("`%.1fms` max | `%.1fms` p99 | %d runs ```sql\n%s```",
+                    timer.getMax() / 1e6, timer.getPercentile(0.99) / 1e6, timer.getCount(),
+                    statements.get(i).getKey().substring("sql.".length()));
+
+            // Long statements may not all fit
+            if(builder.length() + line.length() > Message.MAX_CONTENT_LENGTH)
+                break;
+            builder.append(line);
+        }
+
+        event.reply(builder.toString());
+    }
+}
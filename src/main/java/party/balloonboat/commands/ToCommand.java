@@ -81,25 +81,35 @@ public class ToCommand extends DatabaseCommand
             member = members.get(0);
         }
 
-        event.replyWarning("Getting Ratings...", message -> {
+        event.replyWarning("Getting Ratings...", message -> async.getRatingsTo(member.getUser()).whenComplete((ratings, t) -> {
+            if(t != null)
+            {
+                message.delete().queue(v -> {}, v -> {});
+                replyFailure(event, t);
+                return;
+            }
 
-            pBuilder.clearItems();
+            // This is shared between uses, and may be used by more than one thread at once
+            synchronized(pBuilder)
+            {
+                pBuilder.clearItems();
 
-            pBuilder.setText((page, total) -> String.format("Ratings of **%s**#%s | Page %d/%d", member.getUser().getName(),
-                    member.getUser().getDiscriminator(), page, total));
+                pBuilder.setText((page, total) -> String.format("Ratings of **%s**#%s | Page %d/%d", member.getUser().getName(),
+                        member.getUser().getDiscriminator(), page, total));
 
-            database.getRatingsTo(member.getUser()).forEach((l, s) -> {
-                User user = event.getJDA().getUserById(l);
-                if(user == null)
-                    pBuilder.addItems("UNKNOWN (ID: "+l+") - "+s);
-                else
-                    pBuilder.addItems("**"+user.getName()+"**#"+user.getDiscriminator()+" - "+s);
-            });
+                ratings.forEach((l, s) -> {
+                    User user = event.getJDA().getUserById(l);
+                    if(user == null)
+                        pBuilder.addItems("UNKNOWN (ID: "+l+") - "+s);
+                    else
+                        pBuilder.addItems("**"+user.getName()+"**#"+user.getDiscriminator()+" - "+s);
+                });
 
-            if(member.getColor() != null)
-                pBuilder.setColor(member.getColor());
+                if(member.getColor() != null)
+                    pBuilder.setColor(member.getColor());
 
-            pBuilder.build().display(message);
-        });
+                pBuilder.build().display(message);
+            }
+        }));
     }
 }
\ No newline at end of file
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.data;
+
+import net.dv8tion.jda.core.entities.User;
+import party.balloonboat.metrics.MetricRegistry;
+import party.balloonboat.metrics.Timer;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link Database} operations on a thread pool of its own, so that
+ * command and gateway threads never wait on the database.
+ *
+ * <p>Unlike the synchronous methods on {@link Database}, nothing here turns
+ * an {@link SQLException} into a special return value. Failures complete
+ * the future exceptionally instead, so they can be reported properly.
+ *
+ * <p>Futures are completed on database threads, so anything chained onto
+ * them without an executor runs there too, and must not block.
+ *
+ * @author Kaidan Gustave
+ */
+public class AsyncDatabase
+{
+    public static final int DEFAULT_THREADS = 4;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    private final Database database;
+    private final CalculationsTable calcTable;
+    private final RatingsTable ratings;
+    private final ExecutorService executor;
+    private final MetricRegistry metrics;
+
+    AsyncDatabase(Database database, int threads)
+    {
+        if(threads < 1)
+            throw new IllegalArgumentException("Database must have at least 1 thread!");
+        this.database = database;
+        this.calcTable = database.getCalculationsTable();
+        this.ratings = database.getRatingsTable();
+        this.metrics = database.getMetrics();
+
+        AtomicInteger count = new AtomicInteger(0);
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "Database Thread "+count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public CompletableFuture<Void> setRating(User user, User target, short rating)
+    {
+        return supply("setRating", () -> {
+            database.rate(user, target, rating);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Boolean> ratingEquals(User user, User target, short rating)
+    {
+        return supply("ratingEquals", () -> database.ratingEquals(user, target, rating));
+    }
+
+    // Completes with -1 if the user has no rating
+    public CompletableFuture<Short> getUserRating(User user)
+    {
+        return supply("getUserRating", () -> calcTable.getUserRating(user.getIdLong()));
+    }
+
+    public CompletableFuture<Map<Long, Short>> getRatingsTo(User user)
+    {
+        return supply("getRatingsTo", () -> ratings.getAllUsersRating(user.getIdLong()));
+    }
+
+    public CompletableFuture<Map<Long, Short>> getRatingsFrom(User user)
+    {
+        return supply("getRatingsFrom", () -> ratings.getRatingsByUser(user.getIdLong()));
+    }
+
+    public CompletableFuture<Long> getGlobalTotalRatings()
+    {
+        return supply("getGlobalTotalRatings", database::getGlobalTotalRatings);
+    }
+
+    public CompletableFuture<Double> getGlobalAverage()
+    {
+        return supply("getGlobalAverage", database::getGlobalAverage);
+    }
+
+    // Timed from being submitted to being completed, so waiting for a thread counts
+    private <T> CompletableFuture<T> supply(String name, SQLSupplier<T> supplier)
+    {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Timer timer = metrics.timer("async."+name);
+        long start = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                try {
+                    T value = supplier.get();
+                    timer.recordSince(start);
+                    future.complete(value);
+                } catch(Throwable t) {
+                    timer.recordSince(start);
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch(RuntimeException e) {
+            // Rejected because we're shutting down
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    void shutdown()
+    {
+        executor.shutdown();
+        try {
+            if(!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                Database.LOG.warn("Timed out waiting for database operations to finish!");
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @FunctionalInterface
+    private interface SQLSupplier<T>
+    {
+        T get() throws SQLException;
+    }
+}
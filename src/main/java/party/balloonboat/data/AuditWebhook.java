@@ -0,0 +1,212 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.data;
+
+import net.dv8tion.jda.core.entities.Message;
+import net.dv8tion.jda.webhook.WebhookClient;
+import net.dv8tion.jda.webhook.WebhookClientBuilder;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends audit lines, such as ratings, to a webhook in batches.
+ *
+ * <p>Lines are buffered and packed into as few messages as Discord's
+ * length limit allows. A message is sent once it is full, or once its
+ * oldest line has waited the flush delay, and only a few are sent per
+ * tick so a burst of ratings stays within the webhook's rate limit.
+ *
+ * <p>The buffer is bounded. When it is full new lines are dropped and
+ * counted, since losing some of the audit log is better than holding up
+ * ratings or running out of memory while Discord is unreachable.
+ *
+ * <p>Everything runs on a scheduler of its own, shared only with the
+ * webhook client, so sending never delays the leaderboard or role tasks.
+ *
+ * @author Kaidan Gustave
+ */
+public class AuditWebhook
+{
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    private static final long TICK_MILLIS = 1000;
+    private static final long FLUSH_DELAY_MILLIS = 5000;
+    // Webhooks get about 5 requests every 2 seconds
+    private static final int MESSAGES_PER_TICK = 2;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    private final WebhookClient webhook;
+    private final ScheduledExecutorService executor;
+    private final int capacity;
+
+    private final ArrayDeque<Line> buffer = new ArrayDeque<>();
+    private boolean closed = false;
+
+    // Metrics
+    private final AtomicLong added = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLong messages = new AtomicLong(0);
+
+    AuditWebhook(long webhookId, String webhookToken, int capacity)
+    {
+        if(capacity < 1)
+            throw new IllegalArgumentException("Audit webhook capacity must be at least 1!");
+        this.capacity = capacity;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Audit Webhook");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.webhook = new WebhookClientBuilder(webhookId, webhookToken).setExecutorService(executor).build();
+        this.executor.scheduleWithFixedDelay(() -> {
+            try {
+                flush(MESSAGES_PER_TICK, false);
+            } catch(Exception e) {
+                Database.LOG.error("Encountered an exception while sending audit lines: ", e);
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Returns false if the line was dropped
+    boolean log(String line)
+    {
+        // Lines that could never fit are cut short rather than never sent
+        if(line.length() > Message.MAX_CONTENT_LENGTH)
+            line = line.substring(0, Message.MAX_CONTENT_LENGTH);
+
+        synchronized(this)
+        {
+            if(closed || buffer.size() >= capacity)
+            {
+                dropped.incrementAndGet();
+                return false;
+            }
+            buffer.offer(new Line(line, System.currentTimeMillis()));
+        }
+        added.incrementAndGet();
+        return true;
+    }
+
+    // Sends up to the given number of messages, only sending one that isn't full
+    // if its oldest line is due or all must be sent.
+    private void flush(int limit, boolean all)
+    {
+        for(int i = 0; i < limit; i++)
+        {
+            String content;
+            synchronized(this)
+            {
+                Line oldest = buffer.peek();
+                if(oldest == null)
+                    return;
+
+                // Count how many lines fit in one message
+                int count = 0;
+                int length = -1;
+                boolean full = false;
+                for(Line line : buffer)
+                {
+                    length += 1 + line.text.length();
+                    if(length > Message.MAX_CONTENT_LENGTH)
+                    {
+                        full = true;
+                        break;
+                    }
+                    count++;
+                }
+
+                if(!full && !all && System.currentTimeMillis() - oldest.time < FLUSH_DELAY_MILLIS)
+                    return;
+
+                StringBuilder message = new StringBuilder();
+                for(int j = 0; j < count; j++)
+                {
+                    if(j > 0)
+                        message.append('\n');
+                    message.append(buffer.poll().text);
+                }
+                content = message.toString();
+            }
+
+            messages.incrementAndGet();
+            webhook.send(content);
+        }
+    }
+
+    // Lines waiting to be sent
+    public synchronized int getBufferedCount()
+    {
+        return buffer.size();
+    }
+
+    public long getAddedCount()
+    {
+        return added.get();
+    }
+
+    // Lines thrown away because the buffer was full
+    public long getDroppedCount()
+    {
+        return dropped.get();
+    }
+
+    public long getMessageCount()
+    {
+        return messages.get();
+    }
+
+    // Sends everything still buffered before closing
+    void close()
+    {
+        synchronized(this)
+        {
+            closed = true;
+        }
+        try {
+            executor.submit(() -> flush(Integer.MAX_VALUE, true)).get(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch(Exception e) {
+            Database.LOG.warn("Failed to send the last audit lines: ", e);
+        }
+
+        // Messages the client already has queued are still sent after shutting down
+        webhook.close();
+        executor.shutdown();
+        try {
+            if(!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                Database.LOG.warn("Timed out waiting for audit messages to send!");
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Line
+    {
+        private final String text;
+        private final long time;
+
+        private Line(String text, long time)
+        {
+            this.text = text;
+            this.time = time;
+        }
+    }
+}
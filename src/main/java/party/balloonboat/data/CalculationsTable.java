@@ -18,130 +18,226 @@ package party.balloonboat.data;
 import net.dv8tion.jda.core.entities.Guild;
 import net.dv8tion.jda.core.entities.Member;
 
+import javax.annotation.Nullable;
+import java.io.IOException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
 
 /**
  * @author Kaidan Gustave
  */
 public class CalculationsTable extends TableHandler
 {
-    public CalculationsTable(Connection connection)
+    private static final String SELECT_ALL =
+            "SELECT USER_ID, TRUE_RATING, EFFECTIVE_RATING FROM CALCULATIONS";
+    private static final String SELECT_USER =
+            "SELECT USER_ID FROM CALCULATIONS WHERE USER_ID = ?";
+    private static final String UPSERT = upsert(Database.Table.CALCULATIONS,
+            new String[] {"USER_ID"}, "TRUE_RATING", "EFFECTIVE_RATING");
+
+    private final RatingGraph graph;
+    private final RankIndex ranks;
+    private final Leaderboard leaderboard;
+    private final GlobalStats stats;
+    private final RatingLog log;
+
+    private final List<LongConsumer> listeners = new CopyOnWriteArrayList<>();
+
+    // Lookups of users who have a rating and who don't
+    private final LongAdder ratedLookups = new LongAdder();
+    private final LongAdder unratedLookups = new LongAdder();
+
+    // The table isn't written when there is a rating log, as it's rebuilt from the log
+    public CalculationsTable(ConnectionPool pool, RatingGraph graph, GlobalStats stats, int leaderboardSize,
+                             @Nullable RatingLog log)
     {
-        super(connection, Database.Table.CALCULATIONS);
+        super(pool, Database.Table.CALCULATIONS);
+        this.graph = graph;
+        this.stats = stats;
+        this.log = log;
+        this.ranks = new RankIndex();
+        this.leaderboard = new Leaderboard(ranks, leaderboardSize);
     }
 
-    public boolean isRegistered(long userId) throws SQLException
+    void load() throws SQLException
     {
-        final boolean isRegistered;
-        try (Statement statement = connection.createStatement())
+        try (Connection connection = pool.getConnection())
         {
-            try (ResultSet results = statement.executeQuery(
-                    "SELECT * FROM "+table.name()+" WHERE USER_ID = "+userId
-            ))
+            try (ResultSet results = prepare(connection, SELECT_ALL).executeQuery())
             {
-                isRegistered = results.next();
+                while(results.next())
+                {
+                    long userId = results.getLong("USER_ID");
+                    double trueRating = results.getDouble("TRUE_RATING");
+                    graph.loadUser(userId, trueRating, results.getShort("EFFECTIVE_RATING"));
+                    ranks.update(userId, trueRating);
+                }
             }
         }
-        return isRegistered;
+        leaderboard.rebuild();
     }
 
-    public void registerUser(long userId, double trueRating, short effectiveRating) throws SQLException
+    // Ranks everyone already in the graph, for when it was loaded from a rating log instead
+    void loadRanks()
     {
-        try(Statement statement = connection.createStatement())
-        {
-            statement.execute(
-                    "INSERT INTO "+table.name()+" (USER_ID, TRUE_RATING, EFFECTIVE_RATING) VALUES " +
-                    "("+userId+","+trueRating+","+effectiveRating+")"
-            );
-        }
+        graph.forEachRegistered(ranks::update);
+        leaderboard.rebuild();
     }
 
-    public List<Long> getTop20() throws SQLException
+    // Starts a rating log with everyone registered in the table
+    void copyTo(RatingLog log) throws SQLException, IOException
     {
-        List<Long> users = new ArrayList<>();
-        try (Statement statement = connection.createStatement())
+        try (Connection connection = pool.getConnection())
         {
-            try (ResultSet results = statement.executeQuery(
-                    "SELECT USER_ID FROM "+table.name()+" ORDER BY TRUE_RATING DESC"
-            ))
+            try (ResultSet results = prepare(connection, SELECT_ALL).executeQuery())
             {
-                int i = 0;
-                while(results.next() && i < 20)
-                {
-                    users.add(results.getLong("USER_ID"));
-                    i++;
-                }
+                while(results.next())
+                    log.appendRegister(results.getLong("USER_ID"));
             }
         }
-        return users;
     }
 
-    public List<Member> getMembersByRating(short rating, Guild guild) throws SQLException
+    public boolean isRegistered(long userId) throws SQLException
+    {
+        // The table isn't kept up to date when there is a log
+        if(log != null)
+            return graph.isRegistered(userId);
+
+        try (Connection connection = pool.getConnection())
+        {
+            return isRegistered(connection, userId);
+        }
+    }
+
+    boolean isRegistered(Connection connection, long userId) throws SQLException
     {
+        PreparedStatement statement = prepare(connection, SELECT_USER);
+        statement.setLong(1, userId);
+        try (ResultSet results = statement.executeQuery())
+        {
+            return results.next();
+        }
+    }
+
+    // The top rated users, best first
+    public long[] getTop()
+    {
+        return leaderboard.getTop();
+    }
+
+    public long getTopVersion()
+    {
+        return leaderboard.getVersion();
+    }
+
+    public boolean hasTopChangedSince(long version)
+    {
+        return leaderboard.hasChangedSince(version);
+    }
+
+    public List<Member> getMembersByRating(short rating, Guild guild)
+    {
+        // Guilds are much smaller than the table, so check each member instead
         List<Member> list = new ArrayList<>();
-        try (Statement statement = connection.createStatement())
+        for(Member member : guild.getMembers())
         {
-            try (ResultSet results = statement.executeQuery(
-                    "SELECT USER_ID FROM "+table.name()+" WHERE EFFECTIVE_RATING = "+rating))
-            {
-                while(results.next())
-                {
-                    Member member = guild.getMemberById(results.getLong("USER_ID"));
-                    if(member != null)
-                        list.add(member);
-                }
-            }
+            if(graph.getEffectiveRating(member.getUser().getIdLong()) == rating)
+                list.add(member);
         }
         return list;
     }
 
-    public short getUserRating(long userId, boolean initRatingAutomatically) throws SQLException
+    public long getRatedLookupCount()
     {
-        final short returns;
-        try (Statement statement = connection.createStatement())
+        return ratedLookups.sum();
+    }
+
+    public long getUnratedLookupCount()
+    {
+        return unratedLookups.sum();
+    }
+
+    public long getMemoryEstimate()
+    {
+        return graph.getMemoryEstimate();
+    }
+
+    // Position when ordered by true rating ascending, starting at 1
+    public int getPosition(long userId)
+    {
+        return ranks.getPosition(userId);
+    }
+
+    // Users from position "from" to position "to" inclusive
+    public long[] getUsersAtPositions(int from, int to)
+    {
+        return ranks.getUsersAt(from, to);
+    }
+
+    // Every rating is already in memory, so this never has to go to the database.
+    // Users are registered by rating or being rated, so this returns -1 for anyone else.
+    public short getUserRating(long userId)
+    {
+        short returns = graph.getEffectiveRating(userId);
+        if(returns != -1)
+            ratedLookups.increment();
+        else
+            unratedLookups.increment();
+        return returns;
+    }
+
+    // Updates the user's rating in memory, the caller is responsible for writing it
+    short updateUserRating(long userId, double trueRating)
+    {
+        updateRanks(userId, trueRating);
+        return toEffectiveRating(trueRating);
+    }
+
+    // Writes every user's calculations as one batch
+    void writeUserRatings(Connection connection, Map<Long, Double> trueRatings) throws SQLException
+    {
+        PreparedStatement statement = prepare(connection, UPSERT);
+        for(Map.Entry<Long, Double> entry : trueRatings.entrySet())
         {
-            try (ResultSet results = statement.executeQuery(
-                    "SELECT EFFECTIVE_RATING FROM "+table.name()+" " +
-                    "WHERE USER_ID = "+userId
-            ))
-            {
-                if(results.next())
-                    returns = results.getShort("EFFECTIVE_RATING");
-                else if(initRatingAutomatically)
-                {
-                    returns = 1;
-                    registerUser(userId, 1.0, returns);
-                }
-                else
-                    returns = -1;
-            }
+            statement.setLong(1, entry.getKey());
+            statement.setDouble(2, entry.getValue());
+            statement.setShort(3, toEffectiveRating(entry.getValue()));
+            statement.addBatch();
         }
-        return returns;
+        statement.executeBatch();
+    }
+
+    static short toEffectiveRating(double trueRating)
+    {
+        return (short) Math.round(trueRating);
     }
 
-    short setAndReturnUserRating(long userId, double trueRating) throws SQLException
+    // Called with users whose effective rating has changed, on whatever thread changed it
+    void addRatingChangeListener(LongConsumer listener)
     {
-        final short returns = (short)Math.round(trueRating);
-        try (Statement statement = connection.createStatement())
+        listeners.add(listener);
+    }
+
+    private void updateRanks(long userId, double trueRating)
+    {
+        // The rank index still has the old rating at this point
+        double oldTrueRating = ranks.getRating(userId);
+        stats.updateUser(oldTrueRating, trueRating);
+        ranks.update(userId, trueRating);
+        leaderboard.update(userId, trueRating);
+
+        if(Double.isNaN(oldTrueRating) || toEffectiveRating(oldTrueRating) != toEffectiveRating(trueRating))
         {
-            if(isRegistered(userId))
-            {
-                statement.execute(
-                        "UPDATE "+table.name()+" " +
-                        "SET TRUE_RATING = "+trueRating+", EFFECTIVE_RATING = "+returns+" " +
-                        "WHERE USER_ID = "+userId
-                );
-            }
-            else
-            {
-                registerUser(userId, trueRating, returns);
-            }
+            for(LongConsumer listener : listeners)
+                listener.accept(userId);
         }
-        return returns;
     }
 }
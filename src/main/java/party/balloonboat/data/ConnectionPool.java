@@ -0,0 +1,495 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import party.balloonboat.metrics.MetricRegistry;
+import party.balloonboat.metrics.Timer;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of JDBC connections.
+ *
+ * <p>Connections are borrowed with {@link #getConnection()} for a single
+ * operation, and closing what was borrowed returns it to the pool. Idle
+ * connections are validated before being handed out again, and any
+ * connection that threw a connection error is thrown away instead of
+ * being returned.
+ *
+ * <p>Each connection also keeps the statements prepared through
+ * {@link #prepare(Connection, String)} so that the same SQL is only ever
+ * parsed once per connection. Executing them is timed by SQL, under
+ * {@code sql.<statement>} in the pool's {@link MetricRegistry}, except
+ * for {@code EXPLAIN}, which is only run to log a slow statement's plan.
+ *
+ * @author Kaidan Gustave
+ */
+public class ConnectionPool implements AutoCloseable
+{
+    public static final Logger LOG = LoggerFactory.getLogger(ConnectionPool.class);
+
+    public static final int DEFAULT_SIZE = 8;
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final long VALIDATE_AFTER_MILLIS = 30000;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    private static final int STATEMENT_CACHE_SIZE = 64;
+
+    private final String url;
+    private final String user;
+    private final String pass;
+    private final int maxSize;
+    private final MetricRegistry metrics;
+
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final AtomicInteger total = new AtomicInteger(0);
+    private final AtomicInteger active = new AtomicInteger(0);
+
+    // Metrics
+    private final AtomicLong borrows = new AtomicLong(0);
+    private final AtomicLong waits = new AtomicLong(0);
+    private final AtomicLong waitNanos = new AtomicLong(0);
+    private final AtomicLong timeouts = new AtomicLong(0);
+    private final AtomicLong created = new AtomicLong(0);
+    private final AtomicLong discarded = new AtomicLong(0);
+    private final AtomicLong statementHits = new AtomicLong(0);
+    private final AtomicLong statementMisses = new AtomicLong(0);
+
+    private volatile boolean closed = false;
+    private volatile SlowQueryLog slowQueries = null;
+
+    public ConnectionPool(String url, String user, String pass, int maxSize) throws SQLException
+    {
+        this(url, user, pass, maxSize, new MetricRegistry());
+    }
+
+    public ConnectionPool(String url, String user, String pass, int maxSize, MetricRegistry metrics) throws SQLException
+    {
+        if(maxSize < 1)
+            throw new IllegalArgumentException("Pool size must be at least 1!");
+        this.url = url;
+        this.user = user;
+        this.pass = pass;
+        this.maxSize = maxSize;
+        this.metrics = metrics;
+
+        // Open one now so that a bad URL fails fast, and so in-memory databases stay alive
+        total.incrementAndGet();
+        idle.offer(create());
+    }
+
+    public Connection getConnection() throws SQLException
+    {
+        if(closed)
+            throw new SQLException("Connection pool has been closed!");
+
+        PooledConnection pooled = borrow();
+        active.incrementAndGet();
+        borrows.incrementAndGet();
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class },
+                new Handle(pooled)
+        );
+    }
+
+    // Gets a statement for the SQL that lives as long as the connection does.
+    // It must only be used while the connection is borrowed, and never closed.
+    public PreparedStatement prepare(Connection connection, String sql) throws SQLException
+    {
+        if(!Proxy.isProxyClass(connection.getClass()) || !(Proxy.getInvocationHandler(connection) instanceof Handle))
+            throw new IllegalArgumentException("Connection was not borrowed from a pool!");
+
+        Handle handle = (Handle) Proxy.getInvocationHandler(connection);
+        if(handle.returned)
+            throw new SQLException("Connection has already been returned to the pool!");
+
+        PooledConnection pooled = handle.pooled;
+        PreparedStatement statement = pooled.statements.get(sql);
+        if(statement != null && !statement.isClosed())
+        {
+            statementHits.incrementAndGet();
+            return statement;
+        }
+
+        statementMisses.incrementAndGet();
+        statement = pooled.connection.prepareStatement(sql);
+
+        // Plans are captured for slow statements, and would otherwise be timed and logged as slow themselves
+        if(!isExplain(sql))
+        {
+            statement = (PreparedStatement) Proxy.newProxyInstance(
+                    PreparedStatement.class.getClassLoader(),
+                    new Class<?>[] { PreparedStatement.class },
+                    new TimedStatement(statement, sql, metrics.timer("sql."+sql))
+            );
+        }
+        pooled.statements.put(sql, statement);
+        return statement;
+    }
+
+    static boolean isExplain(String sql)
+    {
+        return sql.trim().regionMatches(true, 0, "EXPLAIN", 0, 7);
+    }
+
+    private PooledConnection borrow() throws SQLException
+    {
+        while(true)
+        {
+            PooledConnection pooled = idle.pollFirst();
+
+            if(pooled == null && total.get() < maxSize)
+            {
+                if(total.incrementAndGet() <= maxSize)
+                {
+                    try {
+                        return create();
+                    } catch(SQLException e) {
+                        total.decrementAndGet();
+                        throw e;
+                    }
+                }
+                total.decrementAndGet();
+            }
+
+            if(pooled == null)
+            {
+                waits.incrementAndGet();
+                long start = System.nanoTime();
+                try {
+                    pooled = idle.pollFirst(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for a connection!", e);
+                } finally {
+                    waitNanos.addAndGet(System.nanoTime() - start);
+                }
+
+                if(pooled == null)
+                {
+                    timeouts.incrementAndGet();
+                    throw new SQLException("Timed out waiting for a connection after "+TIMEOUT_MILLIS+"ms!");
+                }
+            }
+
+            if(isHealthy(pooled))
+                return pooled;
+
+            discard(pooled);
+        }
+    }
+
+    private void release(PooledConnection pooled)
+    {
+        active.decrementAndGet();
+        if(closed || pooled.broken)
+        {
+            discard(pooled);
+            return;
+        }
+
+        try {
+            // Don't let one operation's transaction leak into the next
+            if(!pooled.connection.getAutoCommit())
+            {
+                pooled.connection.rollback();
+                pooled.connection.setAutoCommit(true);
+            }
+        } catch(SQLException e) {
+            LOG.warn("Failed to reset a connection, discarding it: ", e);
+            discard(pooled);
+            return;
+        }
+
+        pooled.lastUsed = System.currentTimeMillis();
+        idle.offerFirst(pooled);
+    }
+
+    private boolean isHealthy(PooledConnection pooled)
+    {
+        // Recently used connections are trusted to still be fine
+        if(System.currentTimeMillis() - pooled.lastUsed < VALIDATE_AFTER_MILLIS)
+            return true;
+        try {
+            return pooled.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch(SQLException e) {
+            return false;
+        }
+    }
+
+    private PooledConnection create() throws SQLException
+    {
+        Connection connection = DriverManager.getConnection(url, user, pass);
+        created.incrementAndGet();
+        return new PooledConnection(connection);
+    }
+
+    private void discard(PooledConnection pooled)
+    {
+        total.decrementAndGet();
+        discarded.incrementAndGet();
+        pooled.close();
+    }
+
+    // Statements that take too long are logged here from now on
+    void setSlowQueryLog(SlowQueryLog slowQueries)
+    {
+        this.slowQueries = slowQueries;
+    }
+
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    public int getTotalCount()
+    {
+        return total.get();
+    }
+
+    public int getActiveCount()
+    {
+        return active.get();
+    }
+
+    public int getIdleCount()
+    {
+        return idle.size();
+    }
+
+    public long getBorrowCount()
+    {
+        return borrows.get();
+    }
+
+    // Number of borrows that had to wait for a connection to be returned
+    public long getWaitCount()
+    {
+        return waits.get();
+    }
+
+    public long getWaitTime(TimeUnit unit)
+    {
+        return unit.convert(waitNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    public long getTimeoutCount()
+    {
+        return timeouts.get();
+    }
+
+    public long getCreatedCount()
+    {
+        return created.get();
+    }
+
+    public long getDiscardedCount()
+    {
+        return discarded.get();
+    }
+
+    public long getStatementHitCount()
+    {
+        return statementHits.get();
+    }
+
+    public long getStatementMissCount()
+    {
+        return statementMisses.get();
+    }
+
+    @Override
+    public void close()
+    {
+        closed = true;
+        PooledConnection pooled;
+        while((pooled = idle.pollFirst()) != null)
+            discard(pooled);
+    }
+
+    static class PooledConnection
+    {
+        final Connection connection;
+        final Map<String, PreparedStatement> statements;
+        volatile long lastUsed;
+        volatile boolean broken = false;
+
+        PooledConnection(Connection connection)
+        {
+            this.connection = connection;
+            this.lastUsed = System.currentTimeMillis();
+
+            // Least recently used statements are closed once there are too many
+            this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest)
+                {
+                    if(size() <= STATEMENT_CACHE_SIZE)
+                        return false;
+                    try {
+                        eldest.getValue().close();
+                    } catch(SQLException e) {
+                        LOG.warn("Encountered an SQLException: ", e);
+                    }
+                    return true;
+                }
+            };
+        }
+
+        void close()
+        {
+            try {
+                connection.close();
+            } catch(SQLException e) {
+                LOG.warn("Encountered an SQLException: ", e);
+            }
+        }
+    }
+
+    // Times everything that executes the statement, remembering what was
+    // bound to it in case it turns out to be slow
+    private class TimedStatement implements InvocationHandler
+    {
+        private final PreparedStatement statement;
+        private final String sql;
+        private final Timer timer;
+        private Object[] parameters = new Object[0];
+
+        private TimedStatement(PreparedStatement statement, String sql, Timer timer)
+        {
+            this.statement = statement;
+            this.sql = sql;
+            this.timer = timer;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+            switch(name)
+            {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return statement.toString();
+                case "clearParameters":
+                    Arrays.fill(parameters, null);
+                    break;
+            }
+
+            // Setters all take the parameter index, then the value
+            SlowQueryLog slowQueries = ConnectionPool.this.slowQueries;
+            if(slowQueries != null && name.startsWith("set") && args != null
+               && args.length >= 2 && args[0] instanceof Integer)
+            {
+                int index = (Integer) args[0] - 1;
+                if(index >= 0)
+                {
+                    if(index >= parameters.length)
+                        parameters = Arrays.copyOf(parameters, index + 1);
+                    parameters[index] = args[1];
+                }
+            }
+
+            boolean executes = name.startsWith("execute");
+            long start = executes ? System.nanoTime() : 0L;
+            try {
+                return method.invoke(statement, args);
+            } catch(InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                if(executes)
+                {
+                    long nanos = System.nanoTime() - start;
+                    timer.record(nanos);
+                    if(slowQueries != null && slowQueries.isSlow(nanos))
+                        slowQueries.log(sql, parameters.clone(), nanos);
+                }
+            }
+        }
+    }
+
+    // What callers actually hold, closing it returns the connection instead
+    private class Handle implements InvocationHandler
+    {
+        private final PooledConnection pooled;
+        private boolean returned = false;
+
+        private Handle(PooledConnection pooled)
+        {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            switch(method.getName())
+            {
+                case "close":
+                    if(!returned)
+                    {
+                        returned = true;
+                        release(pooled);
+                    }
+                    return null;
+                case "isClosed":
+                    return returned || pooled.connection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled"+pooled.connection;
+            }
+
+            if(returned)
+                throw new SQLException("Connection has already been returned to the pool!");
+
+            try {
+                return method.invoke(pooled.connection, args);
+            } catch(InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                // SQL state class 08 is a connection exception
+                if(cause instanceof SQLException)
+                {
+                    String state = ((SQLException) cause).getSQLState();
+                    if(state != null && state.startsWith("08"))
+                        pooled.broken = true;
+                }
+                throw cause;
+            }
+        }
+    }
+}
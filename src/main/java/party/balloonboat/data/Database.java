@@ -18,17 +18,16 @@ package party.balloonboat.data;
 import net.dv8tion.jda.core.EmbedBuilder;
 import net.dv8tion.jda.core.JDA;
 import net.dv8tion.jda.core.entities.*;
-import net.dv8tion.jda.core.utils.cache.SnowflakeCacheView;
-import net.dv8tion.jda.webhook.WebhookClient;
-import net.dv8tion.jda.webhook.WebhookClientBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import party.balloonboat.Bot;
+import party.balloonboat.metrics.MetricRegistry;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.sql.*;
 import java.time.temporal.ChronoUnit;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
@@ -44,139 +43,300 @@ public class Database
 {
     public static final Logger LOG = LoggerFactory.getLogger(Database.class);
     private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+    private static final int HEALTH_TIMEOUT_SECONDS = 2;
     private static final String WEBHOOK_FORMAT = "%s **%s**#%s (ID: %d) rated **%s**#%s (ID: %d) as `%d`";
 
-    private final Connection connection;
+    private final ConnectionPool pool;
 
+    private final RatingGraph graph;
+    private final GlobalStats stats;
     private final CalculationsTable calcTable;
     private final RatingsTable ratings;
     private final GuildSettingsTable guildSettings;
     private final PrivateSettingsTable privateSettings;
-    private final WebhookClient webhook;
-
-    public Database(String url, String user, String pass, long webhookId, String webhookToken)
+    private final StatisticsTable statistics;
+    private final SchemaTable schema;
+    private final AuditWebhook audit;
+    private final AsyncDatabase async;
+    private final RoleReconciler roles;
+    private final MetricRegistry metrics;
+    private final SlowQueryLog slowQueries;
+    private final RatingLog ratingLog;
+
+    public Database(String url, String user, String pass, long webhookId, String webhookToken,
+                    int leaderboardSize, int poolSize, int threads,
+                    int writeQueueSize, int writeBatchSize, long writeFlushMillis, int auditBufferSize,
+                    long slowQueryMillis, @Nullable String ratingLogPathname)
             throws SQLException, ClassNotFoundException, IllegalAccessException, InstantiationException
     {
         Class.forName("org.h2.Driver").newInstance();
 
-        connection = DriverManager.getConnection(url, user, pass);
+        metrics = new MetricRegistry();
+        pool = new ConnectionPool(url, user, pass, poolSize, metrics);
+
+        // Slow statements aren't logged if there is no threshold
+        slowQueries = slowQueryMillis > 0 ? new SlowQueryLog(pool, slowQueryMillis) : null;
+        if(slowQueries != null)
+            pool.setSlowQueryLog(slowQueries);
+
+        // Ratings are kept in the tables unless there is a log for them
+        ratingLog = ratingLogPathname == null ? null : new RatingLog(Paths.get(ratingLogPathname));
+
+        graph = new RatingGraph();
+        stats = new GlobalStats();
+        calcTable = new CalculationsTable(pool, graph, stats, leaderboardSize, ratingLog);
+        ratings = new RatingsTable(pool, calcTable, graph, stats, writeQueueSize, writeBatchSize, writeFlushMillis,
+                ratingLog);
+        guildSettings = new GuildSettingsTable(pool);
+        privateSettings = new PrivateSettingsTable(pool);
+        statistics = new StatisticsTable(pool, stats);
+        schema = new SchemaTable(pool);
+
+        // Ratings aren't audited without a webhook, such as when running offline
+        audit = webhookToken == null ? null : new AuditWebhook(webhookId, webhookToken, auditBufferSize);
+        async = new AsyncDatabase(this, threads);
+        roles = new RoleReconciler(this);
+        calcTable.addRatingChangeListener(roles::queueUser);
+
+        registerMetrics();
+    }
 
-        calcTable = new CalculationsTable(connection);
-        ratings = new RatingsTable(connection, calcTable);
-        guildSettings = new GuildSettingsTable(connection);
-        privateSettings = new PrivateSettingsTable(connection);
+    // Counts and queues kept elsewhere, read when the metrics are
+    private void registerMetrics()
+    {
+        metrics.counter("pool.borrows", pool::getBorrowCount);
+        metrics.counter("pool.waits", pool::getWaitCount);
+        metrics.counter("pool.timeouts", pool::getTimeoutCount);
+        metrics.counter("pool.statements.hits", pool::getStatementHitCount);
+        metrics.counter("pool.statements.misses", pool::getStatementMissCount);
+        metrics.gauge("pool.active", pool::getActiveCount);
+        metrics.gauge("pool.idle", pool::getIdleCount);
+
+        metrics.counter("ratings.lookups.rated", calcTable::getRatedLookupCount);
+        metrics.counter("ratings.lookups.unrated", calcTable::getUnratedLookupCount);
+        metrics.gauge("ratings.memory", calcTable::getMemoryEstimate);
+
+        WriteQueue<?> writes = ratings.getWriteQueue();
+        metrics.gauge("writes.queued", writes::size);
+        metrics.counter("writes.written", writes::getWrittenCount);
+        metrics.counter("writes.flushes", writes::getFlushCount);
+        metrics.counter("writes.blocked", writes::getBlockedCount);
+        metrics.counter("writes.failures", writes::getFailureCount);
+        metrics.counter("writes.dropped", writes::getDroppedCount);
+
+        metrics.gauge("roles.queued", roles::getQueuedCount);
+        metrics.counter("roles.checked", roles::getMembersChecked);
+        metrics.gauge("roles.dispatch.queued", roles.getDispatcher()::getQueuedCount);
+        metrics.counter("roles.dispatch.requests", roles.getDispatcher()::getRequestCount);
+        metrics.counter("roles.dispatch.failures", roles.getDispatcher()::getFailureCount);
+
+        if(ratingLog != null)
+        {
+            metrics.gauge("ratings.log.records", ratingLog::getRecordCount);
+            metrics.gauge("ratings.log.bytes", ratingLog::getSize);
+            metrics.gauge("ratings.log.full", () -> ratingLog.isFull() ? 1 : 0);
+            metrics.counter("ratings.log.appended", ratingLog::getAppendedCount);
+            metrics.counter("ratings.log.corrupted", ratingLog::getCorruptedCount);
+            metrics.counter("ratings.log.compactions", ratingLog::getCompactionCount);
+        }
 
-        webhook = new WebhookClientBuilder(webhookId, webhookToken).setExecutorService(EXECUTOR).build();
+        if(slowQueries != null)
+        {
+            metrics.counter("slow_queries.logged", slowQueries::getLoggedCount);
+            metrics.counter("slow_queries.unexplained", slowQueries::getUnexplainedCount);
+        }
+
+        if(audit != null)
+        {
+            metrics.gauge("webhook.buffered", audit::getBufferedCount);
+            metrics.counter("webhook.sends", audit::getMessageCount);
+            metrics.counter("webhook.dropped", audit::getDroppedCount);
+        }
     }
 
     public void init() throws SQLException
     {
-        for(Table table : Table.values())
+        try (Connection connection = pool.getConnection())
         {
-            try (ResultSet results = connection.getMetaData().getTables(null, null, table.name(), null))
+            createTables(connection);
+        }
+
+        // Bring older databases up to date before anything is read from them
+        int migrated = schema.migrate();
+        if(migrated > 0)
+            LOG.info("Migrated schema to version {}!", SchemaTable.getLatestVersion());
+
+        // Load everything into memory
+        LOG.info("Loading ratings...");
+        if(ratingLog == null)
+        {
+            calcTable.load();
+            ratings.load();
+        }
+        else
+        {
+            loadRatingLog();
+        }
+        guildSettings.load();
+        privateSettings.load();
+        LOG.info("Loaded {} ratings of {} users!", graph.getRatingCount(), graph.getRegisteredCount());
+        LOG.info("Loaded role links for {} guilds!", guildSettings.getGuildCount());
+
+        // Stats that don't agree with what was loaded are out of date, so recount them
+        if(!statistics.load() || stats.getRatings() != graph.getRatingCount()
+                              || stats.getUsers() != graph.getRegisteredCount())
+        {
+            LOG.info("Recounting statistics...");
+            graph.computeStats(stats);
+            statistics.save();
+        }
+
+        ratings.startWriting();
+
+        EXECUTOR.scheduleWithFixedDelay(this::saveStatistics, 1, 1, TimeUnit.MINUTES);
+
+        // Re-ratings leave old records behind in the log
+        if(ratingLog != null)
+        {
+            EXECUTOR.scheduleWithFixedDelay(() -> {
+                long start = System.nanoTime();
+                try {
+                    ratingLog.compactIfNeeded(graph);
+                } catch(IOException e) {
+                    LOG.warn("Failed to compact the rating log: ",e);
+                } finally {
+                    metrics.timer("task.compactRatingLog").recordSince(start);
+                }
+            }, 10, 10, TimeUnit.MINUTES);
+        }
+    }
+
+    // Replays the log into the graph and calculates everyone from it. A new
+    // log starts with whatever is in the tables, so switching loses nothing.
+    private void loadRatingLog() throws SQLException
+    {
+        try {
+            ratingLog.open();
+            if(ratingLog.isEmpty())
             {
-                // Only create if there is no table
-                if(!results.next())
-                    table.createUsing(connection);
+                LOG.info("Copying ratings into a new rating log...");
+                calcTable.copyTo(ratingLog);
+                ratings.copyTo(ratingLog);
+                ratingLog.flush();
             }
+        } catch(IOException e) {
+            throw new SQLException("Failed to open the rating log!", e);
         }
+
+        ratingLog.load(graph);
+        graph.recalculateAll();
+        calcTable.loadRanks();
+        LOG.info("Replayed {} rating log records!", ratingLog.getRecordCount());
     }
 
     // Only fire this once!
     public void updateTopRatings(Message message, long delay, TimeUnit unit)
     {
+        updateTopRatings(message, delay, unit, -1L);
+    }
+
+    private void updateTopRatings(Message message, long delay, TimeUnit unit, long lastVersion)
+    {
+        long start = System.nanoTime();
+        long version = calcTable.getTopVersion();
+
+        // Nothing has changed, so don't bother editing
+        if(version == lastVersion)
+        {
+            metrics.timer("task.updateTopRatings").recordSince(start);
+            EXECUTOR.schedule(() -> updateTopRatings(message, delay, unit, version), delay, unit);
+            return;
+        }
+
         EmbedBuilder b = new EmbedBuilder();
 
         b.setTitle(Bot.Config.SUCCESS_EMOJI + " __**TOP RATED USERS**__ " + Bot.Config.SUCCESS_EMOJI);
 
-        try {
-            int i = 1;
-            for(Long userId : calcTable.getTop20())
-            {
-                b.appendDescription("`"+(i < 10 ? "0": "")+i+"` - ");
-
-                short rating = getUserRating(userId);
-                for(short balloon = 1; balloon <= 5; balloon++)
-                {
-                    if(balloon < rating)
-                        b.appendDescription("\uD83C\uDF88");
-                    else
-                        b.appendDescription("\u25AA");
-                }
-                b.appendDescription(" - ");
+        StringBuilder description = new StringBuilder();
+        int i = 1;
+        for(long userId : getTopRatings())
+        {
+            StringBuilder line = new StringBuilder("`"+(i < 10 ? "0": "")+i+"` - ");
 
-                Member member = message.getGuild().getMemberById(userId);
-                if(member != null)
-                    b.appendDescription(member.getAsMention());
+            short rating = getUserRating(userId);
+            for(short balloon = 1; balloon <= 5; balloon++)
+            {
+                if(balloon < rating)
+                    line.append("\uD83C\uDF88");
                 else
-                    b.appendDescription("<@"+userId+">");
+                    line.append("\u25AA");
+            }
+            line.append(" - ");
 
-                b.appendDescription("\n");
+            Member member = message.getGuild().getMemberById(userId);
+            if(member != null)
+                line.append(member.getAsMention());
+            else
+                line.append("<@").append(userId).append(">");
 
-                i++;
-            }
-        } catch(SQLException e) {
-            LOG.warn("Encountered an SQLException: ",e);
+            line.append("\n");
 
-            // Retry again later
-            EXECUTOR.schedule(() -> updateTopRatings(message,delay,unit), delay, unit);
-            return;
+            // Larger boards may not fit in a single embed
+            if(description.length() + line.length() > MessageEmbed.TEXT_MAX_LENGTH)
+                break;
+            description.append(line);
+
+            i++;
         }
 
+        b.setDescription(description);
         b.setColor(message.getGuild().getSelfMember().getColor());
         b.setFooter("Last Updated", null);
         b.setTimestamp(message.getEditedTime().plus(delay, ChronoUnit.MINUTES));
 
+        metrics.timer("task.updateTopRatings").recordSince(start);
+
         // Update again later
         message.editMessage(b.build()).queueAfter(
                 delay, unit,
-                msg -> updateTopRatings(message, delay, unit),
-                err -> updateTopRatings(message, delay, unit),
+                msg -> updateTopRatings(message, delay, unit, version),
+                err -> updateTopRatings(message, delay, unit, lastVersion),
                 EXECUTOR
         );
     }
 
     // Only fire this once!
-    public void updateRoles(JDA jda, long delay, TimeUnit unit)
+    // Roles are fixed as ratings and role links change, and every guild is
+    // checked again, a few at a time, at most once per sweep delay.
+    public void reconcileRoles(JDA jda, long sweepDelay, TimeUnit unit)
     {
-        final SnowflakeCacheView<Guild> guilds;
-        if(jda.getShardInfo() != null)
-            guilds = jda.asBot().getShardManager().getGuildCache();
-        else
-            guilds = jda.getGuildCache();
-
-        guilds.forEach(guild -> {
-            for(short rating = 1; rating <= 5; rating++)
-            {
-                short r = rating;
-                Role role = getRatingRole(guild, r);
+        roles.start(jda, sweepDelay, unit);
+    }
 
-                // There is a role
-                if(role != null)
-                {
-                    guild.getMembersWithRoles(role).stream().filter(member -> {
-                        return getUserRating(member.getUser()) != r; // Has a role that doesn't represent their rank
-                    }).forEach(member ->
-                            guild.getController().removeRolesFromMember(member, role).queue(v -> {}, v -> {}));
-
-                    getMembersByRating(r, guild).stream().filter(member -> {
-                        return !member.getRoles().contains(role); // Doesn't have the proper role
-                    }).forEach(member ->
-                            guild.getController().addRolesToMember(member, role).queue(v -> {}, v -> {}));
-                }
-            }
-        });
+    // Fixes a single member's rating roles right away
+    public void reconcileRoles(Member member)
+    {
+        long start = System.nanoTime();
+        try {
+            roles.reconcile(member);
+        } finally {
+            metrics.timer("database.reconcileRoles").recordSince(start);
+        }
+    }
 
-        EXECUTOR.schedule(() -> updateRoles(jda, delay, unit), delay, unit);
+    public RoleReconciler getRoleReconciler()
+    {
+        return roles;
     }
 
     public boolean ratingEquals(User user, User target, short rating)
     {
+        long start = System.nanoTime();
         try {
-            return ratings.hasRated(user.getIdLong(), target.getIdLong()) && getRating(user, target) == rating;
-        } catch(SQLException e) {
-            LOG.warn("Encountered an SQLException: ",e);
-            return false;
+            return ratings.hasRated(user.getIdLong(), target.getIdLong())
+                   && ratings.getRating(user.getIdLong(), target.getIdLong()) == rating;
+        } finally {
+            metrics.timer("database.ratingEquals").recordSince(start);
         }
     }
 
@@ -187,11 +347,11 @@ public class Database
 
     public short getRating(long userId, long targetId)
     {
+        long start = System.nanoTime();
         try {
             return ratings.getRating(userId, targetId);
-        } catch(SQLException e) {
-            LOG.warn("Encountered an SQLException: ",e);
-            return -1;
+        } finally {
+            metrics.timer("database.getRating").recordSince(start);
         }
     }
 
@@ -201,44 +361,75 @@ public class Database
     }
 
     public short getUserRating(long userId)
+    {
+        long start = System.nanoTime();
+        try {
+            return calcTable.getUserRating(userId);
+        } finally {
+            metrics.timer("database.getUserRating").recordSince(start);
+        }
+    }
+
+    public void setRating(User user, User target, short rating)
     {
         try {
-            return calcTable.getUserRating(userId, false);
+            rate(user, target, rating);
         } catch(SQLException e) {
             LOG.warn("Encountered an SQLException: ",e);
-            return -1;
         }
     }
 
-    public void setRating(User user, User target, short rating)
+    // Timed here rather than in setRating so ratings made asynchronously are timed too
+    void rate(User user, User target, short rating) throws SQLException
     {
+        // Sends rating to the database
+        long start = System.nanoTime();
         try {
-            // Sends rating to the database
             ratings.setRating(user.getIdLong(), target.getIdLong(), rating);
+        } finally {
+            metrics.timer("database.setRating").recordSince(start);
+        }
 
-            StringBuilder msg = new StringBuilder(String.format(WEBHOOK_FORMAT, Bot.Config.SUCCESS_EMOJI,
-                    user.getName(), user.getDiscriminator(), user.getIdLong(),
-                    target.getName(), target.getDiscriminator(), target.getIdLong(),
-                    rating));
+        if(audit == null)
+            return;
 
-            for(short balloons = 1; balloons <= rating; balloons++)
-            {
-                msg.append(" " + Bot.Config.BOT_EMOJI);
-            }
+        StringBuilder msg = new StringBuilder(String.format(WEBHOOK_FORMAT, Bot.Config.SUCCESS_EMOJI,
+                user.getName(), user.getDiscriminator(), user.getIdLong(),
+                target.getName(), target.getDiscriminator(), target.getIdLong(),
+                rating));
 
-            webhook.send(msg.toString());
-        } catch(SQLException e) {
-            LOG.warn("Encountered an SQLException: ",e);
+        for(short balloons = 1; balloons <= rating; balloons++)
+        {
+            msg.append(" " + Bot.Config.BOT_EMOJI);
+        }
+
+        audit.log(msg.toString());
+    }
+
+    // Null if there is no webhook
+    public AuditWebhook getAuditWebhook()
+    {
+        return audit;
+    }
+
+    // IDs of the highest rated users, best first
+    public long[] getTopRatings()
+    {
+        long start = System.nanoTime();
+        try {
+            return calcTable.getTop();
+        } finally {
+            metrics.timer("database.getTopRatings").recordSince(start);
         }
     }
 
     public List<Member> getMembersByRating(short rating, Guild guild)
     {
+        long start = System.nanoTime();
         try {
             return calcTable.getMembersByRating(rating, guild);
-        } catch(SQLException e) {
-            LOG.warn("Encountered an SQLException", e);
-            return Collections.emptyList();
+        } finally {
+            metrics.timer("database.getMembersByRating").recordSince(start);
         }
     }
 
@@ -249,11 +440,11 @@ public class Database
 
     public Map<Long, Short> getRatingsTo(long userId)
     {
+        long start = System.nanoTime();
         try {
             return ratings.getAllUsersRating(userId);
-        } catch(SQLException e) {
-            LOG.warn("Encountered an SQLException: ",e);
-            return Collections.emptyMap();
+        } finally {
+            metrics.timer("database.getRatingsTo").recordSince(start);
         }
     }
 
@@ -264,142 +455,231 @@ public class Database
 
     public Map<Long, Short> getRatingsFrom(long userId)
     {
+        long start = System.nanoTime();
         try {
             return ratings.getRatingsByUser(userId);
-        } catch(SQLException e) {
-            LOG.warn("Encountered an SQLException: ",e);
-            return Collections.emptyMap();
+        } finally {
+            metrics.timer("database.getRatingsFrom").recordSince(start);
         }
     }
 
     @Nullable
     public Role getRatingRole(Guild guild, short number)
     {
-        final Role role;
+        long start = System.nanoTime();
         try {
             long roleId = guildSettings.getRoleId(guild, number);
             if(roleId == -1L)
-                role = null;
+                return null;
             else
-                role = guild.getRoleById(roleId);
-        } catch(SQLException e) {
-            LOG.warn("Encountered an SQLException: ",e);
-            return null;
+                return guild.getRoleById(roleId);
+        } finally {
+            metrics.timer("database.getRatingRole").recordSince(start);
         }
-        return role;
     }
 
     public void setRatingRole(Role role, short number)
     {
+        long start = System.nanoTime();
         try {
-            guildSettings.setRole(role, number);
+            long guildId = role.getGuild().getIdLong();
+            long replaced = guildSettings.setRole(role, number);
+
+            // Members keep the role it replaced unless it's taken back
+            if(replaced != 0L && replaced != role.getIdLong())
+                roles.queueUnlinkedRole(guildId, replaced);
+            else
+                roles.queueGuild(guildId);
         } catch(SQLException e) {
             LOG.warn("Encountered an SQLException: ",e);
+        } finally {
+            metrics.timer("database.setRatingRole").recordSince(start);
         }
     }
 
-    // IMPORTANT!!
-    // This has THREE return cases:
     // if this returns -1, the role has not been linked to a rating.
-    // if this returns 0, there was an SQL Error, and no further action should be taken.
     // if this returns 1, 2, 3, 4, or 5, the role has been linked to a rating of the returns.
     public short getRoleRating(Role role)
     {
+        long start = System.nanoTime();
         try {
             return guildSettings.getRoleRating(role);
-        } catch(SQLException e) {
-            LOG.warn("Encountered an SQLException: ",e);
-            return 0;
+        } finally {
+            metrics.timer("database.getRoleRating").recordSince(start);
         }
     }
 
     public boolean isUsingDMChanges(User user)
     {
+        long start = System.nanoTime();
         try {
             return privateSettings.isUsingDMChanges(user);
-        } catch(SQLException e) {
-            LOG.warn("Encountered an SQLException: ",e);
-            return false; // Default to false
+        } finally {
+            metrics.timer("database.isUsingDMChanges").recordSince(start);
         }
     }
 
     public void setUsingDMChanges(User user, boolean isUsing)
     {
+        long start = System.nanoTime();
         try {
             privateSettings.setUsingDMChanges(user, isUsing);
         } catch(SQLException e) {
             LOG.warn("Encountered an SQLException: ",e);
+        } finally {
+            metrics.timer("database.setUsingDMChanges").recordSince(start);
         }
     }
 
     public double getGlobalAverage()
     {
-        double returns = 0;
-        try(Statement statement = connection.createStatement())
-        {
-            try(ResultSet results = statement.executeQuery("SELECT TRUE_RATING FROM CALCULATIONS"))
-            {
-                int total = 0;
-                while(results.next())
-                {
-                    total++;
-                    returns += results.getDouble("TRUE_RATING");
-                }
-                returns /= total;
-            }
+        long start = System.nanoTime();
+        try {
+            return stats.getAverage();
+        } finally {
+            metrics.timer("database.getGlobalAverage").recordSince(start);
+        }
+    }
+
+    public long getGlobalTotalRatings()
+    {
+        long start = System.nanoTime();
+        try {
+            return stats.getRatings();
+        } finally {
+            metrics.timer("database.getGlobalTotalRatings").recordSince(start);
+        }
+    }
+
+    public long getGlobalRaters()
+    {
+        long start = System.nanoTime();
+        try {
+            return stats.getRaters();
+        } finally {
+            metrics.timer("database.getGlobalRaters").recordSince(start);
+        }
+    }
+
+    public long getGlobalTargets()
+    {
+        long start = System.nanoTime();
+        try {
+            return stats.getTargets();
+        } finally {
+            metrics.timer("database.getGlobalTargets").recordSince(start);
+        }
+    }
+
+    // Number of users with an effective rating of the number
+    public long getGlobalTierCount(short number)
+    {
+        long start = System.nanoTime();
+        try {
+            return stats.getTier(number);
+        } finally {
+            metrics.timer("database.getGlobalTierCount").recordSince(start);
+        }
+    }
+
+    private void saveStatistics()
+    {
+        long start = System.nanoTime();
+        try {
+            if(stats.checkChanged())
+                statistics.save();
         } catch(SQLException e) {
             LOG.warn("Encountered an SQLException: ",e);
-            returns = -1;
+        } finally {
+            metrics.timer("task.saveStatistics").recordSince(start);
         }
-        return returns;
     }
 
-    public long getGlobalTotalRatings()
+    // Whether the database can still be reached, and ratings still have somewhere to go
+    public boolean isHealthy()
     {
-        long returns = 0;
-        try(Statement statement = connection.createStatement())
+        if(ratingLog != null && ratingLog.isFull())
         {
+            LOG.warn("The rating log is full, ratings are not being saved!");
+            return false;
+        }
 
-            try(ResultSet results = statement.executeQuery("SELECT * FROM RATINGS"))
-            {
-                while(results.next())
-                    returns += 1L;
-            }
+        try (Connection connection = pool.getConnection()) {
+            return connection.isValid(HEALTH_TIMEOUT_SECONDS);
         } catch(SQLException e) {
             LOG.warn("Encountered an SQLException: ",e);
-            returns = -1;
+            return false;
         }
-
-        return returns;
     }
 
     @SuppressWarnings("unused")
     public void evaluate(String sql) throws SQLException
     {
-        try (Statement statement = connection.createStatement())
+        long start = System.nanoTime();
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement())
         {
             statement.execute(sql);
+        } finally {
+            metrics.timer("database.evaluate").recordSince(start);
         }
     }
 
     @SuppressWarnings("unused")
     public void evaluate(String sql, Consumer<ResultSet> resultConsumer) throws SQLException
     {
-        try (Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_UPDATABLE))
+        long start = System.nanoTime();
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_UPDATABLE))
         {
             try (ResultSet results = statement.executeQuery(sql))
             {
                 resultConsumer.accept(results);
             }
+        } finally {
+            metrics.timer("database.evaluate").recordSince(start);
         }
     }
 
+    // Everything that can fail, without blocking the caller
+    public AsyncDatabase async()
+    {
+        return async;
+    }
+
+    CalculationsTable getCalculationsTable()
+    {
+        return calcTable;
+    }
+
+    RatingsTable getRatingsTable()
+    {
+        return ratings;
+    }
+
+    public ConnectionPool getConnectionPool()
+    {
+        return pool;
+    }
+
+    public MetricRegistry getMetrics()
+    {
+        return metrics;
+    }
+
+    // Null if slow statements aren't logged
+    @Nullable
+    public SlowQueryLog getSlowQueryLog()
+    {
+        return slowQueries;
+    }
+
     @SuppressWarnings("unused")
     public long getPing()
     {
         long start = System.currentTimeMillis();
 
-        try {
+        try (Connection connection = pool.getConnection()) {
             connection.getMetaData();
         } catch(SQLException e) {
             LOG.warn("Encountered an SQLException: ",e);
@@ -410,17 +690,50 @@ public class Database
 
     public void shutdown()
     {
-        // Close webhook
-        webhook.close();
-
         EXECUTOR.shutdownNow();
+        roles.shutdown();
 
-        LOG.info("Attempting to close JDBC connection...");
-        try {
-            connection.close();
-            LOG.info("JDBC connection has been closed!");
-        } catch(SQLException e) {
-            LOG.warn("Encountered an SQLException: ",e);
+        // Let anything already running finish its writes and audit lines
+        async.shutdown();
+
+        // Ratings waiting to be written must be written before anything closes
+        LOG.info("Writing {} queued ratings...", ratings.getWriteQueue().size());
+        ratings.stopWriting();
+
+        // Send what's left of the audit log, now nothing can add to it
+        if(audit != null)
+            audit.close();
+
+        if(ratingLog != null)
+        {
+            try {
+                ratingLog.close();
+            } catch(IOException e) {
+                LOG.warn("Failed to close the rating log: ",e);
+            }
+        }
+
+        saveStatistics();
+
+        if(slowQueries != null)
+            slowQueries.shutdown();
+
+        LOG.info("Attempting to close JDBC connections...");
+        pool.close();
+        LOG.info("JDBC connections have been closed!");
+    }
+
+    // Creates any tables that don't exist yet, as they were before any migrations
+    public static void createTables(Connection connection) throws SQLException
+    {
+        for(Table table : Table.values())
+        {
+            try (ResultSet results = connection.getMetaData().getTables(null, null, table.name(), null))
+            {
+                // Only create if there is no table
+                if(!results.next())
+                    table.createUsing(connection);
+            }
         }
     }
 
@@ -452,6 +765,17 @@ public class Database
                 "ROLE_3 LONG",
                 "ROLE_4 LONG",
                 "ROLE_5 LONG"
+        ),
+
+        STATISTICS(
+                "NAME VARCHAR(32)",
+                "VALUE DOUBLE"
+        ),
+
+        SCHEMA_VERSION(
+                "VERSION INT",
+                "DESCRIPTION VARCHAR(255)",
+                "APPLIED TIMESTAMP"
         );
 
         private final String[] typeAndColumn;
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.data;
+
+/**
+ * Running totals over every rating and user, updated as they are written
+ * so that global statistics never have to scan a table.
+ *
+ * @author Kaidan Gustave
+ */
+public class GlobalStats
+{
+    private long ratings = 0;
+    private long raters = 0;
+    private long targets = 0;
+    private long users = 0;
+    private double trueRatingSum = 0;
+    private final long[] tiers = new long[5]; // Users with each effective rating 1-5
+
+    private boolean changed = false;
+
+    synchronized void addRating(boolean newRater, boolean newTarget)
+    {
+        ratings++;
+        if(newRater)
+            raters++;
+        if(newTarget)
+            targets++;
+        changed = true;
+    }
+
+    // The old rating is NaN if the user is new.
+    synchronized void updateUser(double oldTrueRating, double newTrueRating)
+    {
+        if(Double.isNaN(oldTrueRating))
+        {
+            users++;
+        }
+        else
+        {
+            trueRatingSum -= oldTrueRating;
+            moveTier(oldTrueRating, -1);
+        }
+        trueRatingSum += newTrueRating;
+        moveTier(newTrueRating, 1);
+        changed = true;
+    }
+
+    synchronized void restore(long ratings, long raters, long targets, long users, double trueRatingSum, long[] tiers)
+    {
+        this.ratings = ratings;
+        this.raters = raters;
+        this.targets = targets;
+        this.users = users;
+        this.trueRatingSum = trueRatingSum;
+        System.arraycopy(tiers, 0, this.tiers, 0, this.tiers.length);
+        this.changed = false;
+    }
+
+    // Returns if anything changed since this was last called.
+    synchronized boolean checkChanged()
+    {
+        boolean wasChanged = changed;
+        changed = false;
+        return wasChanged;
+    }
+
+    public synchronized long getRatings()
+    {
+        return ratings;
+    }
+
+    public synchronized long getRaters()
+    {
+        return raters;
+    }
+
+    public synchronized long getTargets()
+    {
+        return targets;
+    }
+
+    public synchronized long getUsers()
+    {
+        return users;
+    }
+
+    public synchronized double getTrueRatingSum()
+    {
+        return trueRatingSum;
+    }
+
+    public synchronized double getAverage()
+    {
+        return trueRatingSum / users;
+    }
+
+    // Number of users with the effective rating, or 0 if it's not 1-5.
+    public synchronized long getTier(short rating)
+    {
+        return rating < 1 || rating > 5 ? 0 : tiers[rating - 1];
+    }
+
+    public synchronized long[] getTiers()
+    {
+        return tiers.clone();
+    }
+
+    private void moveTier(double trueRating, int amount)
+    {
+        long rating = Math.round(trueRating);
+        if(rating >= 1 && rating <= 5)
+            tiers[(int) rating - 1] += amount;
+    }
+}
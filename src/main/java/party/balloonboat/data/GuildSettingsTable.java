@@ -19,9 +19,11 @@ import net.dv8tion.jda.core.entities.Guild;
 import net.dv8tion.jda.core.entities.Role;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Kaidan Gustave
@@ -38,110 +40,111 @@ public class GuildSettingsTable extends TableHandler
      * col long ROLE_5
      */
 
-    public GuildSettingsTable(Connection connection)
-    {
-        super(connection, Database.Table.GUILD_SETTINGS);
+    private static final String SELECT_ALL =
+            "SELECT GUILD_ID, ROLE_1, ROLE_2, ROLE_3, ROLE_4, ROLE_5 FROM GUILD_SETTINGS";
+
+    // Columns can't be parameters, so there is one query for each role number
+    private static final String[] UPSERT_ROLE = new String[5];
+
+    static {
+        for(int i = 1; i <= 5; i++)
+            UPSERT_ROLE[i - 1] = upsert(Database.Table.GUILD_SETTINGS, new String[] {"GUILD_ID"}, "ROLE_"+i);
     }
 
-    public boolean hasRow(Guild guild) throws SQLException
+    // Every guild's row is kept in memory and written through, so reads never query.
+    // Role arrays are replaced rather than changed, so they can be read without locking.
+    private final Map<Long, long[]> guildRoles = new ConcurrentHashMap<>();
+    private final Map<Long, Short> roleRatings = new ConcurrentHashMap<>();
+
+    public GuildSettingsTable(ConnectionPool pool)
     {
-        boolean returns;
-        try (Statement statement = connection.createStatement())
-        {
-            try (ResultSet results = statement.executeQuery("SELECT * FROM "+table.name()+" WHERE GUILD_ID = "+guild.getIdLong()))
-            {
-                // if there is a row then it will be true, if not it will be false
-                returns = results.next();
-            }
-        }
-        return returns;
+        super(pool, Database.Table.GUILD_SETTINGS);
     }
 
-    public short getRoleRating(Role role) throws SQLException
+    void load() throws SQLException
     {
-        short returns = -1;
-        try (Statement statement = connection.createStatement())
+        try (Connection connection = pool.getConnection())
         {
-            try (ResultSet set = statement.executeQuery("SELECT * FROM "+table.name()+" " +
-                                                        "WHERE GUILD_ID = "+role.getGuild().getIdLong()))
+            try (ResultSet results = prepare(connection, SELECT_ALL).executeQuery())
             {
-                if(set.next())
+                while(results.next())
                 {
-                    for(short i = 1; i <= 5; i++)
-                    {
-                        long forRole = set.getLong("ROLE_"+i);
-                        if(forRole != 0L && forRole == role.getIdLong())
-                        {
-                            returns = i;
-                            break;
-                        }
-                    }
+                    long[] roles = new long[5];
+                    for(int i = 0; i < 5; i++)
+                        roles[i] = results.getLong(i + 2);
+                    cache(results.getLong(1), roles);
                 }
             }
         }
-        return returns;
     }
 
-    public long getRoleId(Guild guild, short number) throws SQLException
+    public boolean hasRow(Guild guild)
     {
-        final long returns;
-        try (Statement statement = connection.createStatement())
-        {
-            try (ResultSet set = statement.executeQuery("SELECT ROLE_"+number+" FROM "+table.name()+" " +
-                                                        "WHERE GUILD_ID = "+guild.getIdLong()))
-            {
-                if(set.next())
-                    returns = set.getLong("ROLE_"+number);
-                else
-                    returns = -1;
-            }
-        }
-        // returns -1 if the query provided null OR if the query pointed to an unset
-        // role ID (unset role IDs are saved as 0L)
-        return returns;
+        return guildRoles.containsKey(guild.getIdLong());
     }
 
-    public void setRole(Role role, short number) throws SQLException
+    public short getRoleRating(Role role)
     {
-        // If the guild already has a row already we want to update it not create a new one
-        if(hasRow(role.getGuild()))
-            update(role.getGuild().getIdLong(), role.getIdLong(), number);
-        else
-            add(role.getGuild().getIdLong(), role.getIdLong(), number);
+        return roleRatings.getOrDefault(role.getIdLong(), (short) -1);
     }
 
-    private void update(long guildId, long roleId, short number) throws SQLException
+    public long getRoleId(Guild guild, short number)
     {
-        try (Statement statement = connection.createStatement())
-        {
-            statement.execute("UPDATE "+table.name()+" SET ROLE_"+number+" = "+roleId+" WHERE GUILD_ID = "+guildId);
-        }
+        long[] roles = guildRoles.get(guild.getIdLong());
+
+        // returns -1 if the guild has no row, and 0L if the role is unset
+        return roles == null ? -1L : roles[index(number)];
     }
 
-    private void add(long guildId, long roleId, short number) throws SQLException
+    public int getGuildCount()
     {
-        try (Statement statement = connection.createStatement())
+        return guildRoles.size();
+    }
+
+    // Returns the ID of the role that was linked to the number before, or 0L if there wasn't one
+    public synchronized long setRole(Role role, short number) throws SQLException
+    {
+        long guildId = role.getGuild().getIdLong();
+        int index = index(number);
+
+        // The other roles are left alone, or are unset (0L) if the guild is new
+        try (Connection connection = pool.getConnection())
         {
-            StringBuilder valueB = new StringBuilder("(").append(guildId).append(", ");
+            PreparedStatement statement = prepare(connection, UPSERT_ROLE[index]);
+            statement.setLong(1, guildId);
+            statement.setLong(2, role.getIdLong());
+            statement.execute();
+        }
 
-            for(int i = 1; i <= 5; i++)
-            {
-                // Unset role ID's are saved as 0L
-                if(number != i)
-                    valueB.append(0L);
-                else
-                    valueB.append(roleId);
-
-                // Last parameter is doesn't require a comma after it
-                if(i < 5)
-                    valueB.append(", ");
-            }
-            valueB.append(")");
+        long[] roles = guildRoles.get(guildId);
+        roles = roles == null ? new long[5] : roles.clone();
+        long replaced = roles[index];
+        roles[index] = role.getIdLong();
+        cache(guildId, roles);
+        return replaced;
+    }
 
-            String values = valueB.toString();
+    private void cache(long guildId, long[] roles)
+    {
+        long[] previous = guildRoles.put(guildId, roles);
+        if(previous != null)
+        {
+            for(long roleId : previous)
+                roleRatings.remove(roleId);
+        }
 
-            // Concat and execute SQL String with values.
-            statement.execute("INSERT INTO "+table.name()+" (GUILD_ID, ROLE_1, ROLE_2, ROLE_3, ROLE_4, ROLE_5) VALUES "+values);
+        // A role linked to more than one rating is said to be the lowest one
+        for(short i = 5; i >= 1; i--)
+        {
+            if(roles[i - 1] != 0L)
+                roleRatings.put(roles[i - 1], i);
         }
     }
+
+    private static int index(short number)
+    {
+        if(number < 1 || number > 5)
+            throw new IllegalArgumentException("Role number must be from 1 to 5!");
+        return number - 1;
+    }
 }
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.data;
+
+import java.util.Arrays;
+
+/**
+ * The top rated users, kept up to date as ratings change.
+ *
+ * <p>Users are ordered by true rating descending, with ties going to the
+ * higher user ID, which is the reverse of {@link RankIndex}. When a user on
+ * the board drops off it, the next best user is pulled from the rank index.
+ * The rank index must always be updated before the board is.
+ *
+ * <p>Every change increments the version, so callers can cheaply check if
+ * the board is any different from the last time they looked.
+ *
+ * @author Kaidan Gustave
+ */
+public class Leaderboard
+{
+    public static final int DEFAULT_SIZE = 20;
+
+    private final RankIndex ranks;
+    private final int capacity;
+    private final long[] userIds;
+    private final double[] ratings;
+    private int size = 0;
+
+    private volatile long version = 0;
+
+    public Leaderboard(RankIndex ranks, int capacity)
+    {
+        if(capacity < 1)
+            throw new IllegalArgumentException("Leaderboard size must be at least 1!");
+        this.ranks = ranks;
+        this.capacity = capacity;
+        this.userIds = new long[capacity];
+        this.ratings = new double[capacity];
+    }
+
+    // Must be called after the rank index has been updated with the same rating.
+    public synchronized void update(long userId, double rating)
+    {
+        int index = indexOf(userId);
+        if(index != -1)
+        {
+            // No change in rating means no change in order
+            if(ratings[index] == rating)
+                return;
+
+            removeAt(index);
+
+            // Whoever is ranked just below the rest of the board deserves the open spot,
+            // unless it's someone already on the board, in which case this user still does.
+            long next = ranks.getUserAt(ranks.size() - size);
+            if(next == -1L || next == userId || indexOf(next) != -1)
+                insert(userId, rating);
+            else
+                insert(next, ranks.getRating(next));
+        }
+        else if(size < capacity || beats(rating, userId, size - 1))
+        {
+            insert(userId, rating);
+            if(size > capacity)
+                size--;
+        }
+        else
+        {
+            // Not on the board and not good enough to get on it
+            return;
+        }
+
+        fill();
+        version++;
+    }
+
+    // Rebuilds the board from scratch using the rank index.
+    public synchronized void rebuild()
+    {
+        size = 0;
+        fill();
+        version++;
+    }
+
+    public synchronized long[] getTop()
+    {
+        return Arrays.copyOf(userIds, size);
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public long getVersion()
+    {
+        return version;
+    }
+
+    public boolean hasChangedSince(long version)
+    {
+        return this.version != version;
+    }
+
+    // While the board holds exactly the best "size" users, the next
+    // best user is always the one ranked just below them.
+    private void fill()
+    {
+        int total = ranks.size();
+        while(size < capacity && size < total)
+        {
+            long userId = ranks.getUserAt(total - size);
+            if(userId == -1L || indexOf(userId) != -1)
+                break;
+            userIds[size] = userId;
+            ratings[size] = ranks.getRating(userId);
+            size++;
+        }
+    }
+
+    private void insert(long userId, double rating)
+    {
+        int index = size;
+        while(index > 0 && !beats(ratings[index - 1], userIds[index - 1], rating, userId))
+            index--;
+
+        int end = Math.min(size, capacity - 1);
+        System.arraycopy(userIds, index, userIds, index + 1, end - index);
+        System.arraycopy(ratings, index, ratings, index + 1, end - index);
+        userIds[index] = userId;
+        ratings[index] = rating;
+        size++;
+    }
+
+    private void removeAt(int index)
+    {
+        System.arraycopy(userIds, index + 1, userIds, index, size - index - 1);
+        System.arraycopy(ratings, index + 1, ratings, index, size - index - 1);
+        size--;
+    }
+
+    private int indexOf(long userId)
+    {
+        for(int i = 0; i < size; i++)
+        {
+            if(userIds[i] == userId)
+                return i;
+        }
+        return -1;
+    }
+
+    private boolean beats(double rating, long userId, int index)
+    {
+        return beats(rating, userId, ratings[index], userIds[index]);
+    }
+
+    private static boolean beats(double rating, long userId, double otherRating, long otherUserId)
+    {
+        int cmp = Double.compare(rating, otherRating);
+        return cmp > 0 || (cmp == 0 && userId > otherUserId);
+    }
+}
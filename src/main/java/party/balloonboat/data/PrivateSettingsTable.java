@@ -16,76 +16,127 @@
 package party.balloonboat.data;
 
 import net.dv8tion.jda.core.entities.User;
+import party.balloonboat.utils.LongIntMap;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
+ * Every user's flags are kept in memory and written through, so checking
+ * a flag never queries. Only users with at least one flag set are kept.
+ *
  * @author Kaidan Gustave
  */
 public class PrivateSettingsTable extends TableHandler
 {
     /*
-     * SETTINGS
+     * PRIVATE_SETTINGS
      * col long USER_ID
-     * col boolean DM_CHANGES
+     * col int FLAGS
      */
 
-    public PrivateSettingsTable(Connection connection) {
-        super(connection, Database.Table.PRIVATE_SETTINGS);
+    private static final String SELECT_ALL = "SELECT USER_ID, FLAGS FROM PRIVATE_SETTINGS WHERE FLAGS <> 0";
+    private static final String UPSERT = upsert(Database.Table.PRIVATE_SETTINGS,
+            new String[] {"USER_ID"}, "FLAGS");
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LongIntMap flags = new LongIntMap(0);
+
+    public PrivateSettingsTable(ConnectionPool pool)
+    {
+        super(pool, Database.Table.PRIVATE_SETTINGS);
     }
 
-    public boolean hasRow(User user) throws SQLException
+    void load() throws SQLException
     {
-        boolean returns;
-        try (Statement statement = connection.createStatement())
+        try (Connection connection = pool.getConnection())
         {
-            try (ResultSet results = statement.executeQuery("SELECT * FROM "+table.name()+" WHERE USER_ID = "+user.getIdLong()))
+            try (ResultSet results = prepare(connection, SELECT_ALL).executeQuery())
             {
-                // if there is a row then it will be true, if not it will be false
-                returns = results.next();
+                lock.writeLock().lock();
+                try {
+                    while(results.next())
+                        flags.put(results.getLong("USER_ID"), results.getInt("FLAGS"));
+                } finally {
+                    lock.writeLock().unlock();
+                }
             }
         }
-        return returns;
     }
 
-    public boolean isUsingDMChanges(User user) throws SQLException
+    public boolean hasRow(User user)
     {
-        final boolean returns;
-        try (Statement statement = connection.createStatement())
-        {
-            try (ResultSet results = statement.executeQuery("SELECT DM_CHANGES FROM "+table.name()+" " +
-                                                            "WHERE USER_ID = "+user.getIdLong()))
-            {
-                returns = results.next() && results.getBoolean("DM_CHANGES");
-            }
-        }
-        return returns;
+        return getFlags(user.getIdLong()) != 0;
+    }
+
+    public boolean isUsingDMChanges(User user)
+    {
+        return isSet(user.getIdLong(), UserFlag.DM_CHANGES);
     }
 
     public void setUsingDMChanges(User user, boolean isUsing) throws SQLException
     {
-        if(hasRow(user))
-            update(user.getIdLong(), isUsing);
-        else
-            add(user.getIdLong(), isUsing);
+        set(user.getIdLong(), UserFlag.DM_CHANGES, isUsing);
     }
 
-    private void add(long userId, boolean isUsing) throws SQLException
+    public boolean isSet(long userId, UserFlag flag)
     {
-        try (Statement statement = connection.createStatement())
-        {
-            statement.execute("INSERT INTO "+table.name()+" (USER_ID, DM_CHANGES) VALUES ("+userId+","+isUsing+")");
+        return flag.isSet(getFlags(userId));
+    }
+
+    public void set(long userId, UserFlag flag, boolean value) throws SQLException
+    {
+        setFlags(userId, flag.getBit(), value ? flag.getBit() : 0);
+    }
+
+    // 0 if the user has nothing set
+    public int getFlags(long userId)
+    {
+        lock.readLock().lock();
+        try {
+            return flags.get(userId);
+        } finally {
+            lock.readLock().unlock();
         }
     }
 
-    private void update(long userId, boolean isUsing) throws SQLException
+    // Sets only the bits in the mask to the given bits, leaving the rest alone
+    public synchronized void setFlags(long userId, int mask, int bits) throws SQLException
     {
-        try (Statement statement = connection.createStatement())
+        int current = getFlags(userId);
+        int updated = (current & ~mask) | (bits & mask);
+        if(updated == current)
+            return;
+
+        try (Connection connection = pool.getConnection())
         {
-            statement.execute("UPDATE "+table.name()+" SET DM_CHANGES = "+isUsing+" WHERE USER_ID = "+userId);
+            PreparedStatement statement = prepare(connection, UPSERT);
+            statement.setLong(1, userId);
+            statement.setInt(2, updated);
+            statement.execute();
+        }
+
+        lock.writeLock().lock();
+        try {
+            if(updated == 0)
+                flags.remove(userId);
+            else
+                flags.put(userId, updated);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int getUserCount()
+    {
+        lock.readLock().lock();
+        try {
+            return flags.size();
+        } finally {
+            lock.readLock().unlock();
         }
     }
 }
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.data;
+
+import party.balloonboat.utils.LongIntMap;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An order statistic index of users by true rating.
+ *
+ * <p>Users are ordered by true rating ascending, with ties broken by user ID,
+ * and positions start at 1. This is a treap where every node knows the size
+ * of its subtree, so finding a user's position or the users at a range of
+ * positions takes logarithmic time.
+ *
+ * <p>Nodes are stored in primitive arrays and removed nodes are reused.
+ *
+ * @author Kaidan Gustave
+ */
+public class RankIndex
+{
+    private static final int NIL = -1;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final LongIntMap nodes = new LongIntMap(INITIAL_CAPACITY, NIL);
+    private double[] ratings = new double[INITIAL_CAPACITY];
+    private long[] userIds = new long[INITIAL_CAPACITY];
+    private int[] priorities = new int[INITIAL_CAPACITY];
+    private int[] lefts = new int[INITIAL_CAPACITY];
+    private int[] rights = new int[INITIAL_CAPACITY];
+    private int[] sizes = new int[INITIAL_CAPACITY];
+
+    private int root = NIL;
+    private int allocated = 0;
+    private int free = NIL; // Removed nodes, linked through lefts
+    private int seed = 0x2545F491;
+
+    // Sets the user's rating, adding them if they are not already indexed.
+    public void update(long userId, double rating)
+    {
+        lock.writeLock().lock();
+        try {
+            int node = nodes.get(userId);
+            if(node != NIL)
+            {
+                if(ratings[node] == rating)
+                    return;
+                root = delete(root, rating(node), userId);
+            }
+            else
+            {
+                node = allocate();
+                nodes.put(userId, node);
+            }
+
+            ratings[node] = rating;
+            userIds[node] = userId;
+            priorities[node] = nextPriority();
+            lefts[node] = NIL;
+            rights[node] = NIL;
+            sizes[node] = 1;
+            root = insert(root, node);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(long userId)
+    {
+        lock.writeLock().lock();
+        try {
+            int node = nodes.remove(userId);
+            if(node == NIL)
+                return;
+            root = delete(root, rating(node), userId);
+            lefts[node] = free;
+            free = node;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean contains(long userId)
+    {
+        lock.readLock().lock();
+        try {
+            return nodes.containsKey(userId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Returns NaN if the user is not indexed.
+    public double getRating(long userId)
+    {
+        lock.readLock().lock();
+        try {
+            int node = nodes.get(userId);
+            return node == NIL ? Double.NaN : ratings[node];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size()
+    {
+        lock.readLock().lock();
+        try {
+            return sizeOf(root);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Position of the user, starting at 1.
+    // Users who are not indexed are said to be in the last position.
+    public int getPosition(long userId)
+    {
+        lock.readLock().lock();
+        try {
+            int node = nodes.get(userId);
+            if(node == NIL)
+                return sizeOf(root);
+
+            double rating = ratings[node];
+            int position = 1;
+            int current = root;
+            while(current != node)
+            {
+                if(compare(rating, userId, current) < 0)
+                {
+                    current = lefts[current];
+                }
+                else
+                {
+                    position += sizeOf(lefts[current]) + 1;
+                    current = rights[current];
+                }
+            }
+            return position + sizeOf(lefts[node]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // User at the position, or -1 if the position is out of range.
+    public long getUserAt(int position)
+    {
+        lock.readLock().lock();
+        try {
+            if(position < 1 || position > sizeOf(root))
+                return -1L;
+            int current = root;
+            while(true)
+            {
+                int leftSize = sizeOf(lefts[current]);
+                if(position <= leftSize)
+                {
+                    current = lefts[current];
+                }
+                else if(position == leftSize + 1)
+                {
+                    return userIds[current];
+                }
+                else
+                {
+                    position -= leftSize + 1;
+                    current = rights[current];
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Users from position "from" to position "to" inclusive, ascending.
+    // The range is clamped to the positions that exist.
+    public long[] getUsersAt(int from, int to)
+    {
+        lock.readLock().lock();
+        try {
+            from = Math.max(from, 1);
+            to = Math.min(to, sizeOf(root));
+            if(from > to)
+                return new long[0];
+            long[] users = new long[to - from + 1];
+            collect(root, from, to, 0, users);
+            return users;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void collect(int node, int from, int to, int offset, long[] users)
+    {
+        if(node == NIL)
+            return;
+        int position = offset + sizeOf(lefts[node]) + 1;
+        if(from < position)
+            collect(lefts[node], from, to, offset, users);
+        if(from <= position && position <= to)
+            users[position - from] = userIds[node];
+        if(position < to)
+            collect(rights[node], from, to, position, users);
+    }
+
+    private int insert(int current, int node)
+    {
+        if(current == NIL)
+            return node;
+
+        sizes[current]++;
+        if(compare(ratings[node], userIds[node], current) < 0)
+        {
+            lefts[current] = insert(lefts[current], node);
+            if(priorities[lefts[current]] > priorities[current])
+                current = rotateRight(current);
+        }
+        else
+        {
+            rights[current] = insert(rights[current], node);
+            if(priorities[rights[current]] > priorities[current])
+                current = rotateLeft(current);
+        }
+        return current;
+    }
+
+    private int delete(int current, double rating, long userId)
+    {
+        if(current == NIL)
+            return NIL;
+
+        int cmp = compare(rating, userId, current);
+        if(cmp < 0)
+        {
+            lefts[current] = delete(lefts[current], rating, userId);
+        }
+        else if(cmp > 0)
+        {
+            rights[current] = delete(rights[current], rating, userId);
+        }
+        else
+        {
+            return merge(lefts[current], rights[current]);
+        }
+        resize(current);
+        return current;
+    }
+
+    private int merge(int left, int right)
+    {
+        if(left == NIL)
+            return right;
+        if(right == NIL)
+            return left;
+
+        if(priorities[left] > priorities[right])
+        {
+            rights[left] = merge(rights[left], right);
+            resize(left);
+            return left;
+        }
+        else
+        {
+            lefts[right] = merge(left, lefts[right]);
+            resize(right);
+            return right;
+        }
+    }
+
+    private int rotateRight(int node)
+    {
+        int left = lefts[node];
+        lefts[node] = rights[left];
+        rights[left] = node;
+        resize(node);
+        resize(left);
+        return left;
+    }
+
+    private int rotateLeft(int node)
+    {
+        int right = rights[node];
+        rights[node] = lefts[right];
+        lefts[right] = node;
+        resize(node);
+        resize(right);
+        return right;
+    }
+
+    private int compare(double rating, long userId, int node)
+    {
+        int cmp = Double.compare(rating, ratings[node]);
+        return cmp != 0 ? cmp : Long.compare(userId, userIds[node]);
+    }
+
+    private double rating(int node)
+    {
+        return ratings[node];
+    }
+
+    private void resize(int node)
+    {
+        sizes[node] = sizeOf(lefts[node]) + sizeOf(rights[node]) + 1;
+    }
+
+    private int sizeOf(int node)
+    {
+        return node == NIL ? 0 : sizes[node];
+    }
+
+    private int allocate()
+    {
+        if(free != NIL)
+        {
+            int node = free;
+            free = lefts[node];
+            return node;
+        }
+
+        if(allocated == ratings.length)
+        {
+            int capacity = ratings.length * 2;
+            ratings = Arrays.copyOf(ratings, capacity);
+            userIds = Arrays.copyOf(userIds, capacity);
+            priorities = Arrays.copyOf(priorities, capacity);
+            lefts = Arrays.copyOf(lefts, capacity);
+            rights = Arrays.copyOf(rights, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+        }
+        return allocated++;
+    }
+
+    private int nextPriority()
+    {
+        // xorshift, we only need the heap to be balanced, not secure
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return seed;
+    }
+}
@@ -0,0 +1,577 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.data;
+
+import party.balloonboat.utils.AlgorithmUtils;
+import party.balloonboat.utils.LongIntMap;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongConsumer;
+
+/**
+ * The in-memory copy of the RATINGS and CALCULATIONS tables.
+ *
+ * <p>Every user is assigned a dense index when first seen, and all per-user
+ * state lives in primitive arrays at that index. Ratings are stored as edges
+ * in parallel arrays, with each user holding the indices of the edges going
+ * out of and coming into them.
+ *
+ * <p>This is the authoritative source for reads and recalculations, the
+ * database is only written to so that this can be rebuilt on startup.
+ *
+ * <p>A user's calculation only depends on the distinct ratings they have
+ * received, never on the ratings of who gave them, so a rating only ever
+ * recalculates its target.
+ *
+ * @author Kaidan Gustave
+ */
+public class RatingGraph
+{
+    private static final int NO_INDEX = -1;
+    private static final int INITIAL_USERS = 1024;
+    private static final int INITIAL_RATINGS = 4096;
+    private static final int INITIAL_DEGREE = 4;
+
+    // The algorithm only ever sees the distinct ratings a user has received,
+    // so there are only 32 possible inputs and every output is known ahead of
+    // time. Bit i of the mask is set if a rating of i + 1 was received.
+    private static final double[] CALCULATIONS = new double[32];
+
+    static {
+        // Nobody is calculated without being rated, so the empty set is never needed
+        CALCULATIONS[0] = Double.NaN;
+        for(int mask = 1; mask < CALCULATIONS.length; mask++)
+        {
+            Set<Short> ratingSet = new HashSet<>();
+            for(short i = 0; i < 5; i++)
+            {
+                if((mask & (1 << i)) != 0)
+                    ratingSet.add((short) (i + 1));
+            }
+            CALCULATIONS[mask] = AlgorithmUtils.calculateRating(ratingSet);
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Users
+    private final LongIntMap userIndices = new LongIntMap(INITIAL_USERS, NO_INDEX);
+    private int userCount = 0;
+    private int registeredCount = 0;
+    private long[] userIds = new long[INITIAL_USERS];
+    private double[] trueRatings = new double[INITIAL_USERS];
+    private short[] effectiveRatings = new short[INITIAL_USERS];
+    private int[] received = new int[INITIAL_USERS * 5];  // Count of each rating 1-5 received
+    private int[][] outRatings = new int[INITIAL_USERS][];
+    private int[] outDegrees = new int[INITIAL_USERS];
+    private int[][] inRatings = new int[INITIAL_USERS][];
+    private int[] inDegrees = new int[INITIAL_USERS];
+
+    // Ratings
+    private final LongIntMap ratingIndices = new LongIntMap(INITIAL_RATINGS, NO_INDEX);
+    private int ratingCount = 0;
+    private int[] raters = new int[INITIAL_RATINGS];
+    private int[] targets = new int[INITIAL_RATINGS];
+    private byte[] ratings = new byte[INITIAL_RATINGS];
+
+    // Loading
+
+    void loadUser(long userId, double trueRating, short effectiveRating)
+    {
+        lock.writeLock().lock();
+        try {
+            int index = indexOf(userId, true);
+            if(effectiveRatings[index] == -1)
+                registeredCount++;
+            trueRatings[index] = trueRating;
+            effectiveRatings[index] = effectiveRating;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void loadRating(long userId, long targetId, short rating)
+    {
+        lock.writeLock().lock();
+        try {
+            putRating(indexOf(userId, true), indexOf(targetId, true), rating);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Calculates every user who has been rated, for when ratings were loaded without their calculations
+    void recalculateAll()
+    {
+        lock.writeLock().lock();
+        try {
+            for(int i = 0; i < userCount; i++)
+            {
+                if(inDegrees[i] == 0)
+                    continue;
+                if(effectiveRatings[i] == -1)
+                    registeredCount++;
+                trueRatings[i] = calculate(i);
+                effectiveRatings[i] = (short) Math.round(trueRatings[i]);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Snapshots, writes wait until these are done
+
+    void forEachRating(RatingConsumer consumer)
+    {
+        lock.readLock().lock();
+        try {
+            for(int i = 0; i < ratingCount; i++)
+                consumer.accept(userIds[raters[i]], userIds[targets[i]], ratings[i]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    void forEachRegistered(UserConsumer consumer)
+    {
+        lock.readLock().lock();
+        try {
+            for(int i = 0; i < userCount; i++)
+            {
+                if(effectiveRatings[i] != -1)
+                    consumer.accept(userIds[i], trueRatings[i]);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Registered users who haven't rated anyone or been rated, which are the only ones
+    // whose registration can't be told from their ratings
+    void forEachUnlinkedUser(LongConsumer consumer)
+    {
+        lock.readLock().lock();
+        try {
+            for(int i = 0; i < userCount; i++)
+            {
+                if(effectiveRatings[i] != -1 && outDegrees[i] == 0 && inDegrees[i] == 0)
+                    consumer.accept(userIds[i]);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Reads
+
+    public boolean hasRated(long userId, long targetId)
+    {
+        return getRating(userId, targetId) != -1;
+    }
+
+    // Returns -1 if the user has not rated the target.
+    public short getRating(long userId, long targetId)
+    {
+        lock.readLock().lock();
+        try {
+            int rating = ratingIndexOf(userId, targetId);
+            return rating == NO_INDEX ? -1 : ratings[rating];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isRegistered(long userId)
+    {
+        return getEffectiveRating(userId) != -1;
+    }
+
+    // Returns -1 if the user is not registered.
+    public short getEffectiveRating(long userId)
+    {
+        lock.readLock().lock();
+        try {
+            int index = userIndices.get(userId);
+            return index == NO_INDEX ? -1 : effectiveRatings[index];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Returns NaN if the user is not registered.
+    public double getTrueRating(long userId)
+    {
+        lock.readLock().lock();
+        try {
+            int index = userIndices.get(userId);
+            return index == NO_INDEX || effectiveRatings[index] == -1 ? Double.NaN : trueRatings[index];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Ratings the user has given, keyed by target.
+    public Map<Long, Short> getRatingsFrom(long userId)
+    {
+        lock.readLock().lock();
+        try {
+            int index = userIndices.get(userId);
+            if(index == NO_INDEX)
+                return new HashMap<>();
+            Map<Long, Short> map = new HashMap<>(outDegrees[index] * 2);
+            int[] edges = outRatings[index];
+            for(int i = 0; i < outDegrees[index]; i++)
+                map.put(userIds[targets[edges[i]]], (short) ratings[edges[i]]);
+            return map;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Ratings the user has received, keyed by rater.
+    public Map<Long, Short> getRatingsTo(long userId)
+    {
+        lock.readLock().lock();
+        try {
+            int index = userIndices.get(userId);
+            if(index == NO_INDEX)
+                return new HashMap<>();
+            Map<Long, Short> map = new HashMap<>(inDegrees[index] * 2);
+            int[] edges = inRatings[index];
+            for(int i = 0; i < inDegrees[index]; i++)
+                map.put(userIds[raters[edges[i]]], (short) ratings[edges[i]]);
+            return map;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long[] getTargetsRated(long userId)
+    {
+        lock.readLock().lock();
+        try {
+            int index = userIndices.get(userId);
+            if(index == NO_INDEX)
+                return new long[0];
+            long[] ids = new long[outDegrees[index]];
+            int[] edges = outRatings[index];
+            for(int i = 0; i < ids.length; i++)
+                ids[i] = userIds[targets[edges[i]]];
+            return ids;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getRegisteredCount()
+    {
+        lock.readLock().lock();
+        try {
+            return registeredCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Rough number of bytes held by the graph, assuming uncompressed references.
+    // This grows linearly with users and ratings, with no other caches on top.
+    public long getMemoryEstimate()
+    {
+        lock.readLock().lock();
+        try {
+            long bytes = 12L * (userIndices.getCapacity() + ratingIndices.getCapacity());
+
+            // Per user arrays, including the edge arrays each user owns
+            bytes += (long) userIds.length * (8 + 8 + 2 + 4 * 5 + 8 + 4 + 8 + 4);
+            for(int i = 0; i < userCount; i++)
+            {
+                if(outRatings[i] != null)
+                    bytes += 16 + 4L * outRatings[i].length;
+                if(inRatings[i] != null)
+                    bytes += 16 + 4L * inRatings[i].length;
+            }
+
+            // Per rating arrays
+            bytes += (long) raters.length * (4 + 4 + 1);
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getRatingCount()
+    {
+        lock.readLock().lock();
+        try {
+            return ratingCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Recounts every statistic from scratch.
+    public void computeStats(GlobalStats stats)
+    {
+        lock.readLock().lock();
+        try {
+            long raterCount = 0, targetCount = 0;
+            double trueRatingSum = 0;
+            long[] tiers = new long[5];
+            for(int i = 0; i < userCount; i++)
+            {
+                if(outDegrees[i] > 0)
+                    raterCount++;
+                if(inDegrees[i] > 0)
+                    targetCount++;
+                if(effectiveRatings[i] == -1)
+                    continue;
+                trueRatingSum += trueRatings[i];
+                long tier = Math.round(trueRatings[i]);
+                if(tier >= 1 && tier <= 5)
+                    tiers[(int) tier - 1]++;
+            }
+            stats.restore(ratingCount, raterCount, targetCount, registeredCount, trueRatingSum, tiers);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Writes
+
+    // Registers the user with a rating of 1 if they are not already registered,
+    // returns the user's effective rating either way.
+    public short register(long userId)
+    {
+        lock.writeLock().lock();
+        try {
+            return registerIndex(indexOf(userId, true));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Update setRating(long userId, long targetId, short rating)
+    {
+        lock.writeLock().lock();
+        try {
+            Update update = new Update();
+            int user = indexOf(userId, true);
+            int target = indexOf(targetId, true);
+
+            if(effectiveRatings[user] == -1)
+                update.registered.add(userId);
+            update.newRater = outDegrees[user] == 0;
+            update.newTarget = inDegrees[target] == 0;
+            update.userRating = registerIndex(user);
+            update.inserted = putRating(user, target, rating);
+
+            // Nobody else's calculation depends on the target's
+            recalculate(target, update);
+            return update;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // The user is only added to the update if their calculation changed.
+    private void recalculate(int index, Update update)
+    {
+        double trueRating = calculate(index);
+        short effectiveRating = (short) Math.round(trueRating);
+
+        if(effectiveRatings[index] == -1)
+            registeredCount++;
+        else if(trueRatings[index] == trueRating)
+            return;
+
+        trueRatings[index] = trueRating;
+        effectiveRatings[index] = effectiveRating;
+        update.recalculated.add(userIds[index]);
+    }
+
+    private double calculate(int index)
+    {
+        int mask = 0;
+        for(int i = 0; i < 5; i++)
+        {
+            if(received[index * 5 + i] > 0)
+                mask |= 1 << i;
+        }
+
+        return getCalculation(mask);
+    }
+
+    // The true rating of a user who has received the ratings in the mask
+    static double getCalculation(int mask)
+    {
+        return CALCULATIONS[mask];
+    }
+
+    private short registerIndex(int index)
+    {
+        if(effectiveRatings[index] == -1)
+        {
+            trueRatings[index] = 1.0;
+            effectiveRatings[index] = 1;
+            registeredCount++;
+        }
+        return effectiveRatings[index];
+    }
+
+    // Returns true if this is a new rating, false if it replaced an old one.
+    private boolean putRating(int user, int target, short rating)
+    {
+        long key = ratingKey(user, target);
+        int edge = ratingIndices.get(key);
+        if(edge != NO_INDEX)
+        {
+            received[target * 5 + ratings[edge] - 1]--;
+            received[target * 5 + rating - 1]++;
+            ratings[edge] = (byte) rating;
+            return false;
+        }
+
+        if(ratingCount == raters.length)
+        {
+            int capacity = raters.length * 2;
+            raters = Arrays.copyOf(raters, capacity);
+            targets = Arrays.copyOf(targets, capacity);
+            ratings = Arrays.copyOf(ratings, capacity);
+        }
+
+        edge = ratingCount++;
+        raters[edge] = user;
+        targets[edge] = target;
+        ratings[edge] = (byte) rating;
+        ratingIndices.put(key, edge);
+        received[target * 5 + rating - 1]++;
+
+        outRatings[user] = append(outRatings[user], outDegrees[user]++, edge);
+        inRatings[target] = append(inRatings[target], inDegrees[target]++, edge);
+        return true;
+    }
+
+    private int indexOf(long userId, boolean create)
+    {
+        int index = userIndices.get(userId);
+        if(index != NO_INDEX || !create)
+            return index;
+
+        if(userCount == userIds.length)
+        {
+            int capacity = userIds.length * 2;
+            userIds = Arrays.copyOf(userIds, capacity);
+            trueRatings = Arrays.copyOf(trueRatings, capacity);
+            effectiveRatings = Arrays.copyOf(effectiveRatings, capacity);
+            received = Arrays.copyOf(received, capacity * 5);
+            outRatings = Arrays.copyOf(outRatings, capacity);
+            outDegrees = Arrays.copyOf(outDegrees, capacity);
+            inRatings = Arrays.copyOf(inRatings, capacity);
+            inDegrees = Arrays.copyOf(inDegrees, capacity);
+        }
+
+        index = userCount++;
+        userIds[index] = userId;
+        effectiveRatings[index] = -1;
+        userIndices.put(userId, index);
+        return index;
+    }
+
+    private int ratingIndexOf(long userId, long targetId)
+    {
+        int user = userIndices.get(userId);
+        int target = userIndices.get(targetId);
+        if(user == NO_INDEX || target == NO_INDEX)
+            return NO_INDEX;
+        return ratingIndices.get(ratingKey(user, target));
+    }
+
+    private static long ratingKey(int user, int target)
+    {
+        return ((long) user << 32) | (target & 0xFFFFFFFFL);
+    }
+
+    private static int[] append(int[] array, int size, int value)
+    {
+        if(array == null)
+            array = new int[INITIAL_DEGREE];
+        else if(size == array.length)
+            array = Arrays.copyOf(array, size * 2);
+        array[size] = value;
+        return array;
+    }
+
+    interface RatingConsumer
+    {
+        void accept(long userId, long targetId, short rating);
+    }
+
+    interface UserConsumer
+    {
+        void accept(long userId, double trueRating);
+    }
+
+    /**
+     * Describes what changed as the result of a single rating, so that
+     * the changes can be written through to the database.
+     */
+    public static class Update
+    {
+        private final List<Long> registered = new ArrayList<>(1);
+        private final List<Long> recalculated = new ArrayList<>();
+        private boolean inserted = false;
+        private boolean newRater = false;
+        private boolean newTarget = false;
+        private short userRating = -1;
+
+        // Users who were registered with the default rating.
+        public List<Long> getRegistered()
+        {
+            return registered;
+        }
+
+        // Users whose calculations changed.
+        public List<Long> getRecalculated()
+        {
+            return recalculated;
+        }
+
+        // If this rating did not previously exist.
+        public boolean isInserted()
+        {
+            return inserted;
+        }
+
+        // If this is the first rating the rater has given.
+        public boolean isNewRater()
+        {
+            return inserted && newRater;
+        }
+
+        // If this is the first rating the target has received.
+        public boolean isNewTarget()
+        {
+            return inserted && newTarget;
+        }
+
+        // The rater's effective rating at the time of rating.
+        public short getUserRating()
+        {
+            return userRating;
+        }
+    }
+}
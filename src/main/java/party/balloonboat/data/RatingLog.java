@@ -0,0 +1,426 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.data;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Stores ratings as an append-only log of fixed width records in a
+ * memory-mapped file, as an alternative to the RATINGS and CALCULATIONS
+ * tables.
+ *
+ * <p>Only what users did is stored: who rated who as what, and who
+ * registered without rating anyone. Every calculation can be derived
+ * from that, so on startup the log is read start to finish into the
+ * {@link RatingGraph} and everything is recalculated once. Writing is a
+ * sequential append, where the tables would update two B-trees.
+ *
+ * <p>Each record is 24 bytes:
+ * <pre>
+ *     type (1) | rating (1) | unused (2) | CRC32 of the other 20 bytes (4) | user id (8) | target id (8)
+ * </pre>
+ * The file is grown in chunks of zeros, and the log ends at the first
+ * record that is all zeros. Records that fail their checksum, such as
+ * one torn by a crash, are skipped, and any after the last good record
+ * are overwritten.
+ *
+ * <p>Re-ratings leave their old records behind, so once most of the log
+ * is records that no longer matter it's compacted, by writing what the
+ * graph has now to a new file and moving it over the old one. Compacting
+ * while ratings are still being appended is fine, as any that end up in
+ * both are the same rating written twice.
+ *
+ * <p>A single mapping can't be bigger than 2GB, which is about 89 million
+ * records. That is far more than live ratings, as long as compaction is
+ * keeping up. Appending to a full log throws a {@link FullException}, so
+ * the caller can compact and try again. The log is only left full if the
+ * live ratings alone don't fit.
+ *
+ * @author Kaidan Gustave
+ */
+public class RatingLog
+{
+    static final int RECORD_SIZE = 24;
+
+    private static final byte RATE = 1;
+    private static final byte REGISTER = 2;
+
+    private static final long INITIAL_SIZE = 1024 * RECORD_SIZE;
+    private static final long MAX_GROWTH = 64L * 1024 * 1024 / RECORD_SIZE * RECORD_SIZE;
+    private static final long MAX_SIZE = Integer.MAX_VALUE / RECORD_SIZE * RECORD_SIZE;
+
+    // Compacting small logs isn't worth it, and live records are only estimated
+    private static final long MIN_COMPACT_RECORDS = 100000;
+    private static final int COMPACT_RATIO = 2;
+
+    private final Path path;
+    private final long maxSize;
+    private final byte[] record = new byte[RECORD_SIZE];
+    private final CRC32 crc = new CRC32();
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long end = 0;  // Where the next record goes
+    private boolean full = false;
+
+    // Metrics
+    private final AtomicLong appended = new AtomicLong(0);
+    private final AtomicLong corrupted = new AtomicLong(0);
+    private final AtomicLong compactions = new AtomicLong(0);
+
+    public RatingLog(Path path)
+    {
+        this(path, MAX_SIZE / RECORD_SIZE);
+    }
+
+    // A smaller limit, so filling up can be tried without a 2GB file
+    RatingLog(Path path, long maxRecords)
+    {
+        if(maxRecords < 1 || maxRecords > MAX_SIZE / RECORD_SIZE)
+            throw new IllegalArgumentException("Max records must be between 1 and "+MAX_SIZE / RECORD_SIZE+"!");
+        this.path = path;
+        this.maxSize = maxRecords * RECORD_SIZE;
+    }
+
+    // Maps the file, creating it if it doesn't exist, and finds where the log ends
+    synchronized void open() throws IOException
+    {
+        // A compaction that didn't finish never replaced the log, so the copy can go
+        Files.deleteIfExists(getCompactPath());
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size() / RECORD_SIZE * RECORD_SIZE;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, Math.min(INITIAL_SIZE, maxSize)));
+
+        // Find the end, which is after the last good record before the zeros
+        long position = 0;
+        while(position < buffer.capacity() && !isEmpty(position))
+        {
+            if(read(position))
+                end = position + RECORD_SIZE;
+            position += RECORD_SIZE;
+        }
+
+        // Anything torn after the end is cleared so it's never read as the end of the log
+        for(long i = end; i < position; i++)
+            buffer.put((int) i, (byte) 0);
+        if(position > end)
+        {
+            buffer.force();
+            Database.LOG.warn("Cleared {} bytes torn from the end of the rating log", position - end);
+        }
+    }
+
+    synchronized boolean isEmpty()
+    {
+        return end == 0;
+    }
+
+    // Reads every record in order into the graph, which still needs calculating afterwards
+    synchronized void load(RatingGraph graph)
+    {
+        for(long position = 0; position < end; position += RECORD_SIZE)
+        {
+            if(!read(position))
+            {
+                corrupted.incrementAndGet();
+                Database.LOG.warn("Skipping corrupt rating log record at {}", position);
+                continue;
+            }
+
+            long userId = buffer.getLong((int) position + 8);
+            switch(record[0])
+            {
+                case RATE:
+                    if(record[1] < 1 || record[1] > 5)
+                    {
+                        corrupted.incrementAndGet();
+                        Database.LOG.warn("Skipping rating log record with a rating of {} at {}", record[1], position);
+                        break;
+                    }
+                    graph.register(userId);
+                    graph.loadRating(userId, buffer.getLong((int) position + 16), record[1]);
+                    break;
+
+                case REGISTER:
+                    graph.register(userId);
+                    break;
+
+                default:
+                    corrupted.incrementAndGet();
+                    Database.LOG.warn("Skipping rating log record of unknown type {} at {}", record[0], position);
+            }
+        }
+    }
+
+    synchronized void appendRating(long userId, long targetId, short rating) throws IOException
+    {
+        append(RATE, (byte) rating, userId, targetId);
+    }
+
+    synchronized void appendRegister(long userId) throws IOException
+    {
+        append(REGISTER, (byte) 0, userId, 0L);
+    }
+
+    // Makes everything appended so far durable, appends are only in memory until then
+    synchronized void flush()
+    {
+        buffer.force();
+    }
+
+    // Compacts if most of the log is records that no longer matter
+    synchronized boolean compactIfNeeded(RatingGraph graph) throws IOException
+    {
+        long records = getRecordCount();
+        long live = (long) graph.getRatingCount() + graph.getRegisteredCount();
+        if(records < MIN_COMPACT_RECORDS || records < live * COMPACT_RATIO)
+            return false;
+        compact(graph);
+        return true;
+    }
+
+    // Writes what the graph has now to a new log, and replaces this one with it
+    synchronized void compact(RatingGraph graph) throws IOException
+    {
+        long before = getRecordCount();
+        Path compactPath = getCompactPath();
+        FileChannel compactChannel = FileChannel.open(compactPath, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            Compactor compactor = new Compactor(compactChannel);
+            try {
+                graph.forEachRating(compactor::rate);
+                graph.forEachUnlinkedUser(compactor::register);
+            } catch(UncheckedIOException e) {
+                throw e.getCause();
+            }
+            compactor.buffer.force();
+
+            // The new channel stays open on the file after it's moved, and the
+            // old mapping stays valid until it's collected
+            Files.move(compactPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel.close();
+            channel = compactChannel;
+            buffer = compactor.buffer;
+            end = compactor.end;
+            full = false;
+        } catch(IOException e) {
+            compactChannel.close();
+            Files.deleteIfExists(compactPath);
+            throw e;
+        }
+
+        compactions.incrementAndGet();
+        Database.LOG.info("Compacted the rating log from {} to {} records", before, getRecordCount());
+    }
+
+    synchronized void close() throws IOException
+    {
+        if(channel == null)
+            return;
+        buffer.force();
+        channel.close();
+    }
+
+    // If the last append found no room, and compacting hasn't made any since
+    public synchronized boolean isFull()
+    {
+        return full;
+    }
+
+    public synchronized long getRecordCount()
+    {
+        return end / RECORD_SIZE;
+    }
+
+    public synchronized long getSize()
+    {
+        return buffer == null ? 0 : buffer.capacity();
+    }
+
+    public long getAppendedCount()
+    {
+        return appended.get();
+    }
+
+    public long getCorruptedCount()
+    {
+        return corrupted.get();
+    }
+
+    public long getCompactionCount()
+    {
+        return compactions.get();
+    }
+
+    private void append(byte type, byte rating, long userId, long targetId) throws IOException
+    {
+        if(end + RECORD_SIZE > buffer.capacity())
+            grow();
+        fill(record, crc, type, rating, userId, targetId);
+        buffer.position((int) end);
+        buffer.put(record);
+        end += RECORD_SIZE;
+        appended.incrementAndGet();
+    }
+
+    private void grow() throws IOException
+    {
+        long capacity = buffer.capacity();
+        if(capacity >= maxSize)
+        {
+            full = true;
+            throw new FullException("Rating log is full at "+getRecordCount()+" records!");
+        }
+        long size = Math.min(capacity + Math.min(capacity, MAX_GROWTH), maxSize);
+
+        // Mapping past the end of the file grows it with zeros
+        buffer.force();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    // Reads the record into the scratch array, returning false if its checksum doesn't match
+    private boolean read(long position)
+    {
+        buffer.position((int) position);
+        buffer.get(record);
+        return checksum(record, crc) == readInt(record, 4);
+    }
+
+    private boolean isEmpty(long position)
+    {
+        int offset = (int) position;
+        return buffer.getLong(offset) == 0 && buffer.getLong(offset + 8) == 0 && buffer.getLong(offset + 16) == 0;
+    }
+
+    private Path getCompactPath()
+    {
+        return path.resolveSibling(path.getFileName()+".compact");
+    }
+
+    private static void fill(byte[] record, CRC32 crc, byte type, byte rating, long userId, long targetId)
+    {
+        record[0] = type;
+        record[1] = rating;
+        record[2] = 0;
+        record[3] = 0;
+        writeLong(record, 8, userId);
+        writeLong(record, 16, targetId);
+        writeInt(record, 4, checksum(record, crc));
+    }
+
+    private static int checksum(byte[] record, CRC32 crc)
+    {
+        crc.reset();
+        crc.update(record, 0, 4);
+        crc.update(record, 8, RECORD_SIZE - 8);
+        return (int) crc.getValue();
+    }
+
+    // Big endian, the same as the mapped buffer reads
+    private static void writeLong(byte[] bytes, int offset, long value)
+    {
+        for(int i = 7; i >= 0; i--)
+        {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value)
+    {
+        for(int i = 3; i >= 0; i--)
+        {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static int readInt(byte[] bytes, int offset)
+    {
+        int value = 0;
+        for(int i = 0; i < 4; i++)
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        return value;
+    }
+
+    // Thrown when a record doesn't fit in the largest mapping there can be
+    static class FullException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private FullException(String message)
+        {
+            super(message);
+        }
+    }
+
+    // Writes records to a new file, growing it the same way as the log
+    private class Compactor
+    {
+        private final FileChannel channel;
+        private final byte[] record = new byte[RECORD_SIZE];
+        private final CRC32 crc = new CRC32();
+        private MappedByteBuffer buffer;
+        private long end = 0;
+
+        private Compactor(FileChannel channel) throws IOException
+        {
+            this.channel = channel;
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(INITIAL_SIZE, maxSize));
+        }
+
+        private void rate(long userId, long targetId, short rating)
+        {
+            write(RATE, (byte) rating, userId, targetId);
+        }
+
+        private void register(long userId)
+        {
+            write(REGISTER, (byte) 0, userId, 0L);
+        }
+
+        private void write(byte type, byte rating, long userId, long targetId)
+        {
+            try {
+                if(end + RECORD_SIZE > buffer.capacity())
+                {
+                    long capacity = buffer.capacity();
+                    if(capacity >= maxSize)
+                        throw new FullException("Live ratings don't fit in a compacted rating log!");
+                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                            Math.min(capacity + Math.min(capacity, MAX_GROWTH), maxSize));
+                }
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            fill(record, crc, type, rating, userId, targetId);
+            buffer.position((int) end);
+            buffer.put(record);
+            end += RECORD_SIZE;
+        }
+    }
+}
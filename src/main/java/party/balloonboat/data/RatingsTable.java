@@ -15,218 +15,255 @@
  */
 package party.balloonboat.data;
 
-import party.balloonboat.utils.AlgorithmUtils;
-
-import java.sql.*;
-import java.util.*;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
+ * Ratings are applied to the {@link RatingGraph} as soon as they are set,
+ * and everything they change is written to the database behind them by a
+ * {@link WriteQueue}, so reads never have to wait for a write to finish.
+ *
+ * <p>If there is a {@link RatingLog}, ratings are appended to it instead,
+ * and calculations aren't written at all since they're rebuilt from the
+ * log on startup.
+ *
  * @author Kaidan Gustave
  */
 public class RatingsTable extends TableHandler
 {
+    private static final String SELECT_ALL =
+            "SELECT USER_ID, TARGET_ID, RATING FROM RATINGS";
+    private static final String UPSERT = upsert(Database.Table.RATINGS,
+            new String[] {"USER_ID", "TARGET_ID"}, "USER_RATING", "RATING");
+    private static final String UPDATE_USER_RATING =
+            "UPDATE RATINGS SET USER_RATING = ? WHERE USER_ID = ?";
+
     private final CalculationsTable calcTable;
+    private final RatingGraph graph;
+    private final GlobalStats stats;
+    private final RatingLog log;
+    private final WriteQueue<Write> writes;
 
-    public RatingsTable(Connection connection, CalculationsTable calcTable)
+    public RatingsTable(ConnectionPool pool, CalculationsTable calcTable, RatingGraph graph, GlobalStats stats,
+                        int queueSize, int batchSize, long flushMillis, @Nullable RatingLog log)
     {
-        super(connection, Database.Table.RATINGS);
+        super(pool, Database.Table.RATINGS);
         this.calcTable = calcTable;
+        this.graph = graph;
+        this.stats = stats;
+        this.log = log;
+        this.writes = new WriteQueue<>("Rating Writer", this::write, queueSize, batchSize, flushMillis);
     }
 
-    public boolean hasRated(long userId, long targetId) throws SQLException
+    void load() throws SQLException
     {
-        final boolean returns;
-        try (Statement statement = connection.createStatement())
+        try (Connection connection = pool.getConnection())
         {
-            try (ResultSet set = statement.executeQuery("SELECT * FROM RATINGS " +
-                                                        "WHERE USER_ID = "+userId+" " +
-                                                        "AND TARGET_ID = "+targetId))
+            try (ResultSet results = prepare(connection, SELECT_ALL).executeQuery())
             {
-                returns = set.next();
-            }
-        }
-        return returns;
-    }
-
-    public short getRating(long userId, long targetId) throws SQLException
-    {
-        final short returns;
-        try (Statement statement = connection.createStatement())
-        {
-            try (ResultSet set = statement.executeQuery("SELECT RATING FROM RATINGS " +
-                                                        "WHERE USER_ID = "+userId+" " +
-                                                        "AND TARGET_ID = "+targetId))
-            {
-                set.next();
-                returns = set.getShort("RATING");
+                while(results.next())
+                {
+                    graph.loadRating(results.getLong("USER_ID"),
+                            results.getLong("TARGET_ID"),
+                            results.getShort("RATING"));
+                }
             }
         }
-        return returns;
     }
 
-    public Map<Long, Short> getRatingsByUser(long userId) throws SQLException
+    // Starts a rating log with every rating in the table
+    void copyTo(RatingLog log) throws SQLException, IOException
     {
-        Map<Long, Short> map = new HashMap<>();
-        try (Statement statement = connection.createStatement())
+        try (Connection connection = pool.getConnection())
         {
-            try (ResultSet results = statement.executeQuery("SELECT TARGET_ID, RATING FROM RATINGS " +
-                                                            "WHERE USER_ID = "+userId))
+            try (ResultSet results = prepare(connection, SELECT_ALL).executeQuery())
             {
                 while(results.next())
                 {
-                    map.put(results.getLong("TARGET_ID"), results.getShort("RATING"));
+                    log.appendRating(results.getLong("USER_ID"),
+                            results.getLong("TARGET_ID"),
+                            results.getShort("RATING"));
                 }
             }
         }
-        return map;
     }
 
-    public void setRating(long userId, long targetId, short rating) throws SQLException
+    public boolean hasRated(long userId, long targetId)
+    {
+        return graph.hasRated(userId, targetId);
+    }
+
+    public short getRating(long userId, long targetId)
     {
-        setRating(userId, targetId, rating, true);
+        return graph.getRating(userId, targetId);
     }
 
-    private void setRating(long userId, long targetId, short rating, boolean recurse) throws SQLException
+    public Map<Long, Short> getRatingsByUser(long userId)
     {
-        int oldPosition = getPosition(targetId);
+        return graph.getRatingsFrom(userId);
+    }
+
+    // The graph is updated first, then everything it changed is queued to be written.
+    // This blocks if too many writes are already waiting. A write the queue drops
+    // leaves the database behind the graph until it's recomputed.
+    public synchronized void setRating(long userId, long targetId, short rating) throws SQLException
+    {
+        RatingGraph.Update update = graph.setRating(userId, targetId, rating);
 
-        short userRating = calcTable.getUserRating(userId, true);
+        if(update.isInserted())
+            stats.addRating(update.isNewRater(), update.isNewTarget());
+
+        writes.add(new Write(userId, targetId, rating, update.getUserRating(), calculate(update)));
+    }
 
-        if(hasRated(userId, targetId))
+    // Updates everything in memory that depends on the users the graph changed,
+    // and returns their new true ratings to be written.
+    private Map<Long, Double> calculate(RatingGraph.Update update)
+    {
+        Map<Long, Double> trueRatings = new LinkedHashMap<>();
+        for(Long registered : update.getRegistered())
         {
-            try(PreparedStatement statement = connection.prepareStatement(
-                    "UPDATE RATINGS " +
-                    "SET USER_RATING = ?, " +
-                        "RATING = ? " +
-                    "WHERE USER_ID = ? " +
-                    "AND TARGET_ID = ?"))
-            {
-                statement.setShort(1, userRating);
-                statement.setShort(2, rating);
-                statement.setLong(3, userId);
-                statement.setLong(4, targetId);
-                statement.execute();
-            }
+            calcTable.updateUserRating(registered, 1.0);
+            trueRatings.put(registered, 1.0);
         }
-        else
+        for(Long recalculated : update.getRecalculated())
         {
-            try(PreparedStatement statement = connection.prepareStatement(
-                    "INSERT INTO RATINGS (USER_RATING, USER_ID, TARGET_ID, RATING) VALUES (?, ?, ?, ?)"
-            ))
-            {
-                statement.setShort(1, userRating);
-                statement.setLong(2, userId);
-                statement.setLong(3, targetId);
-                statement.setShort(4, rating);
-                statement.execute();
-            }
+            double trueRating = graph.getTrueRating(recalculated);
+            calcTable.updateUserRating(recalculated, trueRating);
+            trueRatings.put(recalculated, trueRating);
         }
+        return trueRatings;
+    }
 
-        calcTable.setAndReturnUserRating(targetId, calculateRating(targetId));
+    // Writes a group of updates in one transaction.
+    // Only the newest calculations for each user need to be written.
+    private void write(List<Write> group) throws SQLException
+    {
+        if(log != null)
+        {
+            append(group);
+            return;
+        }
 
-        int newPosition = getPosition(targetId);
+        Map<Long, Double> trueRatings = new LinkedHashMap<>();
+        for(Write write : group)
+            trueRatings.putAll(write.trueRatings);
 
-        if(recurse && oldPosition == newPosition)
+        try (Connection connection = pool.getConnection())
         {
-            for(Long recTargetId : getAllTargetsRated(targetId))
-                setRating(targetId, recTargetId, getRating(targetId, recTargetId), false);
-
-            try(PreparedStatement statement = connection.prepareStatement(
-                    "UPDATE RATINGS SET USER_RATING = (" +
-                        "SELECT EFFECTIVE_RATING FROM CALCULATIONS " +
-                        "WHERE CALCULATIONS.USER_ID = RATINGS.USER_ID" +
-                    ")"
-            ))
+            connection.setAutoCommit(false);
+
+            calcTable.writeUserRatings(connection, trueRatings);
+
+            PreparedStatement ratings = prepare(connection, UPSERT);
+            for(Write write : group)
             {
-                statement.execute();
+                ratings.setLong(1, write.userId);
+                ratings.setLong(2, write.targetId);
+                ratings.setShort(3, write.userRating);
+                ratings.setShort(4, write.rating);
+                ratings.addBatch();
             }
+            ratings.executeBatch();
+
+            // Keep the ratings these users have given up to date with their new ratings.
+            // This must come after the ratings themselves, which may have older ones.
+            PreparedStatement userRatings = prepare(connection, UPDATE_USER_RATING);
+            for(Map.Entry<Long, Double> entry : trueRatings.entrySet())
+            {
+                userRatings.setShort(1, CalculationsTable.toEffectiveRating(entry.getValue()));
+                userRatings.setLong(2, entry.getKey());
+                userRatings.addBatch();
+            }
+            userRatings.executeBatch();
+
+            connection.commit();
         }
     }
 
-    private Set<Short> getOrderedRatings(long targetId) throws SQLException
+    // The log only needs the ratings themselves, and the whole group is made durable at once
+    private void append(List<Write> group) throws SQLException
     {
-        Set<Short> ratingSet = new HashSet<>();
-        try(PreparedStatement statement = connection.prepareStatement(
-                "SELECT * FROM RATINGS " +
-                "WHERE TARGET_ID = ? " +
-                "GROUP BY(USER_ID) " +
-                "ORDER BY(SELECT CALCULATIONS.TRUE_RATING " +
-                         "FROM CALCULATIONS " +
-                         "WHERE CALCULATIONS.USER_ID = RATINGS.USER_ID) DESC"
-        ))
-        {
-            statement.setLong(1, targetId);
-            try(ResultSet set = statement.executeQuery())
-            {
-                while(set.next())
-                    ratingSet.add(set.getShort("RATING"));
+        try {
+            try {
+                for(Write write : group)
+                    log.appendRating(write.userId, write.targetId, write.rating);
+            } catch(RatingLog.FullException e) {
+                // The graph already has the whole group, so the compacted log does too
+                Database.LOG.warn("The rating log is full, compacting it now...");
+                log.compact(graph);
             }
+            log.flush();
+        } catch(RatingLog.FullException e) {
+            // Retrying won't make room, so this shouldn't be retried like other failures
+            throw new SQLNonTransientException("The rating log is full even after compacting!", e);
+        } catch(IOException e) {
+            throw new SQLException("Failed to append to the rating log!", e);
         }
-        return ratingSet;
     }
 
-    double calculateRating(long userId) throws SQLException
+    void startWriting()
     {
-        return AlgorithmUtils.calculateRating(getOrderedRatings(userId));
+        writes.start();
     }
 
-    public int getPosition(long userId) throws SQLException
+    // Blocks until everything waiting has been written
+    void stopWriting()
     {
-        int row = 0;
-        try(PreparedStatement statement = connection.prepareStatement(
-                "SELECT USER_ID FROM CALCULATIONS ORDER BY TRUE_RATING ASC"
-        ))
-        {
-            try(ResultSet set = statement.executeQuery())
-            {
-                while(set.next())
-                {
-                    row += 1;
-                    if(set.getLong("USER_ID") == userId)
-                        break;
-                }
-            }
-        }
-        return row;
+        writes.close();
+    }
+
+    public WriteQueue<?> getWriteQueue()
+    {
+        return writes;
+    }
+
+    public int getPosition(long userId)
+    {
+        return calcTable.getPosition(userId);
     }
 
     // Gets all user ids rating another user id
-    public Map<Long, Short> getAllUsersRating(long userId) throws SQLException
+    public Map<Long, Short> getAllUsersRating(long userId)
     {
-        Map<Long, Short> map = new HashMap<>();
-        try (Statement statement = connection.createStatement())
-        {
-            try (ResultSet results = statement.executeQuery("SELECT * FROM RATINGS " +
-                                                            "WHERE TARGET_ID = "+userId))
-            {
-                while(results.next())
-                    map.put(results.getLong("USER_ID"), results.getShort("RATING"));
-            }
-        }
-        return map;
+        return graph.getRatingsTo(userId);
+    }
+
+    public long[] getAllTargetsRated(long userId)
+    {
+        return graph.getTargetsRated(userId);
     }
 
-    public Long[] getAllTargetsRated(long userId) throws SQLException
+    private static class Write
     {
-        final Long[] returns;
-        try (Statement statement = connection.createStatement(
-                ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY))
+        private final long userId;
+        private final long targetId;
+        private final short rating;
+        private final short userRating;
+        private final Map<Long, Double> trueRatings;
+
+        private Write(long userId, long targetId, short rating, short userRating, Map<Long, Double> trueRatings)
         {
-            try (ResultSet set = statement.executeQuery("SELECT TARGET_ID FROM RATINGS " +
-                                                        "WHERE USER_ID = "+userId))
-            {
-                if(set.last())
-                    returns = new Long[set.getRow()];
-                else
-                    returns = new Long[0];
-                set.beforeFirst();
-                for(int i = 0; i < returns.length; i++)
-                {
-                    set.next();
-                    returns[i] = set.getLong("TARGET_ID");
-                }
-            }
+            this.userId = userId;
+            this.targetId = targetId;
+            this.rating = rating;
+            this.userRating = userRating;
+            this.trueRatings = trueRatings;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "USER_ID="+userId+" TARGET_ID="+targetId+" RATING="+rating+" USER_RATING="+userRating
+                   +" TRUE_RATINGS="+trueRatings;
         }
-        return returns;
     }
 }
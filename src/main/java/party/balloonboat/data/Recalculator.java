@@ -0,0 +1,349 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import party.balloonboat.utils.LongIntMap;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Rebuilds every rated user's calculations from the RATINGS table,
+ * for when the algorithm changes or ratings were fixed by hand.
+ *
+ * <p>Ratings are read once into arrays grouped by target, every target
+ * is recalculated in parallel on a {@link ForkJoinPool}, and the results
+ * are written back in batches in a single transaction, along with the
+ * USER_RATING of every rating those users have given. Updating a row
+ * costs far more than reading one, so only rows that actually changed
+ * are written.
+ *
+ * <p>This goes straight to the database, so it should only be run while
+ * nothing else is using it. A running {@link RatingGraph} would not see
+ * the changes, and would overwrite them as ratings come in.
+ *
+ * @author Kaidan Gustave
+ */
+public class Recalculator extends TableHandler
+{
+    public static final Logger LOG = LoggerFactory.getLogger(Recalculator.class);
+
+    private static final String SELECT_RATINGS =
+            "SELECT TARGET_ID, RATING FROM RATINGS";
+    private static final String SELECT_CALCULATIONS =
+            "SELECT USER_ID, TRUE_RATING FROM CALCULATIONS";
+    private static final String UPSERT = upsert(Database.Table.CALCULATIONS,
+            new String[] {"USER_ID"}, "TRUE_RATING", "EFFECTIVE_RATING");
+    private static final String UPDATE_USER_RATINGS =
+            "UPDATE RATINGS R SET USER_RATING = " +
+            "(SELECT EFFECTIVE_RATING FROM CALCULATIONS C WHERE C.USER_ID = R.USER_ID) " +
+            "WHERE USER_RATING <> (SELECT EFFECTIVE_RATING FROM CALCULATIONS C WHERE C.USER_ID = R.USER_ID)";
+
+    private static final int INITIAL_TARGETS = 1024;
+    private static final int INITIAL_RATINGS = 4096;
+    private static final int BATCH_SIZE = 1000;
+
+    // Targets each task recalculates without splitting further
+    private static final int SPLIT_SIZE = 4096;
+
+    private final int parallelism;
+
+    public Recalculator(ConnectionPool pool)
+    {
+        this(pool, Runtime.getRuntime().availableProcessors());
+    }
+
+    public Recalculator(ConnectionPool pool, int parallelism)
+    {
+        super(pool, Database.Table.CALCULATIONS);
+        if(parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1!");
+        this.parallelism = parallelism;
+    }
+
+    public Result run() throws SQLException
+    {
+        Result result = new Result();
+
+        long start = System.nanoTime();
+        Targets targets = load();
+        result.ratings = targets.offsets[targets.count];
+        result.targets = targets.count;
+        result.loadNanos = System.nanoTime() - start;
+        LOG.info("Loaded {} ratings of {} users in {}ms", result.ratings, result.targets, result.loadNanos / 1000000);
+
+        start = System.nanoTime();
+        double[] trueRatings = calculate(targets);
+        result.calculateNanos = System.nanoTime() - start;
+        LOG.info("Recalculated {} users on {} threads in {}ms", result.targets, parallelism, result.calculateNanos / 1000000);
+
+        start = System.nanoTime();
+        write(targets, trueRatings, result);
+        result.writeNanos = System.nanoTime() - start;
+        LOG.info("Wrote {} changed calculations and {} user ratings in {}ms",
+                result.changed, result.userRatings, result.writeNanos / 1000000);
+
+        return result;
+    }
+
+    // Counts rated users whose calculations don't match their ratings, without writing anything
+    public int countStale() throws SQLException
+    {
+        Targets targets = load();
+        double[] trueRatings = calculate(targets);
+        int stale = 0;
+        for(int i = 0; i < trueRatings.length; i++)
+        {
+            if(trueRatings[i] != targets.oldRatings[i])
+                stale++;
+        }
+        return stale;
+    }
+
+    private double[] calculate(Targets targets)
+    {
+        double[] trueRatings = new double[targets.count];
+        ForkJoinPool forkJoin = new ForkJoinPool(parallelism);
+        try {
+            forkJoin.invoke(new Calculate(targets, trueRatings, 0, targets.count));
+        } finally {
+            forkJoin.shutdown();
+        }
+        return trueRatings;
+    }
+
+    // Reads every rating as its target and value, then groups them by target.
+    // The calculations they have now are read as well, to know which changed.
+    private Targets load() throws SQLException
+    {
+        LongIntMap indices = new LongIntMap(INITIAL_TARGETS, -1);
+        long[] userIds = new long[INITIAL_TARGETS];
+        int[] edgeTargets = new int[INITIAL_RATINGS];
+        byte[] edgeRatings = new byte[INITIAL_RATINGS];
+        int targetCount = 0;
+        int ratingCount = 0;
+
+        double[] oldRatings;
+        try (Connection connection = pool.getConnection())
+        {
+            try (ResultSet results = prepare(connection, SELECT_RATINGS).executeQuery())
+            {
+                while(results.next())
+                {
+                    long targetId = results.getLong(1);
+                    short rating = results.getShort(2);
+                    if(rating < 1 || rating > 5)
+                        throw new SQLException("Rating of "+targetId+" is out of range: "+rating);
+
+                    int target = indices.get(targetId);
+                    if(target == -1)
+                    {
+                        if(targetCount == userIds.length)
+                            userIds = Arrays.copyOf(userIds, targetCount * 2);
+                        target = targetCount++;
+                        userIds[target] = targetId;
+                        indices.put(targetId, target);
+                    }
+
+                    if(ratingCount == edgeTargets.length)
+                    {
+                        edgeTargets = Arrays.copyOf(edgeTargets, ratingCount * 2);
+                        edgeRatings = Arrays.copyOf(edgeRatings, ratingCount * 2);
+                    }
+                    edgeTargets[ratingCount] = target;
+                    edgeRatings[ratingCount] = (byte) rating;
+                    ratingCount++;
+                }
+            }
+
+            // NaN for targets that aren't registered yet
+            oldRatings = new double[targetCount];
+            Arrays.fill(oldRatings, Double.NaN);
+            try (ResultSet results = prepare(connection, SELECT_CALCULATIONS).executeQuery())
+            {
+                while(results.next())
+                {
+                    int target = indices.get(results.getLong(1));
+                    if(target != -1)
+                        oldRatings[target] = results.getDouble(2);
+                }
+            }
+        }
+
+        // Counting sort, so each target's ratings are next to each other
+        int[] offsets = new int[targetCount + 1];
+        for(int i = 0; i < ratingCount; i++)
+            offsets[edgeTargets[i] + 1]++;
+        for(int i = 0; i < targetCount; i++)
+            offsets[i + 1] += offsets[i];
+
+        int[] next = Arrays.copyOf(offsets, targetCount);
+        byte[] ratings = new byte[ratingCount];
+        for(int i = 0; i < ratingCount; i++)
+            ratings[next[edgeTargets[i]]++] = edgeRatings[i];
+
+        return new Targets(targetCount, userIds, oldRatings, offsets, ratings);
+    }
+
+    private void write(Targets targets, double[] trueRatings, Result result) throws SQLException
+    {
+        try (Connection connection = pool.getConnection())
+        {
+            connection.setAutoCommit(false);
+
+            PreparedStatement statement = prepare(connection, UPSERT);
+            int batched = 0;
+            for(int i = 0; i < trueRatings.length; i++)
+            {
+                if(trueRatings[i] == targets.oldRatings[i])
+                    continue;
+                statement.setLong(1, targets.userIds[i]);
+                statement.setDouble(2, trueRatings[i]);
+                statement.setShort(3, CalculationsTable.toEffectiveRating(trueRatings[i]));
+                statement.addBatch();
+                if(++batched == BATCH_SIZE)
+                {
+                    statement.executeBatch();
+                    result.changed += batched;
+                    batched = 0;
+                }
+            }
+            statement.executeBatch();
+            result.changed += batched;
+
+            // One statement instead of one per user, this also catches ratings left stale before
+            result.userRatings = prepare(connection, UPDATE_USER_RATINGS).executeUpdate();
+
+            connection.commit();
+        }
+    }
+
+    private static class Targets
+    {
+        private final int count;
+        private final long[] userIds;
+        private final double[] oldRatings;
+        private final int[] offsets;  // Ratings of target i are from offsets[i] until offsets[i + 1]
+        private final byte[] ratings;
+
+        private Targets(int count, long[] userIds, double[] oldRatings, int[] offsets, byte[] ratings)
+        {
+            this.count = count;
+            this.userIds = userIds;
+            this.oldRatings = oldRatings;
+            this.offsets = offsets;
+            this.ratings = ratings;
+        }
+    }
+
+    private static class Calculate extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Targets targets;
+        private final double[] trueRatings;
+        private final int from;
+        private final int to;
+
+        private Calculate(Targets targets, double[] trueRatings, int from, int to)
+        {
+            this.targets = targets;
+            this.trueRatings = trueRatings;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if(to - from > SPLIT_SIZE)
+            {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Calculate(targets, trueRatings, from, middle),
+                          new Calculate(targets, trueRatings, middle, to));
+                return;
+            }
+
+            for(int target = from; target < to; target++)
+            {
+                int mask = 0;
+                for(int i = targets.offsets[target]; i < targets.offsets[target + 1]; i++)
+                    mask |= 1 << (targets.ratings[i] - 1);
+                // Like the graph, only the distinct ratings received matter
+                trueRatings[target] = RatingGraph.getCalculation(mask);
+            }
+        }
+    }
+
+    /**
+     * How much was recalculated, and how long each step took.
+     */
+    public static class Result
+    {
+        private int ratings;
+        private int targets;
+        private int changed;
+        private int userRatings;
+        private long loadNanos;
+        private long calculateNanos;
+        private long writeNanos;
+
+        public int getRatingCount()
+        {
+            return ratings;
+        }
+
+        // Users who have been rated, and so were recalculated.
+        public int getRecalculatedCount()
+        {
+            return targets;
+        }
+
+        // Users whose calculations were different, or who weren't registered.
+        public int getChangedCount()
+        {
+            return changed;
+        }
+
+        // Ratings whose USER_RATING was brought up to date.
+        public int getUserRatingCount()
+        {
+            return userRatings;
+        }
+
+        public long getLoadNanos()
+        {
+            return loadNanos;
+        }
+
+        public long getCalculateNanos()
+        {
+            return calculateNanos;
+        }
+
+        public long getWriteNanos()
+        {
+            return writeNanos;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.data;
+
+import net.dv8tion.jda.core.entities.Guild;
+import net.dv8tion.jda.core.entities.Member;
+import net.dv8tion.jda.core.entities.Role;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+
+/**
+ * Sends members' rating role changes to Discord at a rate that stays
+ * within its rate limits.
+ *
+ * <p>Only the latest rating queued for each member is kept, and when it is
+ * sent every role that needs adding or removing goes in a single request.
+ * Guilds take turns, each sending a few requests per drain, so one guild
+ * being re-ranked can't hold up the rest.
+ *
+ * <p>Roles that were replaced when a rating was relinked aren't linked to
+ * anything anymore, so they can be queued along with a member's rating to
+ * be taken back as well.
+ *
+ * @author Kaidan Gustave
+ */
+public class RoleDispatcher
+{
+    // Discord allows roughly 50 requests a second overall, and much fewer per guild
+    private static final int REQUESTS_PER_DRAIN = 40;
+    private static final int GUILD_REQUESTS_PER_DRAIN = 2;
+
+    private final RatingRoles links;
+
+    // Guild ID -> user ID -> change, guilds are in the order they get their turn
+    private final LinkedHashMap<Long, LinkedHashMap<Long, Change>> pending = new LinkedHashMap<>();
+    private int queued = 0;
+
+    // Metrics
+    private final AtomicLong submitted = new AtomicLong(0);
+    private final AtomicLong coalesced = new AtomicLong(0);
+    private final AtomicLong requests = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+
+    RoleDispatcher(RatingRoles links)
+    {
+        this.links = links;
+    }
+
+    // Queues the member to be given the role for the rating and have the rest taken away,
+    // replacing anything queued for them before.
+    void submit(Member member, short rating)
+    {
+        submit(member, rating, Collections.emptySet());
+    }
+
+    // The same, also taking back any of the unlinked roles the member has. Unlinked roles
+    // queued before for the member are kept, as they're still owed.
+    synchronized void submit(Member member, short rating, Set<Long> unlinked)
+    {
+        submitted.incrementAndGet();
+        long guildId = member.getGuild().getIdLong();
+        LinkedHashMap<Long, Change> members = pending.computeIfAbsent(guildId, id -> new LinkedHashMap<>());
+        Change change = members.get(member.getUser().getIdLong());
+        if(change != null)
+        {
+            change.rating = rating;
+            change.unlinked.addAll(unlinked);
+            coalesced.incrementAndGet();
+        }
+        else
+        {
+            members.put(member.getUser().getIdLong(), new Change(rating, unlinked));
+            queued++;
+        }
+    }
+
+    // Sends what the rate limits allow, resolving guilds by ID
+    void drain(LongFunction<Guild> guilds)
+    {
+        List<Dispatch> dispatches = new ArrayList<>();
+        synchronized(this)
+        {
+            // Guilds that had a turn and still have more go to the back of the line
+            List<Map.Entry<Long, LinkedHashMap<Long, Change>>> served = new ArrayList<>();
+            Iterator<Map.Entry<Long, LinkedHashMap<Long, Change>>> turns = pending.entrySet().iterator();
+            while(turns.hasNext() && dispatches.size() < REQUESTS_PER_DRAIN)
+            {
+                Map.Entry<Long, LinkedHashMap<Long, Change>> turn = turns.next();
+                Iterator<Map.Entry<Long, Change>> members = turn.getValue().entrySet().iterator();
+                for(int i = 0; i < GUILD_REQUESTS_PER_DRAIN && members.hasNext()
+                               && dispatches.size() < REQUESTS_PER_DRAIN; i++)
+                {
+                    Map.Entry<Long, Change> member = members.next();
+                    dispatches.add(new Dispatch(turn.getKey(), member.getKey(), member.getValue()));
+                    members.remove();
+                    queued--;
+                }
+
+                turns.remove();
+                if(!turn.getValue().isEmpty())
+                    served.add(turn);
+            }
+            for(Map.Entry<Long, LinkedHashMap<Long, Change>> turn : served)
+                pending.put(turn.getKey(), turn.getValue());
+        }
+
+        for(Dispatch dispatch : dispatches)
+        {
+            Guild guild = guilds.apply(dispatch.guildId);
+            Member member = guild == null ? null : guild.getMemberById(dispatch.userId);
+            if(member != null)
+                send(member, dispatch.change);
+        }
+    }
+
+    private void send(Member member, Change change)
+    {
+        List<Role> add = new ArrayList<>(1);
+        List<Role> remove = new ArrayList<>(1);
+        if(!diff(links, member, change.rating, change.unlinked, add, remove))
+            return;
+
+        requests.incrementAndGet();
+        member.getGuild().getController().modifyMemberRoles(member, add, remove)
+              .queue(v -> {}, t -> failures.incrementAndGet());
+    }
+
+    // Finds the rating roles the member needs added and removed to have only the one for the rating,
+    // along with any of the unlinked roles they still have. Returns false if nothing needs changing.
+    static boolean diff(RatingRoles links, Member member, short rating, Set<Long> unlinked,
+                        List<Role> add, List<Role> remove)
+    {
+        Guild guild = member.getGuild();
+        Member self = guild.getSelfMember();
+        if(!self.canInteract(member))
+            return false;
+
+        List<Role> roles = member.getRoles();
+        for(short r = 1; r <= 5; r++)
+        {
+            Role role = links.get(guild, r);
+            if(role == null || !self.canInteract(role))
+                continue;
+
+            boolean has = roles.contains(role);
+            if(r == rating && !has)
+                add.add(role);
+            else if(r != rating && has)
+                remove.add(role);
+        }
+
+        if(!unlinked.isEmpty())
+        {
+            for(Role role : roles)
+            {
+                // A role linked again since is handled above like any other
+                if(unlinked.contains(role.getIdLong()) && !isLinked(links, guild, role)
+                   && self.canInteract(role) && !remove.contains(role))
+                    remove.add(role);
+            }
+        }
+        return !add.isEmpty() || !remove.isEmpty();
+    }
+
+    private static boolean isLinked(RatingRoles links, Guild guild, Role role)
+    {
+        for(short r = 1; r <= 5; r++)
+        {
+            if(role.equals(links.get(guild, r)))
+                return true;
+        }
+        return false;
+    }
+
+    // Members waiting to have their roles changed
+    public synchronized int getQueuedCount()
+    {
+        return queued;
+    }
+
+    public long getSubmittedCount()
+    {
+        return submitted.get();
+    }
+
+    // Submissions that replaced one already queued for the same member
+    public long getCoalescedCount()
+    {
+        return coalesced.get();
+    }
+
+    public long getRequestCount()
+    {
+        return requests.get();
+    }
+
+    public long getFailureCount()
+    {
+        return failures.get();
+    }
+
+    // The role linked to each rating in a guild, such as Database#getRatingRole
+    interface RatingRoles
+    {
+        @Nullable
+        Role get(Guild guild, short rating);
+    }
+
+    private static class Change
+    {
+        private short rating;
+        private final Set<Long> unlinked;
+
+        private Change(short rating, Set<Long> unlinked)
+        {
+            this.rating = rating;
+            this.unlinked = new HashSet<>(unlinked);
+        }
+    }
+
+    private static class Dispatch
+    {
+        private final long guildId;
+        private final long userId;
+        private final Change change;
+
+        private Dispatch(long guildId, long userId, Change change)
+        {
+            this.guildId = guildId;
+            this.userId = userId;
+            this.change = change;
+        }
+    }
+}
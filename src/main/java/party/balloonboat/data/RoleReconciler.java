@@ -0,0 +1,296 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.data;
+
+import net.dv8tion.jda.core.JDA;
+import net.dv8tion.jda.core.entities.Guild;
+import net.dv8tion.jda.core.entities.Member;
+import net.dv8tion.jda.core.entities.User;
+import net.dv8tion.jda.core.utils.cache.SnowflakeCacheView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps members' rating roles in line with their ratings.
+ *
+ * <p>Instead of checking every guild on a timer, this reacts to what can
+ * actually make a role wrong: a user's effective rating changing, which
+ * queues that user for every guild they share with us, and a guild's
+ * role links changing, which queues that whole guild along with any role
+ * the new link replaced, so it can be taken back. Queued work is
+ * deduplicated and handled every tick, and members whose roles are wrong
+ * are handed to a {@link RoleDispatcher} to be fixed.
+ *
+ * <p>Anything missed, such as a role being changed by hand, is caught by a
+ * slow sweep that checks a few guilds each tick after everything queued
+ * has been handled, restarting once every guild has been checked and the
+ * sweep delay has passed. Each pass checks the guilds we were in when it
+ * started, skipping any we've left since.
+ *
+ * @author Kaidan Gustave
+ */
+public class RoleReconciler
+{
+    public static final Logger LOG = LoggerFactory.getLogger(RoleReconciler.class);
+
+    private static final long TICK_MILLIS = 1000;
+    private static final int SWEEP_GUILDS_PER_TICK = 10;
+
+    private final Database database;
+    private final RoleDispatcher.RatingRoles links;
+    private final RoleDispatcher dispatcher;
+    private final ScheduledExecutorService executor;
+
+    // Sets are what was queued, queues are the order to handle them in
+    private final Set<Long> userSet = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<Long> users = new ConcurrentLinkedQueue<>();
+    private final Set<Long> guildSet = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<Long> guilds = new ConcurrentLinkedQueue<>();
+
+    // Guild ID -> roles that were replaced by a new link, taken when the guild is handled
+    private final Map<Long, Set<Long>> unlinked = new HashMap<>();
+
+    private volatile JDA jda;
+    private long[] sweep = new long[0];
+    private int swept = 0;
+    private long sweepDelayMillis;
+    private long lastSweepStart = 0;
+
+    // Metrics
+    private final AtomicLong membersChecked = new AtomicLong(0);
+    private final AtomicLong sweeps = new AtomicLong(0);
+
+    RoleReconciler(Database database)
+    {
+        this.database = database;
+        this.links = database::getRatingRole;
+        this.dispatcher = new RoleDispatcher(links);
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Role Reconciler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Only fire this once!
+    void start(JDA jda, long sweepDelay, TimeUnit unit)
+    {
+        this.jda = jda;
+        this.sweepDelayMillis = unit.toMillis(sweepDelay);
+        executor.scheduleWithFixedDelay(() -> {
+            long start = System.nanoTime();
+            try {
+                tick();
+            } catch(Exception e) {
+                LOG.error("Encountered an exception while reconciling roles: ", e);
+            } finally {
+                database.getMetrics().timer("task.reconcileRoles").recordSince(start);
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // The user's effective rating has changed
+    void queueUser(long userId)
+    {
+        if(userSet.add(userId))
+            users.offer(userId);
+    }
+
+    // The guild's role links have changed
+    void queueGuild(long guildId)
+    {
+        if(guildSet.add(guildId))
+            guilds.offer(guildId);
+    }
+
+    // The role was replaced by a new link, so members who have it should have it taken back
+    void queueUnlinkedRole(long guildId, long roleId)
+    {
+        synchronized(unlinked)
+        {
+            unlinked.computeIfAbsent(guildId, id -> new HashSet<>()).add(roleId);
+        }
+        queueGuild(guildId);
+    }
+
+    // Users and guilds waiting to be reconciled
+    public int getQueuedCount()
+    {
+        return userSet.size() + guildSet.size();
+    }
+
+    public long getMembersChecked()
+    {
+        return membersChecked.get();
+    }
+
+    public RoleDispatcher getDispatcher()
+    {
+        return dispatcher;
+    }
+
+    public long getSweepCount()
+    {
+        return sweeps.get();
+    }
+
+    private void tick()
+    {
+        JDA jda = this.jda;
+        if(jda == null)
+            return;
+
+        // What's already queued to be sent still goes out if finding more fails
+        try {
+            Long guildId;
+            while((guildId = guilds.poll()) != null)
+            {
+                guildSet.remove(guildId);
+                Set<Long> roleIds;
+                synchronized(unlinked)
+                {
+                    roleIds = unlinked.remove(guildId);
+                }
+                Guild guild = getGuildById(jda, guildId);
+                if(guild != null)
+                    reconcile(guild, roleIds == null ? Collections.emptySet() : roleIds);
+            }
+
+            Long userId;
+            while((userId = users.poll()) != null)
+            {
+                userSet.remove(userId);
+                User user = getUserById(jda, userId);
+                if(user == null)
+                    continue;
+                for(Guild guild : getMutualGuilds(jda, user))
+                {
+                    Member member = guild.getMember(user);
+                    if(member != null)
+                        reconcile(member);
+                }
+            }
+
+            sweep(jda);
+        } finally {
+            dispatcher.drain(id -> getGuildById(jda, id));
+        }
+    }
+
+    private void sweep(JDA jda)
+    {
+        if(swept == sweep.length)
+        {
+            if(System.currentTimeMillis() - lastSweepStart < sweepDelayMillis)
+                return;
+            lastSweepStart = System.currentTimeMillis();
+            sweeps.incrementAndGet();
+
+            // A pass takes many ticks, and iterating the cache while guilds join or leave would fail
+            sweep = getGuildCache(jda).stream().mapToLong(Guild::getIdLong).toArray();
+            swept = 0;
+        }
+
+        for(int i = 0; i < SWEEP_GUILDS_PER_TICK && swept < sweep.length; i++)
+        {
+            Guild guild = getGuildById(jda, sweep[swept++]);
+            if(guild != null)
+                reconcile(guild, Collections.emptySet());
+        }
+    }
+
+    private void reconcile(Guild guild, Set<Long> unlinked)
+    {
+        // Nothing to do if no roles are linked, or were just unlinked
+        if(unlinked.isEmpty() && !hasLinks(guild))
+            return;
+        for(Member member : guild.getMembers())
+            reconcile(member, unlinked);
+    }
+
+    private boolean hasLinks(Guild guild)
+    {
+        for(short rating = 1; rating <= 5; rating++)
+        {
+            if(links.get(guild, rating) != null)
+                return true;
+        }
+        return false;
+    }
+
+    // Queues the member to be given the role for their rating, and have any others taken away.
+    void reconcile(Member member)
+    {
+        reconcile(member, Collections.emptySet());
+    }
+
+    private void reconcile(Member member, Set<Long> unlinked)
+    {
+        membersChecked.incrementAndGet();
+        short rating = database.getUserRating(member.getUser());
+
+        // Most members will already be right, so don't bother queueing them
+        if(RoleDispatcher.diff(links, member, rating, unlinked, new ArrayList<>(1), new ArrayList<>(1)))
+            dispatcher.submit(member, rating, unlinked);
+    }
+
+    void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    private static Guild getGuildById(JDA jda, long guildId)
+    {
+        if(jda.getShardInfo() != null)
+            return jda.asBot().getShardManager().getGuildById(guildId);
+        return jda.getGuildById(guildId);
+    }
+
+    private static SnowflakeCacheView<Guild> getGuildCache(JDA jda)
+    {
+        if(jda.getShardInfo() != null)
+            return jda.asBot().getShardManager().getGuildCache();
+        return jda.getGuildCache();
+    }
+
+    private static List<Guild> getMutualGuilds(JDA jda, User user)
+    {
+        if(jda.getShardInfo() != null)
+            return jda.asBot().getShardManager().getMutualGuilds(user);
+        return user.getMutualGuilds();
+    }
+
+    private static User getUserById(JDA jda, long userId)
+    {
+        if(jda.getShardInfo() != null)
+            return jda.asBot().getShardManager().getUserById(userId);
+        return jda.getUserById(userId);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.data;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+
+/**
+ * Keeps the schema up to date with ordered migrations.
+ *
+ * <p>Tables are always created as they originally were by {@link Database.Table},
+ * and every migration since is applied on top of that, so new and existing
+ * databases end up with the same schema. Each applied migration is recorded
+ * in SCHEMA_VERSION, and the highest version there is the current one.
+ *
+ * <p>Migrations must only ever be added to the end, and never changed once
+ * they have been released. H2 commits schema changes as soon as they run,
+ * so a migration that fails part way through has to be finished by hand.
+ *
+ * @author Kaidan Gustave
+ */
+public class SchemaTable extends TableHandler
+{
+    /*
+     * SCHEMA_VERSION
+     * col int VERSION
+     * col varchar DESCRIPTION
+     * col timestamp APPLIED
+     */
+
+    private static final String SELECT_VERSION = "SELECT MAX(VERSION) FROM SCHEMA_VERSION";
+    private static final String INSERT =
+            "INSERT INTO SCHEMA_VERSION (VERSION, DESCRIPTION, APPLIED) VALUES (?, ?, ?)";
+
+    // Versions start at 1, in the order they are listed
+    private static final Migration[] MIGRATIONS = {
+            new Migration("Key ratings by user and target",
+                    // Only the newest of any duplicate ratings is kept
+                    "DELETE FROM RATINGS WHERE USER_ID IS NULL OR TARGET_ID IS NULL",
+                    "DELETE FROM RATINGS WHERE _ROWID_ NOT IN " +
+                        "(SELECT MAX(_ROWID_) FROM RATINGS GROUP BY USER_ID, TARGET_ID)",
+                    "ALTER TABLE RATINGS ALTER COLUMN USER_ID SET NOT NULL",
+                    "ALTER TABLE RATINGS ALTER COLUMN TARGET_ID SET NOT NULL",
+                    "ALTER TABLE RATINGS ADD CONSTRAINT RATINGS_PK PRIMARY KEY (USER_ID, TARGET_ID)",
+                    "CREATE INDEX RATINGS_TARGET_ID ON RATINGS (TARGET_ID)"
+            ),
+
+            new Migration("Key calculations by user",
+                    "DELETE FROM CALCULATIONS WHERE USER_ID IS NULL",
+                    "DELETE FROM CALCULATIONS WHERE _ROWID_ NOT IN " +
+                        "(SELECT MAX(_ROWID_) FROM CALCULATIONS GROUP BY USER_ID)",
+                    "ALTER TABLE CALCULATIONS ALTER COLUMN USER_ID SET NOT NULL",
+                    "ALTER TABLE CALCULATIONS ADD CONSTRAINT CALCULATIONS_PK PRIMARY KEY (USER_ID)",
+                    "CREATE INDEX CALCULATIONS_TRUE_RATING ON CALCULATIONS (TRUE_RATING)"
+            ),
+
+            new Migration("Key private settings by user",
+                    "DELETE FROM PRIVATE_SETTINGS WHERE USER_ID IS NULL",
+                    "DELETE FROM PRIVATE_SETTINGS WHERE _ROWID_ NOT IN " +
+                        "(SELECT MAX(_ROWID_) FROM PRIVATE_SETTINGS GROUP BY USER_ID)",
+                    "ALTER TABLE PRIVATE_SETTINGS ALTER COLUMN USER_ID SET NOT NULL",
+                    "ALTER TABLE PRIVATE_SETTINGS ADD CONSTRAINT PRIVATE_SETTINGS_PK PRIMARY KEY (USER_ID)"
+            ),
+
+            new Migration("Key guild settings by guild",
+                    "DELETE FROM GUILD_SETTINGS WHERE GUILD_ID IS NULL",
+                    "DELETE FROM GUILD_SETTINGS WHERE _ROWID_ NOT IN " +
+                        "(SELECT MAX(_ROWID_) FROM GUILD_SETTINGS GROUP BY GUILD_ID)",
+                    "ALTER TABLE GUILD_SETTINGS ALTER COLUMN GUILD_ID SET NOT NULL",
+                    "ALTER TABLE GUILD_SETTINGS ADD CONSTRAINT GUILD_SETTINGS_PK PRIMARY KEY (GUILD_ID)"
+            ),
+
+            new Migration("Key statistics by name",
+                    "DELETE FROM STATISTICS WHERE NAME IS NULL",
+                    "DELETE FROM STATISTICS WHERE _ROWID_ NOT IN " +
+                        "(SELECT MAX(_ROWID_) FROM STATISTICS GROUP BY NAME)",
+                    "ALTER TABLE STATISTICS ALTER COLUMN NAME SET NOT NULL",
+                    "ALTER TABLE STATISTICS ADD CONSTRAINT STATISTICS_PK PRIMARY KEY (NAME)"
+            ),
+
+            new Migration("Default unset guild roles to 0",
+                    "ALTER TABLE GUILD_SETTINGS ALTER COLUMN ROLE_1 SET DEFAULT 0",
+                    "ALTER TABLE GUILD_SETTINGS ALTER COLUMN ROLE_2 SET DEFAULT 0",
+                    "ALTER TABLE GUILD_SETTINGS ALTER COLUMN ROLE_3 SET DEFAULT 0",
+                    "ALTER TABLE GUILD_SETTINGS ALTER COLUMN ROLE_4 SET DEFAULT 0",
+                    "ALTER TABLE GUILD_SETTINGS ALTER COLUMN ROLE_5 SET DEFAULT 0"
+            ),
+
+            new Migration("Store private settings as flags",
+                    "ALTER TABLE PRIVATE_SETTINGS ADD COLUMN FLAGS INT DEFAULT 0 NOT NULL",
+                    "UPDATE PRIVATE_SETTINGS SET FLAGS = 1 WHERE DM_CHANGES = TRUE",
+                    "ALTER TABLE PRIVATE_SETTINGS DROP COLUMN DM_CHANGES"
+            )
+    };
+
+    public SchemaTable(ConnectionPool pool)
+    {
+        super(pool, Database.Table.SCHEMA_VERSION);
+    }
+
+    public static int getLatestVersion()
+    {
+        return MIGRATIONS.length;
+    }
+
+    // 0 if nothing has been applied yet
+    public int getVersion() throws SQLException
+    {
+        try (Connection connection = pool.getConnection())
+        {
+            return getVersion(connection);
+        }
+    }
+
+    // Applies every migration newer than the current version, returning how many were.
+    public int migrate() throws SQLException
+    {
+        try (Connection connection = pool.getConnection())
+        {
+            int version = getVersion(connection);
+            if(version > MIGRATIONS.length)
+            {
+                throw new SQLException("Database schema version "+version+" is newer than the latest known " +
+                                       "version "+MIGRATIONS.length+"!");
+            }
+
+            connection.setAutoCommit(false);
+            for(int i = version; i < MIGRATIONS.length; i++)
+            {
+                Migration migration = MIGRATIONS[i];
+                Database.LOG.info("Migrating schema to version {}: {}", i + 1, migration.description);
+                try (Statement statement = connection.createStatement())
+                {
+                    for(String sql : migration.statements)
+                        statement.execute(sql);
+                }
+
+                PreparedStatement statement = prepare(connection, INSERT);
+                statement.setInt(1, i + 1);
+                statement.setString(2, migration.description);
+                statement.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+                statement.execute();
+                connection.commit();
+            }
+            return MIGRATIONS.length - version;
+        }
+    }
+
+    private int getVersion(Connection connection) throws SQLException
+    {
+        try (ResultSet results = prepare(connection, SELECT_VERSION).executeQuery())
+        {
+            // MAX of nothing is null, which is read as 0
+            return results.next() ? results.getInt(1) : 0;
+        }
+    }
+
+    private static class Migration
+    {
+        private final String description;
+        private final String[] statements;
+
+        private Migration(String description, String... statements)
+        {
+            this.description = description;
+            this.statements = statements;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logs statements that take longer than a threshold to their own log,
+ * with their bind parameters and how H2 plans to run them.
+ *
+ * <p>Plans are captured on a thread of its own with a connection of its
+ * own, so a slow statement isn't made slower by logging it. Queries are
+ * run again with {@code EXPLAIN ANALYZE} to show the rows each part
+ * actually read, but anything that writes only gets a plain
+ * {@code EXPLAIN}, since analyzing it would write a second time.
+ *
+ * <p>Batches are logged with the parameters of the last row added. If
+ * statements are slow faster than plans can be captured, the extra ones
+ * are logged without a plan.
+ *
+ * @author Kaidan Gustave
+ */
+public class SlowQueryLog
+{
+    // Goes to its own rolling file, see logback.xml
+    public static final Logger LOG = LoggerFactory.getLogger("party.balloonboat.SlowQueries");
+
+    public static final long DEFAULT_THRESHOLD_MILLIS = 250;
+    private static final int QUEUE_SIZE = 64;
+
+    private final ConnectionPool pool;
+    private final long thresholdNanos;
+    private final ThreadPoolExecutor executor;
+
+    // Metrics
+    private final AtomicLong logged = new AtomicLong(0);
+    private final AtomicLong unexplained = new AtomicLong(0);
+
+    SlowQueryLog(ConnectionPool pool, long thresholdMillis)
+    {
+        this.pool = pool;
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE), r -> {
+            Thread thread = new Thread(r, "Slow Query Log");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    boolean isSlow(long nanos)
+    {
+        return nanos >= thresholdNanos;
+    }
+
+    // Parameters must be a copy, as the statement may be run again before it's logged
+    void log(String sql, Object[] parameters, long nanos)
+    {
+        logged.incrementAndGet();
+        try {
+            executor.execute(() -> LOG.warn("{}ms: {}\nParameters: {}\n{}", TimeUnit.NANOSECONDS.toMillis(nanos),
+                    sql, Arrays.toString(parameters), explain(sql, parameters)));
+        } catch(RuntimeException e) {
+            // Full or shut down
+            unexplained.incrementAndGet();
+            LOG.warn("{}ms: {}\nParameters: {}", TimeUnit.NANOSECONDS.toMillis(nanos), sql, Arrays.toString(parameters));
+        }
+    }
+
+    private String explain(String sql, Object[] parameters)
+    {
+        String explain = sql.trim().toUpperCase().startsWith("SELECT") ? "EXPLAIN ANALYZE " : "EXPLAIN ";
+
+        // Prepared on the connection itself, so it isn't timed or logged again if it's slow too
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement(explain + sql))
+        {
+            for(int i = 0; i < parameters.length; i++)
+                statement.setObject(i + 1, parameters[i]);
+
+            StringBuilder plan = new StringBuilder("Plan:");
+            try (ResultSet results = statement.executeQuery())
+            {
+                while(results.next())
+                    plan.append('\n').append(results.getString(1));
+            }
+            return plan.toString();
+        } catch(SQLException e) {
+            return "Plan: unavailable, " + e.getMessage();
+        }
+    }
+
+    public long getThresholdMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(thresholdNanos);
+    }
+
+    public long getLoggedCount()
+    {
+        return logged.get();
+    }
+
+    // Logged without a plan because too many were waiting
+    public long getUnexplainedCount()
+    {
+        return unexplained.get();
+    }
+
+    void shutdown()
+    {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.data;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Kaidan Gustave
+ */
+public class StatisticsTable extends TableHandler
+{
+    /*
+     * STATISTICS
+     * col varchar NAME
+     * col double VALUE
+     */
+
+    private static final String RATINGS = "RATINGS";
+    private static final String RATERS = "RATERS";
+    private static final String TARGETS = "TARGETS";
+    private static final String USERS = "USERS";
+    private static final String TRUE_RATING_SUM = "TRUE_RATING_SUM";
+    private static final String TIER = "TIER_";
+
+    private static final String SELECT_ALL = "SELECT NAME, VALUE FROM STATISTICS";
+    private static final String UPSERT = upsert(Database.Table.STATISTICS, new String[] {"NAME"}, "VALUE");
+
+    private final GlobalStats stats;
+
+    public StatisticsTable(ConnectionPool pool, GlobalStats stats)
+    {
+        super(pool, Database.Table.STATISTICS);
+        this.stats = stats;
+    }
+
+    // Returns false if there was nothing to restore
+    boolean load() throws SQLException
+    {
+        Map<String, Double> values = new HashMap<>();
+        try (Connection connection = pool.getConnection())
+        {
+            try (ResultSet results = prepare(connection, SELECT_ALL).executeQuery())
+            {
+                while(results.next())
+                    values.put(results.getString("NAME"), results.getDouble("VALUE"));
+            }
+        }
+
+        if(!values.containsKey(RATINGS))
+            return false;
+
+        long[] tiers = new long[5];
+        for(int i = 0; i < tiers.length; i++)
+            tiers[i] = values.getOrDefault(TIER+(i + 1), 0.0).longValue();
+
+        stats.restore(
+                values.get(RATINGS).longValue(),
+                values.getOrDefault(RATERS, 0.0).longValue(),
+                values.getOrDefault(TARGETS, 0.0).longValue(),
+                values.getOrDefault(USERS, 0.0).longValue(),
+                values.getOrDefault(TRUE_RATING_SUM, 0.0),
+                tiers
+        );
+        return true;
+    }
+
+    void save() throws SQLException
+    {
+        try (Connection connection = pool.getConnection())
+        {
+            connection.setAutoCommit(false);
+
+            set(connection, RATINGS, stats.getRatings());
+            set(connection, RATERS, stats.getRaters());
+            set(connection, TARGETS, stats.getTargets());
+            set(connection, USERS, stats.getUsers());
+            set(connection, TRUE_RATING_SUM, stats.getTrueRatingSum());
+
+            long[] tiers = stats.getTiers();
+            for(int i = 0; i < tiers.length; i++)
+                set(connection, TIER+(i + 1), tiers[i]);
+
+            connection.commit();
+        }
+    }
+
+    private void set(Connection connection, String name, double value) throws SQLException
+    {
+        PreparedStatement statement = prepare(connection, UPSERT);
+        statement.setString(1, name);
+        statement.setDouble(2, value);
+        statement.execute();
+    }
+}
@@ -22,19 +22,51 @@ import java.sql.*;
  */
 public abstract class TableHandler
 {
-    protected final Connection connection;
+    protected final ConnectionPool pool;
     protected final Database.Table table;
 
-    public TableHandler(Connection connection, Database.Table table)
+    public TableHandler(ConnectionPool pool, Database.Table table)
     {
-        this.connection = connection;
+        this.pool = pool;
         this.table = table;
     }
 
+    // Statements from here are cached for each connection, so they must never be closed
+    protected final PreparedStatement prepare(Connection connection, String sql) throws SQLException
+    {
+        return pool.prepare(connection, sql);
+    }
+
+    // Builds a MERGE that inserts a row, or updates the row with the same key if there is one.
+    // Parameters are the key columns followed by the other columns, in the order given.
+    // Columns not given keep their value on update, and get their default on insert.
+    protected static String upsert(Database.Table table, String[] key, String... columns)
+    {
+        StringBuilder names = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        for(String column : key)
+        {
+            names.append(column).append(", ");
+            values.append("?, ");
+        }
+        for(String column : columns)
+        {
+            names.append(column).append(", ");
+            values.append("?, ");
+        }
+        names.setLength(names.length() - 2);
+        values.setLength(values.length() - 2);
+
+        return "MERGE INTO "+table.name()+" ("+names+") KEY ("+String.join(", ", key)+") VALUES ("+values+")";
+    }
+
     @SuppressWarnings("unused")
     // This is really only necessary if for some reason we'd need to create an individual table
     public final void create() throws SQLException
     {
-        table.createUsing(connection);
+        try (Connection connection = pool.getConnection())
+        {
+            table.createUsing(connection);
+        }
     }
 }
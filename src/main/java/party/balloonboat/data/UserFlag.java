@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.data;
+
+/**
+ * Per user settings that are either on or off, stored as bits of the
+ * FLAGS column in PRIVATE_SETTINGS.
+ *
+ * <p>Each flag owns the bit at its offset, so offsets must never be
+ * changed or reused once released. Settings with a few more states than
+ * on and off can be stored in several bits using
+ * {@link PrivateSettingsTable#setFlags(long, int, int)}.
+ *
+ * @author Kaidan Gustave
+ */
+public enum UserFlag
+{
+    DM_CHANGES(0);
+
+    private final int offset;
+
+    UserFlag(int offset)
+    {
+        this.offset = offset;
+    }
+
+    public int getOffset()
+    {
+        return offset;
+    }
+
+    public int getBit()
+    {
+        return 1 << offset;
+    }
+
+    public boolean isSet(int flags)
+    {
+        return (flags & getBit()) != 0;
+    }
+}
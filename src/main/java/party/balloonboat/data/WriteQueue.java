@@ -0,0 +1,301 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue of writes that are flushed to the database in groups
+ * by a single background thread.
+ *
+ * <p>A group is flushed once it reaches the batch size, or once the first
+ * write in it has waited for the flush delay, whichever comes first. When
+ * the queue is full, adding to it blocks until the writer catches up.
+ *
+ * <p>A group that fails to flush is retried a few times with a growing
+ * delay. If it still fails, it's split in halves that are flushed on their
+ * own, down to single writes, so one write that can never succeed doesn't
+ * take the rest of its group with it or hold up the queue forever. Writes
+ * that fail on their own are logged and dropped. A
+ * {@link SQLNonTransientException} says retrying won't help, so a group
+ * that throws one is split up without being retried.
+ *
+ * @param <T> The type of write
+ *
+ * @author Kaidan Gustave
+ */
+public class WriteQueue<T> implements AutoCloseable
+{
+    public static final Logger LOG = LoggerFactory.getLogger(WriteQueue.class);
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    public static final long DEFAULT_FLUSH_MILLIS = 50;
+    private static final long CLOSE_TIMEOUT_MILLIS = 10000;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long MIN_RETRY_MILLIS = 100;
+
+    private final Flusher<T> flusher;
+    private final ArrayBlockingQueue<T> queue;
+    private final int capacity;
+    private final int batchSize;
+    private final long flushNanos;
+    private final Thread thread;
+
+    // Metrics
+    private final AtomicLong added = new AtomicLong(0);
+    private final AtomicLong written = new AtomicLong(0);
+    private final AtomicLong flushes = new AtomicLong(0);
+    private final AtomicLong blocked = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    private volatile boolean closed = false;
+
+    public WriteQueue(String name, Flusher<T> flusher, int capacity, int batchSize, long flushMillis)
+    {
+        if(capacity < 1 || batchSize < 1)
+            throw new IllegalArgumentException("Write queue capacity and batch size must be at least 1!");
+        if(flushMillis < 0)
+            throw new IllegalArgumentException("Write queue flush delay must not be negative!");
+        this.flusher = flusher;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start()
+    {
+        thread.start();
+    }
+
+    // Blocks while the queue is full.
+    // Once closed, writes are flushed immediately on the calling thread instead.
+    public void add(T write) throws SQLException
+    {
+        boolean queued = !closed && queue.offer(write);
+        boolean interrupted = false;
+        if(!queued && !closed)
+        {
+            blocked.incrementAndGet();
+            while(!queued && !closed)
+            {
+                try {
+                    queued = queue.offer(write, 100, TimeUnit.MILLISECONDS);
+                } catch(InterruptedException e) {
+                    // The write has already happened in memory, so it can't be abandoned
+                    interrupted = true;
+                }
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+
+        added.incrementAndGet();
+
+        // Nothing is left to flush it if this closed before it was queued, or
+        // if it was queued just after the writer finished up.
+        if(!queued || (!thread.isAlive() && closed && queue.remove(write)))
+        {
+            flusher.flush(Collections.singletonList(write));
+            written.incrementAndGet();
+            flushes.incrementAndGet();
+        }
+    }
+
+    private void run()
+    {
+        List<T> batch = new ArrayList<>(batchSize);
+        while(!closed || !queue.isEmpty())
+        {
+            try {
+                T first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if(first == null)
+                    continue;
+                batch.add(first);
+
+                // Give the rest of the group until the flush delay to show up
+                long deadline = System.nanoTime() + flushNanos;
+                while(batch.size() < batchSize)
+                {
+                    long remaining = deadline - System.nanoTime();
+                    T next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if(next == null)
+                        break;
+                    batch.add(next);
+                }
+            } catch(InterruptedException e) {
+                // Nothing interrupts this but closing, which is checked above
+            }
+
+            if(!batch.isEmpty())
+            {
+                flushOrDrop(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void flushOrDrop(List<T> batch)
+    {
+        if(!flush(batch, MAX_ATTEMPTS))
+            isolate(batch);
+    }
+
+    // Returns false if every attempt failed, or if retrying was interrupted.
+    // An interrupt is kept for the caller, and nothing is retried after one.
+    private boolean flush(List<T> batch, int attempts)
+    {
+        long delay = Math.max(TimeUnit.NANOSECONDS.toMillis(flushNanos), MIN_RETRY_MILLIS);
+        for(int attempt = 1; ; attempt++)
+        {
+            try {
+                flusher.flush(batch);
+                written.addAndGet(batch.size());
+                flushes.incrementAndGet();
+                return true;
+            } catch(SQLException | RuntimeException e) {
+                failures.incrementAndGet();
+                LOG.warn("Failed to flush {} writes (attempt {} of {}): ", batch.size(), attempt, attempts, e);
+                if(e instanceof SQLNonTransientException)
+                    return false;
+            }
+
+            if(attempt >= attempts || Thread.currentThread().isInterrupted())
+                return false;
+            try {
+                Thread.sleep(delay);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            delay *= 2;
+        }
+    }
+
+    // Flushes each half of a group that keeps failing on its own, in order,
+    // until whatever is left failing is a single write.
+    private void isolate(List<T> batch)
+    {
+        if(batch.size() == 1)
+        {
+            dropped.incrementAndGet();
+            LOG.error("Dropped a write that could not be flushed, so the database no longer matches memory " +
+                      "until the maintenance check and recompute are run: {}", batch.get(0));
+            return;
+        }
+
+        int half = batch.size() / 2;
+        List<T> first = batch.subList(0, half);
+        List<T> second = batch.subList(half, batch.size());
+        if(!flush(first, 1))
+            isolate(first);
+        if(!flush(second, 1))
+            isolate(second);
+    }
+
+    // Writes waiting to be flushed
+    public int size()
+    {
+        return queue.size();
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    public long getAddedCount()
+    {
+        return added.get();
+    }
+
+    public long getWrittenCount()
+    {
+        return written.get();
+    }
+
+    public long getFlushCount()
+    {
+        return flushes.get();
+    }
+
+    // Number of adds that had to wait for the queue to have room
+    public long getBlockedCount()
+    {
+        return blocked.get();
+    }
+
+    public long getFailureCount()
+    {
+        return failures.get();
+    }
+
+    // Writes that failed on their own and were given up on
+    public long getDroppedCount()
+    {
+        return dropped.get();
+    }
+
+    // Flushes everything still queued before returning
+    @Override
+    public void close()
+    {
+        closed = true;
+        if(!thread.isAlive())
+        {
+            List<T> rest = new ArrayList<>(queue);
+            queue.clear();
+            if(!rest.isEmpty())
+                flushOrDrop(rest);
+            return;
+        }
+
+        try {
+            thread.join(CLOSE_TIMEOUT_MILLIS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if(thread.isAlive())
+            LOG.error("Timed out waiting for {} writes to be flushed!", queue.size());
+    }
+
+    @FunctionalInterface
+    public interface Flusher<T>
+    {
+        // Everything in the batch must be written together, in order
+        void flush(List<T> batch) throws SQLException;
+    }
+}
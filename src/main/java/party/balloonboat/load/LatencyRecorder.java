@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.load;
+
+import java.util.Arrays;
+
+/**
+ * Keeps every latency recorded for one kind of operation, so percentiles
+ * come out exact instead of estimated.
+ *
+ * @author Kaidan Gustave
+ */
+public class LatencyRecorder
+{
+    private long[] nanos = new long[1024];
+    private int count = 0;
+    private long errors = 0;
+
+    public synchronized void record(long latencyNanos)
+    {
+        if(count == nanos.length)
+            nanos = Arrays.copyOf(nanos, count * 2);
+        nanos[count++] = latencyNanos;
+    }
+
+    public synchronized void recordError()
+    {
+        errors++;
+    }
+
+    public synchronized int getCount()
+    {
+        return count;
+    }
+
+    public synchronized long getErrorCount()
+    {
+        return errors;
+    }
+
+    // Latencies at each of the given fractions, from 0 to 1, in nanoseconds
+    public synchronized long[] getPercentiles(double... fractions)
+    {
+        long[] sorted = Arrays.copyOf(nanos, count);
+        Arrays.sort(sorted);
+
+        long[] percentiles = new long[fractions.length];
+        if(count == 0)
+            return percentiles;
+        for(int i = 0; i < fractions.length; i++)
+        {
+            // Nearest rank
+            int rank = (int) Math.ceil(fractions[i] * count);
+            percentiles[i] = sorted[Math.max(0, Math.min(count, rank) - 1)];
+        }
+        return percentiles;
+    }
+
+    public synchronized double getMean()
+    {
+        if(count == 0)
+            return 0;
+        double total = 0;
+        for(int i = 0; i < count; i++)
+            total += nanos[i];
+        return total / count;
+    }
+}
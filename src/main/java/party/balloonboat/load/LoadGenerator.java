@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.load;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import party.balloonboat.data.AsyncDatabase;
+import party.balloonboat.data.AuditWebhook;
+import party.balloonboat.data.ConnectionPool;
+import party.balloonboat.data.Database;
+import party.balloonboat.data.Leaderboard;
+import party.balloonboat.data.SlowQueryLog;
+import party.balloonboat.data.WriteQueue;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Generates and replays rating workloads against a local database,
+ * without connecting to Discord.
+ *
+ * <p>Usage:
+ * <pre>
+ *     generate &lt;workload.json&gt; &lt;trace&gt;         writes a workload's operations to a trace
+ *     replay &lt;trace&gt; [options]                  replays a trace
+ *     run &lt;workload.json&gt; [options]             replays a workload without writing a trace
+ *
+ *     --url=&lt;jdbc url&gt;    database to replay against, defaults to a new one in memory
+ *     --speed=&lt;factor&gt;    how much faster than real time to replay, 0 for as fast as possible
+ *     --threads=&lt;count&gt;   how many operations can run at once, in the replay and the database
+ *     --log=&lt;path&gt;        keep ratings in a rating log instead of the database
+ * </pre>
+ * Replaying against a copy of a real database file reproduces what
+ * happened to it, as long as the trace doesn't seed it as well.
+ *
+ * @author Kaidan Gustave
+ */
+public class LoadGenerator
+{
+    public static final Logger LOG = LoggerFactory.getLogger(LoadGenerator.class);
+
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length < 2)
+        {
+            System.err.println("Usage: generate <workload.json> <trace> | replay <trace> [options] | run <workload.json> [options]");
+            System.exit(1);
+        }
+
+        switch(args[0])
+        {
+            case "generate":
+            {
+                if(args.length < 3)
+                {
+                    System.err.println("Usage: generate <workload.json> <trace>");
+                    System.exit(1);
+                }
+                Workload workload = readWorkload(Paths.get(args[1]));
+                try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(args[2])))
+                {
+                    workload.generate(operation -> {
+                        try {
+                            writer.write(operation.toString());
+                            writer.newLine();
+                        } catch(IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                }
+                break;
+            }
+
+            case "replay":
+            {
+                try (BufferedReader reader = Files.newBufferedReader(Paths.get(args[1]));
+                     Stream<String> lines = reader.lines())
+                {
+                    replay(lines.map(String::trim)
+                                .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                                .map(Operation::parse)
+                                .iterator(), args);
+                }
+                break;
+            }
+
+            case "run":
+            {
+                // Small enough to keep in memory, as it would be written to a trace anyways
+                List<Operation> operations = new ArrayList<>();
+                readWorkload(Paths.get(args[1])).generate(operations::add);
+                replay(operations.iterator(), args);
+                break;
+            }
+
+            default:
+                System.err.println("Unknown command: "+args[0]);
+                System.exit(1);
+        }
+    }
+
+    private static void replay(Iterator<Operation> operations, String[] args) throws Exception
+    {
+        String url = option(args, "url", "jdbc:h2:mem:load;DB_CLOSE_DELAY=-1");
+        double speed = Double.parseDouble(option(args, "speed", "1"));
+        int threads = Integer.parseInt(option(args, "threads", String.valueOf(AsyncDatabase.DEFAULT_THREADS)));
+        String log = option(args, "log", null);
+
+        // Without a webhook token nothing is sent to Discord. The database gets a thread for each
+        // one replaying and a connection for each of those and the writer, so operations never
+        // queue inside it and have that counted as latency.
+        Database database = new Database(url, "sa", "", 0L, null,
+                Leaderboard.DEFAULT_SIZE, Math.max(ConnectionPool.DEFAULT_SIZE, threads + 1), threads,
+                WriteQueue.DEFAULT_CAPACITY, WriteQueue.DEFAULT_BATCH_SIZE, WriteQueue.DEFAULT_FLUSH_MILLIS,
+                AuditWebhook.DEFAULT_CAPACITY, SlowQueryLog.DEFAULT_THRESHOLD_MILLIS, log);
+        database.init();
+
+        try {
+            Replayer replayer = new Replayer(database, speed, threads);
+            long start = System.currentTimeMillis();
+            replayer.replay(operations);
+            LOG.info("Replayed in {}ms, latencies in milliseconds:\n{}",
+                    System.currentTimeMillis() - start, replayer.getReport());
+            LOG.info("Database metrics:\n{}", database.getMetrics().getReport());
+        } finally {
+            database.shutdown();
+        }
+    }
+
+    private static Workload readWorkload(Path path) throws IOException
+    {
+        return new Workload(new JSONObject(new String(Files.readAllBytes(path))));
+    }
+
+    private static String option(String[] args, String name, String defaultValue)
+    {
+        for(String arg : args)
+        {
+            if(arg.startsWith("--"+name+"="))
+                return arg.substring(name.length() + 3);
+        }
+        return defaultValue;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.load;
+
+/**
+ * A single call made against the database at some point in a workload.
+ *
+ * <p>Traces store one operation per line as its time in milliseconds from
+ * the start, its type, and its arguments, separated by spaces:
+ * <pre>
+ *     1520 RATE 100000000000000001 100000000000000007 4
+ *     1523 RATINGS_TO 100000000000000007
+ * </pre>
+ * Ratings with a negative time seed the database before the workload
+ * starts, and are not timed.
+ *
+ * @author Kaidan Gustave
+ */
+public class Operation
+{
+    private final long time;
+    private final Type type;
+    private final long userId;
+    private final long targetId;
+    private final short rating;
+
+    public Operation(long time, Type type, long userId)
+    {
+        this(time, type, userId, 0L, (short) 0);
+    }
+
+    public Operation(long time, Type type, long userId, long targetId, short rating)
+    {
+        this.time = time;
+        this.type = type;
+        this.userId = userId;
+        this.targetId = targetId;
+        this.rating = rating;
+    }
+
+    public static Operation parse(String line)
+    {
+        String[] parts = line.trim().split("\\s+");
+        if(parts.length < 2)
+            throw new IllegalArgumentException("Invalid trace line: "+line);
+
+        long time = Long.parseLong(parts[0]);
+        Type type = Type.valueOf(parts[1]);
+        if(parts.length != type.getArguments() + 2)
+            throw new IllegalArgumentException("Expected "+type.getArguments()+" arguments for "+type+": "+line);
+
+        switch(type.getArguments())
+        {
+            case 0:  return new Operation(time, type, 0L);
+            case 1:  return new Operation(time, type, Long.parseLong(parts[2]));
+            default: return new Operation(time, type, Long.parseLong(parts[2]),
+                                          Long.parseLong(parts[3]), Short.parseShort(parts[4]));
+        }
+    }
+
+    public long getTime()
+    {
+        return time;
+    }
+
+    public Type getType()
+    {
+        return type;
+    }
+
+    public long getUserId()
+    {
+        return userId;
+    }
+
+    public long getTargetId()
+    {
+        return targetId;
+    }
+
+    public short getRating()
+    {
+        return rating;
+    }
+
+    public boolean isSeed()
+    {
+        return time < 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        switch(type.getArguments())
+        {
+            case 0:  return time+" "+type;
+            case 1:  return time+" "+type+" "+userId;
+            default: return time+" "+type+" "+userId+" "+targetId+" "+rating;
+        }
+    }
+
+    public enum Type
+    {
+        // Database#setRating, for a pair that hasn't rated before
+        RATE(3),
+        // Database#setRating, for a pair that has
+        RERATE(3),
+        // Database#getUserRating, as the rank command does
+        RANK(1),
+        // Database#getRatingsTo
+        RATINGS_TO(1),
+        // Database#getRatingsFrom
+        RATINGS_FROM(1),
+        // Database#getUserRating, as reconciling a new member's roles does
+        JOIN(1),
+        // Database#getTopRatings and each of their ratings, as the leaderboard refresh does
+        LEADERBOARD(0);
+
+        private final int arguments;
+
+        Type(int arguments)
+        {
+            this.arguments = arguments;
+        }
+
+        public int getArguments()
+        {
+            return arguments;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.load;
+
+import net.dv8tion.jda.core.entities.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import party.balloonboat.data.Database;
+
+import java.lang.reflect.Proxy;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plays operations against a {@link Database} at the times they happened,
+ * and records how long each kind took.
+ *
+ * <p>Latency is measured from when an operation was due, not from when a
+ * thread got around to it, so falling behind shows up in the results
+ * rather than quietly slowing the replay down.
+ *
+ * @author Kaidan Gustave
+ */
+public class Replayer
+{
+    public static final Logger LOG = LoggerFactory.getLogger(Replayer.class);
+
+    private final Database database;
+    private final double speed;
+    private final int threads;
+    private final Map<Operation.Type, LatencyRecorder> recorders = new EnumMap<>(Operation.Type.class);
+
+    // A speed of 0 replays as fast as possible
+    public Replayer(Database database, double speed, int threads)
+    {
+        if(speed < 0)
+            throw new IllegalArgumentException("Speed must not be negative!");
+        if(threads < 1)
+            throw new IllegalArgumentException("Replay must have at least 1 thread!");
+        this.database = database;
+        this.speed = speed;
+        this.threads = threads;
+        for(Operation.Type type : Operation.Type.values())
+            recorders.put(type, new LatencyRecorder());
+    }
+
+    public void replay(Iterator<Operation> operations) throws InterruptedException, ExecutionException
+    {
+        AtomicInteger count = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "Replay Thread "+count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            long seeded = 0;
+            long start = -1;
+            while(operations.hasNext())
+            {
+                Operation operation = operations.next();
+
+                // Seeding is done in order before anything is timed
+                if(operation.isSeed())
+                {
+                    if(operation.getType() != Operation.Type.RATE && operation.getType() != Operation.Type.RERATE)
+                        throw new IllegalArgumentException("Only ratings can seed the database: "+operation);
+                    database.setRating(user(operation.getUserId()), user(operation.getTargetId()),
+                            operation.getRating());
+                    if(++seeded % 100000 == 0)
+                        LOG.info("Seeded {} ratings...", seeded);
+                    continue;
+                }
+
+                if(start == -1)
+                {
+                    LOG.info("Seeded {} ratings, starting replay...", seeded);
+                    start = System.nanoTime();
+                }
+
+                long due = speed == 0 ? System.nanoTime()
+                                      : start + (long) (TimeUnit.MILLISECONDS.toNanos(operation.getTime()) / speed);
+                long wait = due - System.nanoTime();
+                if(wait > 0)
+                    TimeUnit.NANOSECONDS.sleep(wait);
+
+                executor.execute(() -> {
+                    try {
+                        run(operation);
+                        recorders.get(operation.getType()).record(System.nanoTime() - due);
+                    } catch(Exception e) {
+                        recorders.get(operation.getType()).recordError();
+                        LOG.warn("Failed to replay {}: ", operation, e);
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public Map<Operation.Type, LatencyRecorder> getRecorders()
+    {
+        return recorders;
+    }
+
+    // A table of latencies in milliseconds for each kind of operation that was replayed
+    public String getReport()
+    {
+        StringBuilder report = new StringBuilder(String.format("%-13s %9s %7s %9s %9s %9s %9s %9s %9s%n",
+                "OPERATION", "COUNT", "ERRORS", "MEAN", "P50", "P90", "P99", "P99.9", "MAX"));
+        for(Map.Entry<Operation.Type, LatencyRecorder> entry : recorders.entrySet())
+        {
+            LatencyRecorder recorder = entry.getValue();
+            if(recorder.getCount() == 0 && recorder.getErrorCount() == 0)
+                continue;
+            long[] p = recorder.getPercentiles(0.5, 0.9, 0.99, 0.999, 1.0);
+            report.append(String.format("%-13s %9d %7d %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f%n",
+                    entry.getKey(), recorder.getCount(), recorder.getErrorCount(), recorder.getMean() / 1e6,
+                    p[0] / 1e6, p[1] / 1e6, p[2] / 1e6, p[3] / 1e6, p[4] / 1e6));
+        }
+        return report.toString();
+    }
+
+    // Commands go through the async database, so these do too
+    private void run(Operation operation) throws InterruptedException, ExecutionException
+    {
+        switch(operation.getType())
+        {
+            case RATE:
+            case RERATE:
+                database.async().setRating(user(operation.getUserId()), user(operation.getTargetId()),
+                        operation.getRating()).get();
+                break;
+
+            case RANK:
+                database.async().getUserRating(user(operation.getUserId())).get();
+                break;
+
+            case RATINGS_TO:
+                database.async().getRatingsTo(user(operation.getUserId())).get();
+                break;
+
+            case RATINGS_FROM:
+                database.async().getRatingsFrom(user(operation.getUserId())).get();
+                break;
+
+            case JOIN:
+                database.getUserRating(operation.getUserId());
+                break;
+
+            case LEADERBOARD:
+                for(long userId : database.getTopRatings())
+                    database.getUserRating(userId);
+                break;
+        }
+    }
+
+    // Only what rating needs of a user
+    private static User user(long userId)
+    {
+        return (User) Proxy.newProxyInstance(User.class.getClassLoader(), new Class<?>[] { User.class }, (proxy, method, args) -> {
+            switch(method.getName())
+            {
+                case "getIdLong":        return userId;
+                case "getId":            return String.valueOf(userId);
+                case "getName":          return "User"+userId;
+                case "getDiscriminator": return "0000";
+                case "equals":           return proxy == args[0];
+                case "hashCode":         return Long.hashCode(userId);
+                case "toString":         return "U:User"+userId+"("+userId+")";
+                default:                 throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
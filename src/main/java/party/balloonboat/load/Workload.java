@@ -0,0 +1,245 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.load;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * Describes synthetic traffic, and generates the same operations for the
+ * same description every time.
+ *
+ * <p>Targets are picked with a power law, so a few users get most of the
+ * ratings the way popular users do for real. Everything else arrives at
+ * random at its average rate, with bursts of re-rates on top.
+ *
+ * <p>Descriptions are JSON, and any key left out uses its default:
+ * <pre>
+ * {
+ *     "seed": 1,
+ *     "users": 10000,
+ *     "seed_ratings_per_user": 5,
+ *     "duration_seconds": 60,
+ *     "popularity_skew": 3.0,
+ *     "rates_per_second": 10.0,
+ *     "rerate_fraction": 0.3,
+ *     "lookups_per_second": 20.0,
+ *     "joins_per_second": 1.0,
+ *     "leaderboard_seconds": 300,
+ *     "burst_every_seconds": 30,
+ *     "burst_size": 50
+ * }
+ * </pre>
+ *
+ * @author Kaidan Gustave
+ */
+public class Workload
+{
+    // Generated user IDs are snowflake sized
+    private static final long FIRST_USER_ID = 100000000000000000L;
+
+    private final long seed;
+    private final int users;
+    private final int seedRatingsPerUser;
+    private final long durationSeconds;
+    private final double popularitySkew;
+    private final double ratesPerSecond;
+    private final double rerateFraction;
+    private final double lookupsPerSecond;
+    private final double joinsPerSecond;
+    private final long leaderboardSeconds;
+    private final long burstEverySeconds;
+    private final int burstSize;
+
+    public Workload(JSONObject json)
+    {
+        this.seed = json.optLong("seed", 1L);
+        this.users = json.optInt("users", 10000);
+        this.seedRatingsPerUser = json.optInt("seed_ratings_per_user", 5);
+        this.durationSeconds = json.optLong("duration_seconds", 60L);
+        this.popularitySkew = json.optDouble("popularity_skew", 3.0);
+        this.ratesPerSecond = json.optDouble("rates_per_second", 10.0);
+        this.rerateFraction = json.optDouble("rerate_fraction", 0.3);
+        this.lookupsPerSecond = json.optDouble("lookups_per_second", 20.0);
+        this.joinsPerSecond = json.optDouble("joins_per_second", 1.0);
+        this.leaderboardSeconds = json.optLong("leaderboard_seconds", 300L);
+        this.burstEverySeconds = json.optLong("burst_every_seconds", 30L);
+        this.burstSize = json.optInt("burst_size", 50);
+
+        if(users < 2)
+            throw new IllegalArgumentException("A workload must have at least 2 users!");
+        if(popularitySkew < 1)
+            throw new IllegalArgumentException("Popularity skew must be at least 1!");
+    }
+
+    // Seed ratings come first, then everything else in the order it happens
+    public void generate(Consumer<Operation> operations)
+    {
+        Random random = new Random(seed);
+
+        // Every pair that has been rated, for picking re-rates from
+        Pairs pairs = new Pairs();
+
+        for(int i = 0; i < users; i++)
+        {
+            long userId = FIRST_USER_ID + i;
+            for(int j = 0; j < seedRatingsPerUser; j++)
+            {
+                long targetId = popularUser(random);
+                if(targetId == userId)
+                    continue;
+                pairs.add(userId, targetId);
+                operations.accept(new Operation(-1L, Operation.Type.RATE, userId, targetId, rating(random)));
+            }
+        }
+
+        long durationMillis = durationSeconds * 1000;
+        List<Operation> timed = new ArrayList<>();
+
+        // Ratings, some of which are users changing their minds
+        for(long time : arrivals(random, ratesPerSecond, durationMillis))
+        {
+            if(!pairs.isEmpty() && random.nextDouble() < rerateFraction)
+            {
+                timed.add(rerate(random, pairs, time));
+            }
+            else
+            {
+                long userId = randomUser(random);
+                long targetId = popularUser(random);
+                if(userId == targetId)
+                    continue;
+                pairs.add(userId, targetId);
+                timed.add(new Operation(time, Operation.Type.RATE, userId, targetId, rating(random)));
+            }
+        }
+
+        // Bursts of re-rates, spread over a second
+        if(burstEverySeconds > 0 && burstSize > 0 && !pairs.isEmpty())
+        {
+            for(long time = burstEverySeconds * 1000; time < durationMillis; time += burstEverySeconds * 1000)
+            {
+                for(int i = 0; i < burstSize; i++)
+                    timed.add(rerate(random, pairs, time + random.nextInt(1000)));
+            }
+        }
+
+        // Lookups, with the users looked up being as popular as the ones rated
+        Operation.Type[] lookups = { Operation.Type.RANK, Operation.Type.RATINGS_TO, Operation.Type.RATINGS_FROM };
+        for(long time : arrivals(random, lookupsPerSecond, durationMillis))
+            timed.add(new Operation(time, lookups[random.nextInt(lookups.length)], popularUser(random)));
+
+        for(long time : arrivals(random, joinsPerSecond, durationMillis))
+            timed.add(new Operation(time, Operation.Type.JOIN, randomUser(random)));
+
+        if(leaderboardSeconds > 0)
+        {
+            for(long time = 0; time < durationMillis; time += leaderboardSeconds * 1000)
+                timed.add(new Operation(time, Operation.Type.LEADERBOARD, 0L));
+        }
+
+        // Stable, so operations at the same time stay in the order they were made
+        timed.sort(Comparator.comparingLong(Operation::getTime));
+        timed.forEach(operations);
+    }
+
+    private Operation rerate(Random random, Pairs pairs, long time)
+    {
+        int pair = random.nextInt(pairs.size());
+        return new Operation(time, Operation.Type.RERATE, pairs.getUserId(pair), pairs.getTargetId(pair), rating(random));
+    }
+
+    private long randomUser(Random random)
+    {
+        return FIRST_USER_ID + random.nextInt(users);
+    }
+
+    // Lower IDs are picked much more often
+    private long popularUser(Random random)
+    {
+        return FIRST_USER_ID + (long) (Math.pow(random.nextDouble(), popularitySkew) * users);
+    }
+
+    private static short rating(Random random)
+    {
+        return (short) (random.nextInt(5) + 1);
+    }
+
+    // Times in milliseconds of something happening at random at the given average rate
+    private static long[] arrivals(Random random, double perSecond, long durationMillis)
+    {
+        if(perSecond <= 0)
+            return new long[0];
+
+        long[] times = new long[1024];
+        int count = 0;
+        for(double time = 0; ; count++)
+        {
+            time += -Math.log(1 - random.nextDouble()) * 1000 / perSecond;
+            if(time >= durationMillis)
+                break;
+            if(count == times.length)
+                times = Arrays.copyOf(times, count * 2);
+            times[count] = (long) time;
+        }
+        return Arrays.copyOf(times, count);
+    }
+
+    private static class Pairs
+    {
+        private long[] userIds = new long[1024];
+        private long[] targetIds = new long[1024];
+        private int size = 0;
+
+        private void add(long userId, long targetId)
+        {
+            if(size == userIds.length)
+            {
+                userIds = Arrays.copyOf(userIds, size * 2);
+                targetIds = Arrays.copyOf(targetIds, size * 2);
+            }
+            userIds[size] = userId;
+            targetIds[size] = targetId;
+            size++;
+        }
+
+        private long getUserId(int index)
+        {
+            return userIds[index];
+        }
+
+        private long getTargetId(int index)
+        {
+            return targetIds[index];
+        }
+
+        private int size()
+        {
+            return size;
+        }
+
+        private boolean isEmpty()
+        {
+            return size == 0;
+        }
+    }
+}
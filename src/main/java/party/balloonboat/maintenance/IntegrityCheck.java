@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.maintenance;
+
+import party.balloonboat.data.ConnectionPool;
+import party.balloonboat.data.Recalculator;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Looks for rows that the bot would never have written itself, each check
+ * counting the rows it finds on a connection of its own.
+ *
+ * @author Kaidan Gustave
+ */
+class IntegrityCheck
+{
+    // Each query counts the rows that are wrong
+    private static final String[][] CHECKS = {
+            {"Ratings out of range",
+                    "SELECT COUNT(*) FROM RATINGS WHERE RATING IS NULL OR RATING NOT BETWEEN 1 AND 5"},
+            {"Users who rated themselves",
+                    "SELECT COUNT(*) FROM RATINGS WHERE USER_ID = TARGET_ID"},
+            {"Raters without calculations",
+                    "SELECT COUNT(DISTINCT USER_ID) FROM RATINGS R " +
+                    "WHERE NOT EXISTS (SELECT 1 FROM CALCULATIONS C WHERE C.USER_ID = R.USER_ID)"},
+            {"Rated users without calculations",
+                    "SELECT COUNT(DISTINCT TARGET_ID) FROM RATINGS R " +
+                    "WHERE NOT EXISTS (SELECT 1 FROM CALCULATIONS C WHERE C.USER_ID = R.TARGET_ID)"},
+            {"Effective ratings not matching true ratings",
+                    "SELECT COUNT(*) FROM CALCULATIONS " +
+                    "WHERE TRUE_RATING IS NULL OR EFFECTIVE_RATING IS NULL OR EFFECTIVE_RATING <> ROUND(TRUE_RATING)"},
+            {"Ratings with an outdated user rating",
+                    "SELECT COUNT(*) FROM RATINGS R JOIN CALCULATIONS C ON C.USER_ID = R.USER_ID " +
+                    "WHERE R.USER_RATING IS NULL OR R.USER_RATING <> C.EFFECTIVE_RATING"}
+    };
+
+    private final ConnectionPool pool;
+    private final ExecutorService executor;
+    private final int parallelism;
+
+    IntegrityCheck(ConnectionPool pool, ExecutorService executor, int parallelism)
+    {
+        this.pool = pool;
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    // Returns how many checks found problems
+    int run() throws IOException, SQLException, InterruptedException
+    {
+        Progress progress = new Progress("Checking", "checks", CHECKS.length + 1);
+
+        // Recalculating everything takes longest, so it starts first
+        List<Future<Long>> futures = new ArrayList<>();
+        futures.add(executor.submit(() -> {
+            try {
+                return (long) new Recalculator(pool, parallelism).countStale();
+            } finally {
+                progress.add(1);
+            }
+        }));
+
+        for(String[] check : CHECKS)
+        {
+            futures.add(executor.submit(() -> {
+                try {
+                    return count(check[1]);
+                } finally {
+                    progress.add(1);
+                }
+            }));
+        }
+
+        int failed = 0;
+        for(int i = 0; i < futures.size(); i++)
+        {
+            String name = i == 0 ? "Calculations not matching their ratings" : CHECKS[i - 1][0];
+            long count = Maintenance.await(futures.get(i));
+            if(count == 0)
+            {
+                Maintenance.LOG.info("{}: none", name);
+            }
+            else
+            {
+                Maintenance.LOG.warn("{}: {}", name, count);
+                failed++;
+            }
+        }
+        progress.finish();
+        return failed;
+    }
+
+    private long count(String sql) throws SQLException
+    {
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet results = statement.executeQuery(sql))
+        {
+            return results.next() ? results.getLong(1) : 0;
+        }
+    }
+}
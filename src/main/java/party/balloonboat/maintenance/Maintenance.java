@@ -0,0 +1,317 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.maintenance;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import party.balloonboat.Bot;
+import party.balloonboat.data.ConnectionPool;
+import party.balloonboat.data.Database;
+import party.balloonboat.data.Recalculator;
+import party.balloonboat.data.SchemaTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Maintains the database while the bot is stopped, so heavy jobs never
+ * compete with live traffic. H2 locks the file while it's open, so these
+ * can't be run against a database the bot is using.
+ *
+ * <p>Usage, from the same jar as the bot:
+ * <pre>
+ *     java -cp BalloonBoat.jar party.balloonboat.maintenance.Maintenance &lt;job&gt; [options]
+ *
+ *     recompute             recalculates every rated user from their ratings
+ *     check                 looks for rows the bot would never have written
+ *     compact               defragments the database file
+ *     stats                 counts users, ratings, and how they are spread out
+ *     export &lt;directory&gt;    writes every table to CSV files
+ *     import &lt;directory&gt;    merges CSV files from an export into the database
+ *
+ *     --url=&lt;jdbc url&gt;      database to open, defaults to the one in config.json
+ *     --user=&lt;username&gt;    --pass=&lt;password&gt;
+ *     --threads=&lt;count&gt;     how many threads jobs may use, defaults to one per core
+ * </pre>
+ * Every job except import refuses to create a database that doesn't exist.
+ *
+ * @author Kaidan Gustave
+ */
+public class Maintenance
+{
+    public static final Logger LOG = LoggerFactory.getLogger(Maintenance.class);
+
+    private static final String[] JOBS = {"recompute", "check", "compact", "stats", "export", "import"};
+    private static final String USAGE = "Usage: <recompute | check | compact | stats | export <directory> | " +
+                                        "import <directory>> [--url=<jdbc url>] [--user=<username>] " +
+                                        "[--pass=<password>] [--threads=<count>]";
+
+    // Each query is shown as its own section, with a line for each row
+    private static final String[][] STATS = {
+            {"Ratings",
+                    "SELECT COUNT(*) AS RATINGS, COUNT(DISTINCT USER_ID) AS RATERS, " +
+                    "COUNT(DISTINCT TARGET_ID) AS TARGETS FROM RATINGS"},
+            {"Ratings given",
+                    "SELECT RATING, COUNT(*) AS COUNT FROM RATINGS GROUP BY RATING ORDER BY RATING"},
+            {"Users",
+                    "SELECT COUNT(*) AS USERS, AVG(TRUE_RATING) AS AVERAGE_TRUE_RATING, " +
+                    "MIN(TRUE_RATING) AS LOWEST, MAX(TRUE_RATING) AS HIGHEST FROM CALCULATIONS"},
+            {"Effective ratings",
+                    "SELECT EFFECTIVE_RATING, COUNT(*) AS COUNT FROM CALCULATIONS " +
+                    "GROUP BY EFFECTIVE_RATING ORDER BY EFFECTIVE_RATING"},
+            {"Settings",
+                    "SELECT (SELECT COUNT(*) FROM GUILD_SETTINGS) AS GUILDS, " +
+                    "(SELECT COUNT(*) FROM PRIVATE_SETTINGS WHERE FLAGS <> 0) AS USERS_WITH_FLAGS"},
+            {"Saved statistics",
+                    "SELECT NAME, VALUE FROM STATISTICS ORDER BY NAME"}
+    };
+
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length < 1)
+            exit(USAGE);
+
+        String job = args[0];
+        if(!Arrays.asList(JOBS).contains(job))
+            exit("Unknown job: "+job+"\n"+USAGE);
+        boolean needsDirectory = job.equals("export") || job.equals("import");
+        if(needsDirectory && (args.length < 2 || args[1].startsWith("--")))
+            exit("Usage: "+job+" <directory> [options]");
+
+        String url = option(args, "url", null);
+        String user = option(args, "user", null);
+        String pass = option(args, "pass", null);
+        if(url == null)
+        {
+            Bot.Config config = new Bot.Config(Paths.get(System.getProperty("user.dir"), "config.json"));
+            url = config.getDatabasePathname();
+            user = user == null ? config.getDatabaseUsername() : user;
+            pass = pass == null ? config.getDatabasePassword() : pass;
+        }
+        user = user == null ? "" : user;
+        pass = pass == null ? "" : pass;
+        int threads = Integer.parseInt(option(args, "threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        if(threads < 1)
+            exit("Threads must be at least 1!");
+
+        // A typo shouldn't leave an empty database behind
+        String openUrl = url;
+        if(!job.equals("import") && url.startsWith("jdbc:h2:") && !url.startsWith("jdbc:h2:mem:")
+           && !url.toUpperCase().contains("IFEXISTS="))
+            openUrl = url+";IFEXISTS=TRUE";
+
+        // Each thread may hold a connection, and a job may hold one more while they work
+        ConnectionPool pool = new ConnectionPool(openUrl, user, pass, threads + 1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "Maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        boolean succeeded = false;
+        try {
+            // The same as the bot does on startup, so jobs always see the latest schema
+            try (Connection connection = pool.getConnection())
+            {
+                Database.createTables(connection);
+            }
+            int migrated = new SchemaTable(pool).migrate();
+            if(migrated > 0)
+                LOG.info("Migrated schema to version {}!", SchemaTable.getLatestVersion());
+
+            switch(job)
+            {
+                case "recompute":
+                    new Recalculator(pool, threads).run();
+                    succeeded = true;
+                    break;
+
+                case "check":
+                    int failed = new IntegrityCheck(pool, executor, threads).run();
+                    if(failed > 0)
+                        LOG.warn("{} checks found problems, recompute fixes any in calculations and user ratings", failed);
+                    else
+                        LOG.info("No problems found!");
+                    succeeded = failed == 0;
+                    break;
+
+                case "compact":
+                    compact(pool, url, user, pass);
+                    succeeded = true;
+                    break;
+
+                case "stats":
+                    stats(pool, executor, url);
+                    succeeded = true;
+                    break;
+
+                case "export":
+                    new TableTransfer(pool, executor).exportTo(Paths.get(args[1]));
+                    succeeded = true;
+                    break;
+
+                case "import":
+                    new TableTransfer(pool, executor).importFrom(Paths.get(args[1]));
+                    LOG.info("Imported! Running check afterwards shows if anything needs to be recomputed.");
+                    succeeded = true;
+                    break;
+            }
+        } finally {
+            executor.shutdownNow();
+            pool.close();
+        }
+
+        if(!succeeded)
+            System.exit(1);
+    }
+
+    private static void compact(ConnectionPool pool, String url, String user, String pass) throws SQLException
+    {
+        File file = getFile(url);
+        long before = file == null ? -1 : file.length();
+
+        // Shutting down closes every connection, so the pool is done with first
+        pool.close();
+        LOG.info("Compacting...");
+        long start = System.currentTimeMillis();
+        try (Connection connection = DriverManager.getConnection(url, user, pass);
+             Statement statement = connection.createStatement())
+        {
+            statement.execute("SHUTDOWN DEFRAG");
+        }
+
+        if(file == null)
+            LOG.info("Compacted in {}ms", System.currentTimeMillis() - start);
+        else
+            LOG.info("Compacted from {}KB to {}KB in {}ms", before / 1024, file.length() / 1024,
+                    System.currentTimeMillis() - start);
+    }
+
+    private static void stats(ConnectionPool pool, ExecutorService executor, String url)
+            throws IOException, SQLException, InterruptedException
+    {
+        Progress progress = new Progress("Counting", "queries", STATS.length);
+        List<Future<String>> futures = new ArrayList<>();
+        for(String[] stat : STATS)
+        {
+            futures.add(executor.submit(() -> {
+                try {
+                    return query(pool, stat[1]);
+                } finally {
+                    progress.add(1);
+                }
+            }));
+        }
+
+        StringBuilder report = new StringBuilder();
+        report.append("Schema version: ").append(new SchemaTable(pool).getVersion()).append('\n');
+        File file = getFile(url);
+        if(file != null)
+            report.append("File size: ").append(file.length() / 1024).append("KB\n");
+        for(int i = 0; i < STATS.length; i++)
+            report.append('\n').append(STATS[i][0]).append(":\n").append(await(futures.get(i)));
+        progress.finish();
+        LOG.info("Statistics:\n{}", report);
+    }
+
+    private static String query(ConnectionPool pool, String sql) throws SQLException
+    {
+        StringBuilder builder = new StringBuilder();
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet results = statement.executeQuery(sql))
+        {
+            ResultSetMetaData meta = results.getMetaData();
+            while(results.next())
+            {
+                builder.append(' ');
+                for(int i = 1; i <= meta.getColumnCount(); i++)
+                    builder.append(' ').append(meta.getColumnLabel(i)).append('=').append(results.getString(i));
+                builder.append('\n');
+            }
+        }
+        return builder.toString();
+    }
+
+    // The file H2 keeps a database in, or null if it isn't a local file
+    private static File getFile(String url)
+    {
+        if(!url.startsWith("jdbc:h2:"))
+            return null;
+        String path = url.substring("jdbc:h2:".length());
+        int settings = path.indexOf(';');
+        if(settings != -1)
+            path = path.substring(0, settings);
+        if(path.startsWith("file:"))
+            path = path.substring("file:".length());
+        else if(path.startsWith("mem:") || path.startsWith("tcp:") || path.startsWith("ssl:") || path.startsWith("zip:"))
+            return null;
+        if(path.startsWith("~"))
+            path = System.getProperty("user.home") + path.substring(1);
+
+        File file = new File(path+".mv.db");
+        return file.exists() ? file : null;
+    }
+
+    // Waits for a job submitted to the executor, unwrapping the exception it threw
+    static <T> T await(Future<T> future) throws IOException, SQLException, InterruptedException
+    {
+        try {
+            return future.get();
+        } catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof SQLException)
+                throw (SQLException) cause;
+            if(cause instanceof IOException)
+                throw (IOException) cause;
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if(cause instanceof Error)
+                throw (Error) cause;
+            throw new SQLException(cause);
+        }
+    }
+
+    private static String option(String[] args, String name, String defaultValue)
+    {
+        for(String arg : args)
+        {
+            if(arg.startsWith("--"+name+"="))
+                return arg.substring(name.length() + 3);
+        }
+        return defaultValue;
+    }
+
+    private static void exit(String message)
+    {
+        System.err.println(message);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.maintenance;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts work done by any number of threads, logging how far along it
+ * is at most once every few seconds.
+ *
+ * @author Kaidan Gustave
+ */
+class Progress
+{
+    private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private final String task;
+    private final String unit;
+    private final long total;
+    private final long start = System.nanoTime();
+    private final AtomicLong done = new AtomicLong(0);
+    private final AtomicLong lastReport = new AtomicLong(start);
+
+    // A total of 0 if it isn't known ahead of time
+    Progress(String task, String unit, long total)
+    {
+        this.task = task;
+        this.unit = unit;
+        this.total = total;
+    }
+
+    void add(long count)
+    {
+        long now = System.nanoTime();
+        long done = this.done.addAndGet(count);
+        long last = lastReport.get();
+
+        // Only the thread that claims the report logs it
+        if(now - last >= INTERVAL_NANOS && lastReport.compareAndSet(last, now))
+        {
+            if(total > 0)
+                Maintenance.LOG.info("{}: {}/{} {} ({}%)", task, done, total, unit, done * 100 / total);
+            else
+                Maintenance.LOG.info("{}: {} {}", task, done, unit);
+        }
+    }
+
+    void finish()
+    {
+        Maintenance.LOG.info("{}: finished {} {} in {}ms", task, done.get(), unit,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.maintenance;
+
+import org.json.JSONObject;
+import party.balloonboat.data.ConnectionPool;
+import party.balloonboat.data.Database;
+import party.balloonboat.data.SchemaTable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Exports every table to a CSV file of its own, and imports them again.
+ *
+ * <p>Tables are transferred in parallel, each on its own connection. A
+ * manifest records the schema version and how many rows each table had,
+ * so an import can refuse files from a different version and knows how
+ * far along it is. Imports merge by each table's primary key, so they
+ * can go into a database that already has rows.
+ *
+ * <p>Empty fields are read as NULL, and empty strings are written quoted
+ * so they stay empty strings.
+ *
+ * @author Kaidan Gustave
+ */
+class TableTransfer
+{
+    private static final String MANIFEST = "manifest.json";
+    private static final int BATCH_SIZE = 1000;
+
+    private final ConnectionPool pool;
+    private final ExecutorService executor;
+
+    TableTransfer(ConnectionPool pool, ExecutorService executor)
+    {
+        this.pool = pool;
+        this.executor = executor;
+    }
+
+    void exportTo(Path directory) throws IOException, SQLException, InterruptedException
+    {
+        Files.createDirectories(directory);
+
+        // Counted first so there is a total to report progress against
+        JSONObject rows = new JSONObject();
+        long total = 0;
+        for(Database.Table table : getTables())
+        {
+            long count = count(table);
+            rows.put(table.name(), count);
+            total += count;
+        }
+
+        Progress progress = new Progress("Exporting", "rows", total);
+        List<Future<Void>> futures = new ArrayList<>();
+        for(Database.Table table : getTables())
+        {
+            futures.add(executor.submit(() -> {
+                exportTable(table, directory.resolve(table.name()+".csv"), progress);
+                return null;
+            }));
+        }
+        for(Future<Void> future : futures)
+            Maintenance.await(future);
+
+        JSONObject manifest = new JSONObject()
+                .put("schema_version", new SchemaTable(pool).getVersion())
+                .put("rows", rows);
+        Files.write(directory.resolve(MANIFEST), manifest.toString(2).getBytes(StandardCharsets.UTF_8));
+        progress.finish();
+    }
+
+    void importFrom(Path directory) throws IOException, SQLException, InterruptedException
+    {
+        JSONObject manifest = new JSONObject(new String(Files.readAllBytes(directory.resolve(MANIFEST)),
+                StandardCharsets.UTF_8));
+        int exported = manifest.getInt("schema_version");
+        int version = new SchemaTable(pool).getVersion();
+        if(exported != version)
+            throw new SQLException("Export is from schema version "+exported+", but the database is at version "+version+"!");
+
+        JSONObject rows = manifest.getJSONObject("rows");
+        long total = 0;
+        for(String table : rows.keySet())
+            total += rows.getLong(table);
+
+        Progress progress = new Progress("Importing", "rows", total);
+        List<Future<Void>> futures = new ArrayList<>();
+        for(Database.Table table : getTables())
+        {
+            if(!rows.has(table.name()))
+                continue;
+            futures.add(executor.submit(() -> {
+                importTable(table, directory.resolve(table.name()+".csv"), progress);
+                return null;
+            }));
+        }
+        for(Future<Void> future : futures)
+            Maintenance.await(future);
+        progress.finish();
+    }
+
+    private void exportTable(Database.Table table, Path file, Progress progress) throws IOException, SQLException
+    {
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet results = statement.executeQuery("SELECT * FROM "+table.name());
+             BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
+        {
+            ResultSetMetaData meta = results.getMetaData();
+            String[] record = new String[meta.getColumnCount()];
+            for(int i = 0; i < record.length; i++)
+                record[i] = meta.getColumnName(i + 1);
+            writeRecord(writer, record);
+
+            int batched = 0;
+            while(results.next())
+            {
+                for(int i = 0; i < record.length; i++)
+                    record[i] = results.getString(i + 1);
+                writeRecord(writer, record);
+                if(++batched == BATCH_SIZE)
+                {
+                    progress.add(batched);
+                    batched = 0;
+                }
+            }
+            progress.add(batched);
+        }
+    }
+
+    private void importTable(Database.Table table, Path file, Progress progress) throws IOException, SQLException
+    {
+        try (Connection connection = pool.getConnection();
+             BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+        {
+            List<String> columns = readRecord(reader);
+            if(columns == null)
+                throw new SQLException(file+" is empty!");
+            for(String column : columns)
+            {
+                // These go straight into the SQL
+                if(column == null || !column.matches("[A-Z0-9_]+"))
+                    throw new SQLException(file+" has an invalid column name: "+column);
+            }
+
+            List<String> key = new ArrayList<>();
+            try (ResultSet results = connection.getMetaData().getPrimaryKeys(null, null, table.name()))
+            {
+                while(results.next())
+                    key.add(results.getString("COLUMN_NAME"));
+            }
+
+            StringBuilder values = new StringBuilder();
+            for(int i = 0; i < columns.size(); i++)
+                values.append(i == 0 ? "?" : ", ?");
+
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "MERGE INTO "+table.name()+" ("+String.join(", ", columns)+") " +
+                    "KEY ("+String.join(", ", key)+") VALUES ("+values+")"))
+            {
+                int batched = 0;
+                List<String> record;
+                while((record = readRecord(reader)) != null)
+                {
+                    if(record.size() != columns.size())
+                        throw new SQLException(file+" has a row with "+record.size()+" values instead of "+columns.size()+"!");
+                    for(int i = 0; i < record.size(); i++)
+                        statement.setString(i + 1, record.get(i));
+                    statement.addBatch();
+                    if(++batched == BATCH_SIZE)
+                    {
+                        statement.executeBatch();
+                        progress.add(batched);
+                        batched = 0;
+                    }
+                }
+                statement.executeBatch();
+                progress.add(batched);
+            }
+            connection.commit();
+        }
+    }
+
+    private long count(Database.Table table) throws SQLException
+    {
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet results = statement.executeQuery("SELECT COUNT(*) FROM "+table.name()))
+        {
+            return results.next() ? results.getLong(1) : 0;
+        }
+    }
+
+    // Schema versions belong to the database being imported into, not the data
+    private static List<Database.Table> getTables()
+    {
+        List<Database.Table> tables = new ArrayList<>();
+        for(Database.Table table : Database.Table.values())
+        {
+            if(table != Database.Table.SCHEMA_VERSION)
+                tables.add(table);
+        }
+        return tables;
+    }
+
+    private static void writeRecord(Writer writer, String[] record) throws IOException
+    {
+        for(int i = 0; i < record.length; i++)
+        {
+            if(i > 0)
+                writer.write(',');
+            String value = record[i];
+            if(value == null)
+                continue;
+            if(value.isEmpty() || value.indexOf(',') != -1 || value.indexOf('"') != -1
+               || value.indexOf('\n') != -1 || value.indexOf('\r') != -1)
+            {
+                writer.write('"');
+                writer.write(value.replace("\"", "\"\""));
+                writer.write('"');
+            }
+            else
+            {
+                writer.write(value);
+            }
+        }
+        writer.write('\n');
+    }
+
+    // Returns null at the end of the file
+    private static List<String> readRecord(BufferedReader reader) throws IOException
+    {
+        int c = reader.read();
+        if(c == -1)
+            return null;
+
+        List<String> record = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;     // Inside quotes
+        boolean wasQuoted = false;  // Quoted values are never null, even if empty
+        for(;; c = reader.read())
+        {
+            if(quoted)
+            {
+                if(c == -1)
+                    throw new IOException("Unterminated quoted value!");
+                if(c != '"')
+                {
+                    value.append((char) c);
+                    continue;
+                }
+
+                // Two quotes are one escaped quote, anything else ends the value
+                reader.mark(1);
+                if(reader.read() == '"')
+                {
+                    value.append('"');
+                }
+                else
+                {
+                    reader.reset();
+                    quoted = false;
+                }
+            }
+            else if(c == '"')
+            {
+                quoted = wasQuoted = true;
+            }
+            else if(c == ',' || c == '\n' || c == -1)
+            {
+                record.add(value.length() == 0 && !wasQuoted ? null : value.toString());
+                value.setLength(0);
+                wasQuoted = false;
+                if(c != ',')
+                    return record;
+            }
+            else if(c != '\r')
+            {
+                value.append((char) c);
+            }
+        }
+    }
+}
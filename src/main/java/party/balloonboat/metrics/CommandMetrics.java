@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.metrics;
+
+import com.jagrosh.jdautilities.commandclient.Command;
+import com.jagrosh.jdautilities.commandclient.CommandEvent;
+import com.jagrosh.jdautilities.commandclient.CommandListener;
+import net.dv8tion.jda.core.events.message.MessageReceivedEvent;
+
+/**
+ * Times every command's execution, under {@code command.execute.<name>},
+ * and counts commands that completed or were terminated.
+ *
+ * <p>A command runs on the same thread from being called until it is
+ * completed or terminated, so the start time is kept per thread. This is
+ * only the time spent in {@code execute}, not how long the user waits:
+ * most replies are queued and sent after it returns.
+ *
+ * @author Kaidan Gustave
+ */
+public class CommandMetrics implements CommandListener
+{
+    private final MetricRegistry metrics;
+    private final ThreadLocal<long[]> start = ThreadLocal.withInitial(() -> new long[1]);
+
+    public CommandMetrics(MetricRegistry metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void onCommand(CommandEvent event, Command command)
+    {
+        start.get()[0] = System.nanoTime();
+    }
+
+    @Override
+    public void onCompletedCommand(CommandEvent event, Command command)
+    {
+        metrics.timer("command.execute."+command.getName().toLowerCase()).recordSince(start.get()[0]);
+        metrics.counter("command.completed").increment();
+    }
+
+    @Override
+    public void onTerminatedCommand(CommandEvent event, Command command)
+    {
+        metrics.timer("command.execute."+command.getName().toLowerCase()).recordSince(start.get()[0]);
+        metrics.counter("command.terminated").increment();
+    }
+
+    @Override
+    public void onNonCommandMessage(MessageReceivedEvent event) {}
+}
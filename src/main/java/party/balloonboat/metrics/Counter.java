@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A count that only goes up, and stays cheap to increment from many
+ * threads at once.
+ *
+ * @author Kaidan Gustave
+ */
+public class Counter implements LongSupplier
+{
+    private final LongAdder count = new LongAdder();
+
+    public void increment()
+    {
+        count.increment();
+    }
+
+    public void add(long amount)
+    {
+        count.add(amount);
+    }
+
+    public long get()
+    {
+        return count.sum();
+    }
+
+    @Override
+    public long getAsLong()
+    {
+        return get();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts non-negative values into buckets that are exact up to 8 and
+ * within 12.5% above that, so any percentile can be estimated without
+ * keeping the values themselves.
+ *
+ * <p>Recording is lock free and never allocates, and the buckets take a
+ * fixed 4KB no matter how many values are recorded, so histograms can be
+ * left on everywhere.
+ *
+ * @author Kaidan Gustave
+ */
+public class Histogram
+{
+    // Each power of two is split into 8 buckets
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    public void record(long value)
+    {
+        if(value < 0)
+            value = 0;
+        buckets.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    public long getSum()
+    {
+        return sum.sum();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    public double getMean()
+    {
+        long count = getCount();
+        return count == 0 ? 0 : (double) getSum() / count;
+    }
+
+    // Estimates the value that the given fraction, from 0 to 1, of values are at or below.
+    // The estimate is never less than the real value, or more than the max.
+    public long getPercentile(double fraction)
+    {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++)
+        {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if(total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++)
+        {
+            seen += snapshot[i];
+            if(seen >= rank)
+                return Math.min(highestOf(i), getMax());
+        }
+        return getMax();
+    }
+
+    // Like getPercentile for several fractions at once, in ascending order, without allocating.
+    // Values recorded while this runs may or may not be counted.
+    public void getPercentiles(double[] fractions, long[] into)
+    {
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++)
+            total += buckets.get(i);
+
+        long max = getMax();
+        long seen = 0;
+        int bucket = -1;
+        for(int f = 0; f < fractions.length; f++)
+        {
+            if(total == 0)
+            {
+                into[f] = 0;
+                continue;
+            }
+            long rank = Math.max(1, (long) Math.ceil(fractions[f] * total));
+            while(seen < rank && bucket < BUCKETS - 1)
+                seen += buckets.get(++bucket);
+            into[f] = seen >= rank ? Math.min(highestOf(bucket), max) : max;
+        }
+    }
+
+    static int indexOf(long value)
+    {
+        if(value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    // The highest value that goes in the bucket
+    static long highestOf(int index)
+    {
+        if(index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
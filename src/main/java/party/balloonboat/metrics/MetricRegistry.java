@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Named timers, histograms, counters, and gauges.
+ *
+ * <p>Metrics are made the first time they're asked for, and the same one
+ * is returned every time after that. Names are dot separated, starting
+ * with what they measure, such as {@code database.getUserRating} or
+ * {@code command.execute.rate}.
+ *
+ * <p>Counts and sizes that are already kept somewhere else, like the
+ * size of a queue, are registered as functions that read them when the
+ * metrics are read. Counters only go up, gauges can go either way.
+ *
+ * @author Kaidan Gustave
+ */
+public class MetricRegistry
+{
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> counterFunctions = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    public Timer timer(String name)
+    {
+        return get(timers, name, n -> new Timer());
+    }
+
+    public Histogram histogram(String name)
+    {
+        return get(histograms, name, n -> new Histogram());
+    }
+
+    public Counter counter(String name)
+    {
+        return get(counters, name, n -> new Counter());
+    }
+
+    // Replaces any counter function with the same name
+    public void counter(String name, LongSupplier counter)
+    {
+        counterFunctions.put(name, counter);
+    }
+
+    // Replaces any gauge with the same name
+    public void gauge(String name, LongSupplier gauge)
+    {
+        gauges.put(name, gauge);
+    }
+
+    public SortedMap<String, Timer> getTimers()
+    {
+        return Collections.unmodifiableSortedMap(new TreeMap<>(timers));
+    }
+
+    public SortedMap<String, Histogram> getHistograms()
+    {
+        return Collections.unmodifiableSortedMap(new TreeMap<>(histograms));
+    }
+
+    public SortedMap<String, LongSupplier> getCounters()
+    {
+        SortedMap<String, LongSupplier> all = new TreeMap<>(counterFunctions);
+        all.putAll(counters);
+        return Collections.unmodifiableSortedMap(all);
+    }
+
+    public SortedMap<String, LongSupplier> getGauges()
+    {
+        return Collections.unmodifiableSortedMap(new TreeMap<>(gauges));
+    }
+
+    // Unsorted and without copying, for reading metrics often
+
+    void forEachTimer(BiConsumer<String, Timer> action)
+    {
+        timers.forEach(action);
+    }
+
+    void forEachHistogram(BiConsumer<String, Histogram> action)
+    {
+        histograms.forEach(action);
+    }
+
+    void forEachCounter(BiConsumer<String, LongSupplier> action)
+    {
+        counterFunctions.forEach(action);
+        counters.forEach(action);
+    }
+
+    void forEachGauge(BiConsumer<String, LongSupplier> action)
+    {
+        gauges.forEach(action);
+    }
+
+    // Everything, one metric a line, with durations in milliseconds
+    public String getReport()
+    {
+        StringBuilder report = new StringBuilder();
+        getTimers().forEach((name, timer) -> report.append(String.format(
+                "%s count=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms%n", name, timer.getCount(),
+                timer.getMean() / 1e6, timer.getPercentile(0.5) / 1e6,
+                timer.getPercentile(0.99) / 1e6, timer.getMax() / 1e6)));
+        getHistograms().forEach((name, histogram) -> report.append(String.format(
+                "%s count=%d mean=%.1f p50=%d p99=%d max=%d%n", name, histogram.getCount(),
+                histogram.getMean(), histogram.getPercentile(0.5),
+                histogram.getPercentile(0.99), histogram.getMax())));
+        getCounters().forEach((name, counter) -> report.append(name).append(' ').append(counter.getAsLong()).append('\n'));
+        getGauges().forEach((name, gauge) -> report.append(name).append(' ').append(gauge.getAsLong()).append('\n'));
+        return report.toString();
+    }
+
+    private static <T> T get(Map<String, T> metrics, String name, Function<String, T> maker)
+    {
+        // Most lookups find something, and get doesn't lock like computeIfAbsent can
+        T metric = metrics.get(name);
+        return metric != null ? metric : metrics.computeIfAbsent(name, maker);
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Serves a {@link MetricRegistry} over HTTP in Prometheus' text format,
+ * along with JVM heap, GC, and thread stats.
+ *
+ * <p>{@code /metrics} has the metrics and {@code /health} answers 200 or
+ * 503 depending on the health check. Metrics keep their registry names
+ * as a {@code name} label, so names never need escaping beyond label
+ * values:
+ * <pre>
+ *     balloonboat_duration_seconds{name="database.getUserRating",quantile="0.99"} 0.000012
+ * </pre>
+ *
+ * <p>Scrapes are answered one at a time into a buffer that is reused, so
+ * apart from what the HTTP server itself does, scraping doesn't allocate
+ * once the buffer is big enough.
+ *
+ * @author Kaidan Gustave
+ */
+public class MetricsServer
+{
+    public static final Logger LOG = LoggerFactory.getLogger(MetricsServer.class);
+
+    public static final String DEFAULT_HOST = "127.0.0.1";
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 1.0 };
+    private static final String[] QUANTILE_LABELS = { "0.5", "0.9", "0.99", "1" };
+
+    private final MetricRegistry metrics;
+    private final BooleanSupplier health;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    // Only ever used by the server's single thread
+    private byte[] buffer = new byte[16384];
+    private int length = 0;
+    private final long[] percentiles = new long[QUANTILES.length];
+
+    // Made once so passing them around doesn't allocate
+    private final BiConsumer<String, Timer> writeTimer = (name, timer) -> writeSummary("balloonboat_duration_seconds", name, timer, true);
+    private final BiConsumer<String, Histogram> writeHistogram = (name, histogram) -> writeSummary("balloonboat_histogram", name, histogram, false);
+    private final BiConsumer<String, LongSupplier> writeCounter = (name, counter) -> writeSample("balloonboat_events_total", name, counter.getAsLong());
+    private final BiConsumer<String, LongSupplier> writeGauge = (name, gauge) -> writeSample("balloonboat_gauge", name, gauge.getAsLong());
+
+    public MetricsServer(MetricRegistry metrics, BooleanSupplier health, String host, int port) throws IOException
+    {
+        this.metrics = metrics;
+        this.health = health;
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "Metrics Server");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        this.server.setExecutor(executor);
+        this.server.createContext("/metrics", this::handleMetrics);
+        this.server.createContext("/health", this::handleHealth);
+    }
+
+    public void start()
+    {
+        server.start();
+        LOG.info("Serving metrics on {}", server.getAddress());
+    }
+
+    public void stop()
+    {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException
+    {
+        length = 0;
+
+        write("# TYPE balloonboat_duration_seconds summary\n");
+        metrics.forEachTimer(writeTimer);
+        write("# TYPE balloonboat_histogram summary\n");
+        metrics.forEachHistogram(writeHistogram);
+        write("# TYPE balloonboat_events_total counter\n");
+        metrics.forEachCounter(writeCounter);
+        write("# TYPE balloonboat_gauge gauge\n");
+        metrics.forEachGauge(writeGauge);
+
+        writeJvm();
+
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        respond(exchange, 200);
+    }
+
+    private void handleHealth(HttpExchange exchange) throws IOException
+    {
+        length = 0;
+        boolean healthy;
+        try {
+            healthy = health.getAsBoolean();
+        } catch(Exception e) {
+            LOG.warn("Health check failed: ", e);
+            healthy = false;
+        }
+        write(healthy ? "OK\n" : "UNAVAILABLE\n");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        respond(exchange, healthy ? 200 : 503);
+    }
+
+    private void respond(HttpExchange exchange, int status) throws IOException
+    {
+        exchange.sendResponseHeaders(status, length);
+        try (OutputStream body = exchange.getResponseBody())
+        {
+            body.write(buffer, 0, length);
+        }
+    }
+
+    private void writeJvm()
+    {
+        // Runtime is used over the memory bean since it doesn't allocate
+        Runtime runtime = Runtime.getRuntime();
+        write("# TYPE jvm_memory_heap_used_bytes gauge\njvm_memory_heap_used_bytes ");
+        write(runtime.totalMemory() - runtime.freeMemory());
+        write("\n# TYPE jvm_memory_heap_committed_bytes gauge\njvm_memory_heap_committed_bytes ");
+        write(runtime.totalMemory());
+        write("\n# TYPE jvm_memory_heap_max_bytes gauge\njvm_memory_heap_max_bytes ");
+        write(runtime.maxMemory());
+
+        write("\n# TYPE jvm_gc_collections_total counter\n");
+        for(GarbageCollectorMXBean collector : collectors)
+        {
+            write("jvm_gc_collections_total{gc=\"");
+            writeLabel(collector.getName());
+            write("\"} ");
+            write(collector.getCollectionCount());
+            write('\n');
+        }
+        write("# TYPE jvm_gc_collection_seconds_total counter\n");
+        for(GarbageCollectorMXBean collector : collectors)
+        {
+            write("jvm_gc_collection_seconds_total{gc=\"");
+            writeLabel(collector.getName());
+            write("\"} ");
+            writeSeconds(collector.getCollectionTime() * 1000000L);
+            write('\n');
+        }
+
+        write("# TYPE jvm_threads gauge\njvm_threads ");
+        write(threads.getThreadCount());
+        write("\n# TYPE jvm_threads_daemon gauge\njvm_threads_daemon ");
+        write(threads.getDaemonThreadCount());
+        write('\n');
+    }
+
+    private void writeSummary(String family, String name, Histogram histogram, boolean nanos)
+    {
+        histogram.getPercentiles(QUANTILES, percentiles);
+        for(int i = 0; i < QUANTILES.length; i++)
+        {
+            write(family);
+            write("{name=\"");
+            writeLabel(name);
+            write("\",quantile=\"");
+            write(QUANTILE_LABELS[i]);
+            write("\"} ");
+            writeValue(percentiles[i], nanos);
+            write('\n');
+        }
+
+        write(family);
+        write("_sum{name=\"");
+        writeLabel(name);
+        write("\"} ");
+        writeValue(histogram.getSum(), nanos);
+        write('\n');
+
+        write(family);
+        write("_count{name=\"");
+        writeLabel(name);
+        write("\"} ");
+        write(histogram.getCount());
+        write('\n');
+    }
+
+    private void writeSample(String family, String name, long value)
+    {
+        write(family);
+        write("{name=\"");
+        writeLabel(name);
+        write("\"} ");
+        write(value);
+        write('\n');
+    }
+
+    private void writeValue(long value, boolean nanos)
+    {
+        if(nanos)
+            writeSeconds(value);
+        else
+            write(value);
+    }
+
+    // Nanoseconds as seconds, without going through a double
+    private void writeSeconds(long nanos)
+    {
+        write(nanos / 1000000000L);
+        long fraction = nanos % 1000000000L;
+        if(fraction == 0)
+            return;
+        write('.');
+        for(long digit = 100000000L; digit > 0 && fraction > 0; digit /= 10)
+        {
+            write((char) ('0' + fraction / digit));
+            fraction %= digit;
+        }
+    }
+
+    // Escapes what label values can't hold, and anything that isn't ASCII
+    private void writeLabel(String value)
+    {
+        for(int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            switch(c)
+            {
+                case '\\': write("\\\\"); break;
+                case '"':  write("\\\""); break;
+                case '\n': write("\\n"); break;
+                default:   write(c < 0x20 || c > 0x7E ? '?' : c);
+            }
+        }
+    }
+
+    private void write(String text)
+    {
+        for(int i = 0; i < text.length(); i++)
+            write(text.charAt(i));
+    }
+
+    private void write(long value)
+    {
+        if(value == Long.MIN_VALUE)
+        {
+            write("-9223372036854775808");
+            return;
+        }
+        if(value < 0)
+        {
+            write('-');
+            value = -value;
+        }
+        long digit = 1;
+        while(digit <= value / 10)
+            digit *= 10;
+        for(; digit > 0; digit /= 10)
+        {
+            write((char) ('0' + value / digit));
+            value %= digit;
+        }
+    }
+
+    private void write(char c)
+    {
+        if(length == buffer.length)
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        buffer[length++] = (byte) c;
+    }
+}
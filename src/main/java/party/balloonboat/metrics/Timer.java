@@ -0,0 +1,39 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.metrics;
+
+/**
+ * A {@link Histogram} of durations in nanoseconds.
+ *
+ * <p>Start times are taken with {@link System#nanoTime()}:
+ * <pre>
+ *     long start = System.nanoTime();
+ *     try {
+ *         ...
+ *     } finally {
+ *         timer.recordSince(start);
+ *     }
+ * </pre>
+ *
+ * @author Kaidan Gustave
+ */
+public class Timer extends Histogram
+{
+    public void recordSince(long startNanos)
+    {
+        record(System.nanoTime() - startNanos);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.utils;
+
+import java.util.Arrays;
+
+/**
+ * An open addressed hash map of primitive {@code long} keys to primitive
+ * {@code int} values.
+ *
+ * <p>This is used anywhere we key things by snowflake and cannot afford
+ * to box every lookup into a {@link Long}.
+ *
+ * <p>This class is <b>not</b> thread safe, callers must synchronize access.
+ *
+ * @author Kaidan Gustave
+ */
+public class LongIntMap
+{
+    // Keys of 0 are used to mark empty slots, so the 0 key is stored on its own.
+    private static final long EMPTY = 0L;
+
+    private final int missingValue;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    private boolean hasZeroKey;
+    private int zeroValue;
+
+    public LongIntMap(int expectedSize, int missingValue)
+    {
+        this.missingValue = missingValue;
+        int capacity = tableSizeFor(Math.max(expectedSize, 4) * 2);
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    public LongIntMap(int missingValue)
+    {
+        this(16, missingValue);
+    }
+
+    public int get(long key)
+    {
+        if(key == EMPTY)
+            return hasZeroKey ? zeroValue : missingValue;
+
+        for(int i = slot(key); ; i = (i + 1) & mask)
+        {
+            long k = keys[i];
+            if(k == key)
+                return values[i];
+            if(k == EMPTY)
+                return missingValue;
+        }
+    }
+
+    public boolean containsKey(long key)
+    {
+        if(key == EMPTY)
+            return hasZeroKey;
+
+        for(int i = slot(key); ; i = (i + 1) & mask)
+        {
+            long k = keys[i];
+            if(k == key)
+                return true;
+            if(k == EMPTY)
+                return false;
+        }
+    }
+
+    // Returns the previous value, or the missing value if there was none.
+    public int put(long key, int value)
+    {
+        if(key == EMPTY)
+        {
+            int previous = hasZeroKey ? zeroValue : missingValue;
+            if(!hasZeroKey)
+                size++;
+            hasZeroKey = true;
+            zeroValue = value;
+            return previous;
+        }
+
+        for(int i = slot(key); ; i = (i + 1) & mask)
+        {
+            long k = keys[i];
+            if(k == key)
+            {
+                int previous = values[i];
+                values[i] = value;
+                return previous;
+            }
+            if(k == EMPTY)
+            {
+                keys[i] = key;
+                values[i] = value;
+                if(++size * 2 > keys.length)
+                    rehash(keys.length * 2);
+                return missingValue;
+            }
+        }
+    }
+
+    // Returns the removed value, or the missing value if there was none.
+    public int remove(long key)
+    {
+        if(key == EMPTY)
+        {
+            if(!hasZeroKey)
+                return missingValue;
+            hasZeroKey = false;
+            size--;
+            return zeroValue;
+        }
+
+        for(int i = slot(key); ; i = (i + 1) & mask)
+        {
+            long k = keys[i];
+            if(k == EMPTY)
+                return missingValue;
+            if(k == key)
+            {
+                int previous = values[i];
+                shiftKeys(i);
+                size--;
+                return previous;
+            }
+        }
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    // Number of slots in the table, for estimating memory use
+    public int getCapacity()
+    {
+        return keys.length;
+    }
+
+    public int getMissingValue()
+    {
+        return missingValue;
+    }
+
+    public void clear()
+    {
+        Arrays.fill(keys, EMPTY);
+        hasZeroKey = false;
+        size = 0;
+    }
+
+    public void forEach(LongIntConsumer consumer)
+    {
+        if(hasZeroKey)
+            consumer.accept(EMPTY, zeroValue);
+        for(int i = 0; i < keys.length; i++)
+        {
+            if(keys[i] != EMPTY)
+                consumer.accept(keys[i], values[i]);
+        }
+    }
+
+    // Backwards shift deletion, keeps probe chains intact without tombstones.
+    private void shiftKeys(int pos)
+    {
+        while(true)
+        {
+            int last = pos;
+            pos = (pos + 1) & mask;
+            long k;
+            while(true)
+            {
+                k = keys[pos];
+                if(k == EMPTY)
+                {
+                    keys[last] = EMPTY;
+                    return;
+                }
+                int s = slot(k);
+                if(last <= pos ? (last >= s || s > pos) : (last >= s && s > pos))
+                    break;
+                pos = (pos + 1) & mask;
+            }
+            keys[last] = k;
+            values[last] = values[pos];
+        }
+    }
+
+    private void rehash(int capacity)
+    {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+
+        for(int i = 0; i < oldKeys.length; i++)
+        {
+            long k = oldKeys[i];
+            if(k == EMPTY)
+                continue;
+            int j = slot(k);
+            while(keys[j] != EMPTY)
+                j = (j + 1) & mask;
+            keys[j] = k;
+            values[j] = oldValues[i];
+        }
+    }
+
+    private int slot(long key)
+    {
+        // Snowflakes are anything but uniform in their lower bits, so mix them first.
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+
+    private static int tableSizeFor(int n)
+    {
+        int capacity = Integer.highestOneBit(n - 1) << 1;
+        return capacity < 8 ? 8 : capacity;
+    }
+
+    @FunctionalInterface
+    public interface LongIntConsumer
+    {
+        void accept(long key, int value);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.data;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Kaidan Gustave
+ */
+public class LeaderboardTest
+{
+    @Test
+    public void holdsTheBestUsersBestFirst()
+    {
+        RankIndex ranks = new RankIndex();
+        Leaderboard board = new Leaderboard(ranks, 3);
+        update(ranks, board, 1L, 2.0);
+        update(ranks, board, 2L, 5.0);
+        update(ranks, board, 3L, 3.0);
+        update(ranks, board, 4L, 4.0);
+
+        assertArrayEquals(new long[] {2L, 4L, 3L}, board.getTop());
+    }
+
+    // The rank index is ascending with ties to the lower ID, so the board gives them to the higher
+    @Test
+    public void tiesGoToTheHigherUserId()
+    {
+        RankIndex ranks = new RankIndex();
+        Leaderboard board = new Leaderboard(ranks, 2);
+        update(ranks, board, 1L, 3.0);
+        update(ranks, board, 2L, 3.0);
+        update(ranks, board, 3L, 3.0);
+
+        assertArrayEquals(new long[] {3L, 2L}, board.getTop());
+    }
+
+    @Test
+    public void droppingOffPullsInTheNextBest()
+    {
+        RankIndex ranks = new RankIndex();
+        Leaderboard board = new Leaderboard(ranks, 2);
+        update(ranks, board, 1L, 5.0);
+        update(ranks, board, 2L, 4.0);
+        update(ranks, board, 3L, 3.0);
+        update(ranks, board, 1L, 1.0);
+
+        assertArrayEquals(new long[] {2L, 3L}, board.getTop());
+    }
+
+    @Test
+    public void versionOnlyChangesWithTheBoard()
+    {
+        RankIndex ranks = new RankIndex();
+        Leaderboard board = new Leaderboard(ranks, 1);
+        update(ranks, board, 1L, 5.0);
+        long version = board.getVersion();
+
+        update(ranks, board, 2L, 1.0);
+        update(ranks, board, 1L, 5.0);
+        assertFalse(board.hasChangedSince(version));
+
+        update(ranks, board, 2L, 5.5);
+        assertTrue(board.hasChangedSince(version));
+    }
+
+    @Test
+    public void rebuildReadsTheRankIndex()
+    {
+        RankIndex ranks = new RankIndex();
+        ranks.update(1L, 1.0);
+        ranks.update(2L, 2.0);
+        Leaderboard board = new Leaderboard(ranks, 5);
+        board.rebuild();
+
+        assertArrayEquals(new long[] {2L, 1L}, board.getTop());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sizeMustBePositive()
+    {
+        new Leaderboard(new RankIndex(), 0);
+    }
+
+    @Test
+    public void matchesTheTopOfASortedList()
+    {
+        RankIndex ranks = new RankIndex();
+        Leaderboard board = new Leaderboard(ranks, 20);
+        Map<Long, Double> expected = new HashMap<>();
+        Random random = new Random(4);
+        for(int i = 0; i < 20000; i++)
+        {
+            long userId = random.nextInt(500);
+            double rating = 1 + random.nextInt(17) / 4.0;
+            update(ranks, board, userId, rating);
+            expected.put(userId, rating);
+
+            if(i % 500 == 0)
+                assertArrayEquals(top(expected, 20), board.getTop());
+        }
+        assertArrayEquals(top(expected, 20), board.getTop());
+    }
+
+    private static void update(RankIndex ranks, Leaderboard board, long userId, double rating)
+    {
+        ranks.update(userId, rating);
+        board.update(userId, rating);
+    }
+
+    private static long[] top(Map<Long, Double> ratings, int count)
+    {
+        List<Long> sorted = new ArrayList<>(ratings.keySet());
+        sorted.sort(Comparator.<Long>comparingDouble(ratings::get).thenComparing(Comparator.naturalOrder()).reversed());
+        long[] top = new long[Math.min(count, sorted.size())];
+        for(int i = 0; i < top.length; i++)
+            top[i] = sorted.get(i);
+        return top;
+    }
+}
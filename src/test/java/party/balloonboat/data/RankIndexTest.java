@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.data;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Kaidan Gustave
+ */
+public class RankIndexTest
+{
+    @Test
+    public void positionsAscendByRatingThenUserId()
+    {
+        RankIndex ranks = new RankIndex();
+        ranks.update(3L, 2.0);
+        ranks.update(1L, 4.5);
+        ranks.update(2L, 2.0);
+
+        assertEquals(3, ranks.size());
+        assertEquals(1, ranks.getPosition(2L));
+        assertEquals(2, ranks.getPosition(3L));
+        assertEquals(3, ranks.getPosition(1L));
+        assertArrayEquals(new long[] {2L, 3L, 1L}, ranks.getUsersAt(1, 3));
+    }
+
+    @Test
+    public void updatingMovesTheUser()
+    {
+        RankIndex ranks = new RankIndex();
+        ranks.update(1L, 1.0);
+        ranks.update(2L, 2.0);
+        ranks.update(1L, 3.0);
+
+        assertEquals(2, ranks.size());
+        assertEquals(3.0, ranks.getRating(1L), 0);
+        assertEquals(2, ranks.getPosition(1L));
+        assertEquals(1L, ranks.getUserAt(2));
+    }
+
+    @Test
+    public void outOfRangeIsClampedOrMissing()
+    {
+        RankIndex ranks = new RankIndex();
+        ranks.update(1L, 1.0);
+        ranks.update(2L, 2.0);
+
+        assertEquals(-1L, ranks.getUserAt(0));
+        assertEquals(-1L, ranks.getUserAt(3));
+        assertArrayEquals(new long[] {1L, 2L}, ranks.getUsersAt(-5, 10));
+        assertEquals(0, ranks.getUsersAt(3, 4).length);
+        assertTrue(Double.isNaN(ranks.getRating(9L)));
+        assertFalse(ranks.contains(9L));
+    }
+
+    @Test
+    public void removedUsersAreGone()
+    {
+        RankIndex ranks = new RankIndex();
+        ranks.update(1L, 1.0);
+        ranks.update(2L, 2.0);
+        ranks.remove(1L);
+        ranks.remove(1L);
+
+        assertEquals(1, ranks.size());
+        assertFalse(ranks.contains(1L));
+        assertEquals(1, ranks.getPosition(2L));
+    }
+
+    // Enough users to grow the node arrays, with removed nodes being reused
+    @Test
+    public void matchesASortedList()
+    {
+        RankIndex ranks = new RankIndex();
+        Map<Long, Double> expected = new HashMap<>();
+        Random random = new Random(3);
+        for(int i = 0; i < 20000; i++)
+        {
+            long userId = random.nextInt(3000);
+            if(random.nextInt(5) == 0)
+            {
+                ranks.remove(userId);
+                expected.remove(userId);
+            }
+            else
+            {
+                // Few distinct ratings, so ties are common
+                double rating = 1 + random.nextInt(9) / 2.0;
+                ranks.update(userId, rating);
+                expected.put(userId, rating);
+            }
+        }
+
+        List<Long> sorted = new ArrayList<>(expected.keySet());
+        sorted.sort(Comparator.<Long>comparingDouble(expected::get).thenComparing(Comparator.naturalOrder()));
+
+        assertEquals(sorted.size(), ranks.size());
+        for(int i = 0; i < sorted.size(); i++)
+        {
+            assertEquals(i + 1, ranks.getPosition(sorted.get(i)));
+            assertEquals(sorted.get(i).longValue(), ranks.getUserAt(i + 1));
+        }
+
+        long[] middle = ranks.getUsersAt(100, 199);
+        for(int i = 0; i < middle.length; i++)
+            assertEquals(sorted.get(99 + i).longValue(), middle[i]);
+    }
+}
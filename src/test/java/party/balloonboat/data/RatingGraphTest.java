@@ -0,0 +1,204 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.data;
+
+import org.junit.Test;
+import party.balloonboat.utils.AlgorithmUtils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Kaidan Gustave
+ */
+public class RatingGraphTest
+{
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void ratingRegistersBothUsers()
+    {
+        RatingGraph graph = new RatingGraph();
+        RatingGraph.Update update = graph.setRating(1L, 2L, (short) 4);
+
+        assertTrue(update.isInserted());
+        assertTrue(update.isNewRater());
+        assertTrue(update.isNewTarget());
+        assertEquals(1, update.getUserRating());
+        assertEquals(Arrays.asList(1L), update.getRegistered());
+        assertEquals(Arrays.asList(2L), update.getRecalculated());
+
+        assertTrue(graph.isRegistered(1L));
+        assertTrue(graph.isRegistered(2L));
+        assertEquals(2, graph.getRegisteredCount());
+        assertEquals(1, graph.getRatingCount());
+        assertEquals(1, graph.getEffectiveRating(1L));
+        assertEquals(calculate(4), graph.getTrueRating(2L), DELTA);
+    }
+
+    @Test
+    public void unknownUsersHaveNothing()
+    {
+        RatingGraph graph = new RatingGraph();
+        assertFalse(graph.isRegistered(1L));
+        assertEquals(-1, graph.getEffectiveRating(1L));
+        assertTrue(Double.isNaN(graph.getTrueRating(1L)));
+        assertEquals(-1, graph.getRating(1L, 2L));
+        assertFalse(graph.hasRated(1L, 2L));
+        assertTrue(graph.getRatingsFrom(1L).isEmpty());
+        assertTrue(graph.getRatingsTo(1L).isEmpty());
+        assertEquals(0, graph.getTargetsRated(1L).length);
+    }
+
+    @Test
+    public void registeringTwiceKeepsTheRating()
+    {
+        RatingGraph graph = new RatingGraph();
+        assertEquals(1, graph.register(1L));
+        graph.setRating(2L, 1L, (short) 5);
+        assertEquals(graph.getEffectiveRating(1L), graph.register(1L));
+        assertEquals(2, graph.getRegisteredCount());
+    }
+
+    @Test
+    public void reratingReplacesTheOldRating()
+    {
+        RatingGraph graph = new RatingGraph();
+        graph.setRating(1L, 2L, (short) 2);
+        RatingGraph.Update update = graph.setRating(1L, 2L, (short) 5);
+
+        assertFalse(update.isInserted());
+        assertFalse(update.isNewRater());
+        assertEquals(5, graph.getRating(1L, 2L));
+        assertEquals(1, graph.getRatingCount());
+        assertEquals(calculate(5), graph.getTrueRating(2L), DELTA);
+    }
+
+    @Test
+    public void ratingsCanBeReadFromEitherSide()
+    {
+        RatingGraph graph = new RatingGraph();
+        graph.setRating(1L, 2L, (short) 3);
+        graph.setRating(1L, 3L, (short) 4);
+        graph.setRating(4L, 2L, (short) 5);
+
+        Map<Long, Short> from = new HashMap<>();
+        from.put(2L, (short) 3);
+        from.put(3L, (short) 4);
+        assertEquals(from, graph.getRatingsFrom(1L));
+
+        Map<Long, Short> to = new HashMap<>();
+        to.put(1L, (short) 3);
+        to.put(4L, (short) 5);
+        assertEquals(to, graph.getRatingsTo(2L));
+
+        long[] targets = graph.getTargetsRated(1L);
+        Arrays.sort(targets);
+        assertArrayEquals(new long[] {2L, 3L}, targets);
+    }
+
+    // Only which ratings were received counts, not how many times
+    @Test
+    public void calculationsUseDistinctRatings()
+    {
+        RatingGraph graph = new RatingGraph();
+        graph.setRating(1L, 9L, (short) 2);
+        graph.setRating(2L, 9L, (short) 2);
+        graph.setRating(3L, 9L, (short) 5);
+        assertEquals(calculate(2, 5), graph.getTrueRating(9L), DELTA);
+        assertEquals(Math.round(calculate(2, 5)), graph.getEffectiveRating(9L));
+    }
+
+    @Test
+    public void loadedUsersKeepTheirCalculations()
+    {
+        RatingGraph graph = new RatingGraph();
+        graph.loadUser(1L, 3.25, (short) 3);
+        graph.loadRating(2L, 1L, (short) 4);
+
+        assertEquals(3.25, graph.getTrueRating(1L), DELTA);
+        assertEquals(3, graph.getEffectiveRating(1L));
+        assertEquals(4, graph.getRating(2L, 1L));
+        assertEquals(1, graph.getRegisteredCount());
+    }
+
+    @Test
+    public void statsMatchTheGraph()
+    {
+        RatingGraph graph = new RatingGraph();
+        graph.setRating(1L, 2L, (short) 3);
+        graph.setRating(1L, 3L, (short) 4);
+        graph.setRating(2L, 3L, (short) 5);
+        graph.register(4L);
+
+        GlobalStats stats = new GlobalStats();
+        graph.computeStats(stats);
+        assertEquals(3, stats.getRatings());
+        assertEquals(2, stats.getRaters());
+        assertEquals(2, stats.getTargets());
+        assertEquals(4, stats.getUsers());
+    }
+
+    // Every rating must be reflected in its target straight away, however many came before it
+    @Test
+    public void everyTargetIsRecalculatedImmediately()
+    {
+        RatingGraph graph = new RatingGraph();
+        for(long target = 1000; target < 3000; target++)
+            graph.setRating(1L, target, (short) 2);
+        for(long target = 1000; target < 3000; target++)
+        {
+            RatingGraph.Update update = graph.setRating(2L, target, (short) 5);
+            assertEquals(Arrays.asList(target), update.getRecalculated());
+            assertEquals(calculate(2, 5), graph.getTrueRating(target), DELTA);
+        }
+    }
+
+    // Nobody's calculation depends on the ratings of who rated them
+    @Test
+    public void ratingOnlyRecalculatesTheTarget()
+    {
+        RatingGraph graph = new RatingGraph();
+        graph.setRating(1L, 2L, (short) 3);
+        graph.setRating(2L, 3L, (short) 4);
+        double before = graph.getTrueRating(3L);
+
+        RatingGraph.Update update = graph.setRating(4L, 2L, (short) 5);
+        assertEquals(Arrays.asList(2L), update.getRecalculated());
+        assertEquals(before, graph.getTrueRating(3L), DELTA);
+    }
+
+    @Test
+    public void unchangedCalculationsAreNotReported()
+    {
+        RatingGraph graph = new RatingGraph();
+        graph.setRating(1L, 9L, (short) 4);
+        RatingGraph.Update update = graph.setRating(2L, 9L, (short) 4);
+        assertTrue(update.getRecalculated().isEmpty());
+    }
+
+    private static double calculate(int... ratings)
+    {
+        HashSet<Short> set = new HashSet<>();
+        for(int rating : ratings)
+            set.add((short) rating);
+        return AlgorithmUtils.calculateRating(set);
+    }
+}
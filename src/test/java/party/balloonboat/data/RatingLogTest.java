@@ -0,0 +1,326 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.data;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Kaidan Gustave
+ */
+public class RatingLogTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        path = folder.getRoot().toPath().resolve("ratings.log");
+    }
+
+    @Test
+    public void ratingsSurviveReopening() throws IOException
+    {
+        RatingLog log = open();
+        assertTrue(log.isEmpty());
+        log.appendRating(1L, 2L, (short) 3);
+        log.appendRating(1L, 2L, (short) 5);
+        log.appendRating(2L, 3L, (short) 1);
+        log.appendRegister(4L);
+        log.flush();
+        log.close();
+
+        log = open();
+        assertFalse(log.isEmpty());
+        assertEquals(4, log.getRecordCount());
+        RatingGraph graph = load(log);
+        assertEquals(0, log.getCorruptedCount());
+        // The newest rating of a pair is the one kept
+        assertEquals(5, graph.getRating(1L, 2L));
+        assertEquals(1, graph.getRating(2L, 3L));
+        assertEquals(2, graph.getRatingCount());
+        assertTrue(graph.isRegistered(4L));
+        assertEquals(4, graph.getRegisteredCount());
+        log.close();
+    }
+
+    @Test
+    public void growsPastTheFirstMapping() throws IOException
+    {
+        RatingLog log = open();
+        long initialSize = log.getSize();
+        int records = (int) (initialSize / RatingLog.RECORD_SIZE) * 3;
+        for(int i = 0; i < records; i++)
+            log.appendRating(i, i + 1, (short) (1 + i % 5));
+        assertTrue(log.getSize() > initialSize);
+        assertEquals(records, log.getAppendedCount());
+        log.close();
+
+        log = open();
+        assertEquals(records, log.getRecordCount());
+        assertEquals(records, load(log).getRatingCount());
+        log.close();
+    }
+
+    @Test
+    public void tornTailIsClearedOnOpen() throws IOException
+    {
+        RatingLog log = open();
+        log.appendRating(1L, 2L, (short) 3);
+        log.appendRating(2L, 3L, (short) 4);
+        log.close();
+
+        // Half of a third record, as if the process died while writing it
+        overwrite(2 * RatingLog.RECORD_SIZE, new byte[] {1, 5, 0, 0, 9, 9, 9, 9, 0, 0, 0, 7});
+
+        log = open();
+        assertEquals(2, log.getRecordCount());
+        assertEquals(0, read(2 * RatingLog.RECORD_SIZE, RatingLog.RECORD_SIZE).getLong(0));
+
+        // What's appended next goes where the torn record was
+        log.appendRating(3L, 4L, (short) 5);
+        log.close();
+
+        log = open();
+        assertEquals(3, log.getRecordCount());
+        RatingGraph graph = load(log);
+        assertEquals(0, log.getCorruptedCount());
+        assertEquals(5, graph.getRating(3L, 4L));
+        log.close();
+    }
+
+    @Test
+    public void corruptRecordIsSkipped() throws IOException
+    {
+        RatingLog log = open();
+        log.appendRating(1L, 2L, (short) 3);
+        log.appendRating(2L, 3L, (short) 4);
+        log.appendRating(3L, 4L, (short) 5);
+        log.close();
+
+        // Flip a bit in the target id of the middle record
+        int position = RatingLog.RECORD_SIZE + 20;
+        byte[] bits = {(byte) (read(position, 1).get(0) ^ 1)};
+        overwrite(position, bits);
+
+        log = open();
+        // Good records after it mean it isn't the end of the log
+        assertEquals(3, log.getRecordCount());
+        RatingGraph graph = load(log);
+        assertEquals(1, log.getCorruptedCount());
+        assertEquals(3, graph.getRating(1L, 2L));
+        assertFalse(graph.hasRated(2L, 3L));
+        assertEquals(5, graph.getRating(3L, 4L));
+        log.close();
+    }
+
+    @Test
+    public void compactingKeepsOnlyWhatTheGraphHas() throws IOException
+    {
+        RatingGraph graph = new RatingGraph();
+        RatingLog log = open();
+        for(int i = 0; i < 100; i++)
+        {
+            short rating = (short) (1 + i % 5);
+            graph.setRating(1L, 2L, rating);
+            log.appendRating(1L, 2L, rating);
+        }
+        graph.register(3L);
+        log.appendRegister(3L);
+        assertEquals(101, log.getRecordCount());
+
+        log.compact(graph);
+        assertEquals(2, log.getRecordCount());
+        assertEquals(1, log.getCompactionCount());
+        assertFalse(Files.exists(path.resolveSibling("ratings.log.compact")));
+
+        // Appends after compacting go to the new file
+        graph.setRating(2L, 1L, (short) 4);
+        log.appendRating(2L, 1L, (short) 4);
+        log.close();
+
+        log = open();
+        assertEquals(3, log.getRecordCount());
+        RatingGraph loaded = load(log);
+        assertEquals(graph.getRating(1L, 2L), loaded.getRating(1L, 2L));
+        assertEquals(4, loaded.getRating(2L, 1L));
+        assertTrue(loaded.isRegistered(3L));
+        assertEquals(graph.getRegisteredCount(), loaded.getRegisteredCount());
+        assertEquals(2, loaded.getRatingCount());
+        log.close();
+    }
+
+    @Test
+    public void compactingWhileAppending() throws Exception
+    {
+        RatingGraph graph = new RatingGraph();
+        RatingLog log = open();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        // Like the rating writer, ratings are in the graph before they're appended
+        Thread writer = new Thread(() -> {
+            try {
+                for(int i = 0; i < 20000; i++)
+                {
+                    long userId = i % 50;
+                    long targetId = (i * 7) % 50;
+                    if(userId == targetId)
+                        continue;
+                    short rating = (short) (1 + i % 5);
+                    graph.setRating(userId, targetId, rating);
+                    log.appendRating(userId, targetId, rating);
+                }
+            } catch(Throwable t) {
+                failure.set(t);
+            }
+        });
+        writer.start();
+        while(writer.isAlive())
+        {
+            log.compact(graph);
+            Thread.sleep(1);
+        }
+        writer.join();
+        assertNull(failure.get());
+        assertTrue(log.getCompactionCount() > 0);
+        log.close();
+
+        RatingLog reopened = open();
+        RatingGraph loaded = load(reopened);
+        assertEquals(0, reopened.getCorruptedCount());
+        assertEquals(graph.getRatingCount(), loaded.getRatingCount());
+        graph.forEachRating((userId, targetId, rating) -> assertEquals(rating, loaded.getRating(userId, targetId)));
+        reopened.close();
+    }
+
+    @Test
+    public void unfinishedCompactionIsDeletedOnOpen() throws IOException
+    {
+        Path compactPath = path.resolveSibling("ratings.log.compact");
+        Files.write(compactPath, new byte[RatingLog.RECORD_SIZE]);
+        open().close();
+        assertFalse(Files.exists(compactPath));
+    }
+
+    @Test
+    public void fullLogMakesRoomByCompacting() throws IOException
+    {
+        RatingGraph graph = new RatingGraph();
+        RatingLog log = open(4);
+        for(int i = 0; i < 4; i++)
+        {
+            graph.setRating(1L, 2L, (short) (i + 1));
+            log.appendRating(1L, 2L, (short) (i + 1));
+        }
+        assertFalse(log.isFull());
+
+        try {
+            log.appendRating(1L, 2L, (short) 5);
+            fail("Appended past the end of a full log");
+        } catch(RatingLog.FullException ignored) {}
+        assertTrue(log.isFull());
+        assertEquals(4, log.getRecordCount());
+
+        log.compact(graph);
+        assertFalse(log.isFull());
+        assertEquals(1, log.getRecordCount());
+        log.appendRating(1L, 2L, (short) 5);
+        assertEquals(2, log.getRecordCount());
+        log.close();
+    }
+
+    @Test
+    public void compactingFailsIfTheGraphDoesNotFit() throws IOException
+    {
+        RatingGraph graph = new RatingGraph();
+        for(long i = 1; i <= 3; i++)
+            graph.setRating(i, i + 1, (short) 3);
+        RatingLog log = open(2);
+        log.appendRegister(1L);
+
+        try {
+            log.compact(graph);
+            fail("Compacted more ratings than fit");
+        } catch(RatingLog.FullException ignored) {}
+        // The log is left as it was
+        assertEquals(1, log.getRecordCount());
+        assertFalse(Files.exists(path.resolveSibling("ratings.log.compact")));
+        log.appendRegister(2L);
+        log.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNoRoom()
+    {
+        new RatingLog(path, 0);
+    }
+
+    private RatingLog open() throws IOException
+    {
+        RatingLog log = new RatingLog(path);
+        log.open();
+        return log;
+    }
+
+    private RatingLog open(long maxRecords) throws IOException
+    {
+        RatingLog log = new RatingLog(path, maxRecords);
+        log.open();
+        return log;
+    }
+
+    private static RatingGraph load(RatingLog log)
+    {
+        RatingGraph graph = new RatingGraph();
+        log.load(graph);
+        graph.recalculateAll();
+        return graph;
+    }
+
+    private void overwrite(long position, byte[] bytes) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE))
+        {
+            channel.write(ByteBuffer.wrap(bytes), position);
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException
+    {
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            channel.read(bytes, position);
+        }
+        bytes.flip();
+        return bytes;
+    }
+}
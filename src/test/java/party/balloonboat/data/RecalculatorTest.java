@@ -0,0 +1,202 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import party.balloonboat.utils.AlgorithmUtils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Kaidan Gustave
+ */
+public class RecalculatorTest
+{
+    private static int databases = 0;
+
+    private ConnectionPool pool;
+
+    @Before
+    public void setUp() throws SQLException
+    {
+        pool = new ConnectionPool("jdbc:h2:mem:recalculator"+(databases++), "sa", "", 2);
+        try (Connection connection = pool.getConnection())
+        {
+            Database.createTables(connection);
+        }
+        new SchemaTable(pool).migrate();
+    }
+
+    @After
+    public void tearDown()
+    {
+        pool.close();
+    }
+
+    @Test
+    public void fixesStaleCalculations() throws SQLException
+    {
+        // 2 is rated 3 and 5, 3 is rated 4, 4 is rated 1, 2, and 5
+        rate(1, 2, 3);
+        rate(3, 2, 5);
+        rate(1, 3, 4);
+        rate(1, 4, 1);
+        rate(2, 4, 2);
+        rate(3, 4, 5);
+        // 2 is stale, 3 is right, 4 isn't registered
+        register(1, 1.0);
+        register(2, 1.0);
+        register(3, expected(4));
+
+        assertEquals(2, new Recalculator(pool, 2).countStale());
+
+        Recalculator.Result result = new Recalculator(pool, 2).run();
+        assertEquals(6, result.getRatingCount());
+        assertEquals(3, result.getRecalculatedCount());
+        assertEquals(2, result.getChangedCount());
+
+        assertEquals(expected(3, 5), getTrueRating(2), 0);
+        assertEquals(expected(4), getTrueRating(3), 0);
+        assertEquals(expected(1, 2, 5), getTrueRating(4), 0);
+        // Nobody rated 1, so they're left alone
+        assertEquals(1.0, getTrueRating(1), 0);
+        assertEquals(0, new Recalculator(pool, 2).countStale());
+    }
+
+    @Test
+    public void bringsUserRatingsUpToDate() throws SQLException
+    {
+        rate(1, 2, 5);
+        rate(3, 2, 4);
+        rate(2, 3, 1);
+        register(1, 1.0);
+        register(2, 1.0);
+        register(3, 1.0);
+
+        Recalculator.Result result = new Recalculator(pool, 1).run();
+        // Every rating was given with a USER_RATING of 1, so only those from users no longer at 1 change
+        int changed = 0;
+        if(CalculationsTable.toEffectiveRating(expected(5, 4)) != 1)
+            changed++;
+        if(CalculationsTable.toEffectiveRating(expected(1)) != 1)
+            changed++;
+        assertEquals(2, result.getRecalculatedCount());
+        assertEquals(changed, result.getUserRatingCount());
+
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet results = statement.executeQuery("SELECT USER_RATING FROM RATINGS WHERE USER_ID = 2"))
+        {
+            assertTrue(results.next());
+            assertEquals(CalculationsTable.toEffectiveRating(expected(5, 4)), results.getShort(1));
+        }
+    }
+
+    @Test
+    public void rerunChangesNothing() throws SQLException
+    {
+        for(long user = 1; user <= 50; user++)
+        {
+            for(long target = 1; target <= 50; target++)
+            {
+                if(user != target && (user * 31 + target * 17) % 7 == 0)
+                    rate(user, target, (short) (1 + (user + target) % 5));
+            }
+            register(user, 1.0);
+        }
+
+        assertTrue(new Recalculator(pool, 4).run().getChangedCount() > 0);
+        Recalculator.Result rerun = new Recalculator(pool, 4).run();
+        assertEquals(0, rerun.getChangedCount());
+        assertEquals(0, rerun.getUserRatingCount());
+        assertEquals(0, new Recalculator(pool, 4).countStale());
+    }
+
+    @Test
+    public void rejectsRatingsOutOfRange() throws SQLException
+    {
+        rate(1, 2, 6);
+        try {
+            new Recalculator(pool, 1).run();
+            fail("A rating of 6 was recalculated");
+        } catch(SQLException ignored) {}
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNoParallelism()
+    {
+        new Recalculator(pool, 0);
+    }
+
+    private void rate(long userId, long targetId, int rating) throws SQLException
+    {
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "MERGE INTO RATINGS (USER_ID, TARGET_ID, USER_RATING, RATING) KEY (USER_ID, TARGET_ID) VALUES (?, ?, 1, ?)"))
+        {
+            statement.setLong(1, userId);
+            statement.setLong(2, targetId);
+            statement.setShort(3, (short) rating);
+            statement.execute();
+        }
+    }
+
+    private void register(long userId, double trueRating) throws SQLException
+    {
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "MERGE INTO CALCULATIONS (USER_ID, TRUE_RATING, EFFECTIVE_RATING) KEY (USER_ID) VALUES (?, ?, ?)"))
+        {
+            statement.setLong(1, userId);
+            statement.setDouble(2, trueRating);
+            statement.setShort(3, CalculationsTable.toEffectiveRating(trueRating));
+            statement.execute();
+        }
+    }
+
+    private double getTrueRating(long userId) throws SQLException
+    {
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "SELECT TRUE_RATING FROM CALCULATIONS WHERE USER_ID = ?"))
+        {
+            statement.setLong(1, userId);
+            try (ResultSet results = statement.executeQuery())
+            {
+                assertTrue(results.next());
+                return results.getDouble(1);
+            }
+        }
+    }
+
+    private static double expected(Integer... ratings)
+    {
+        Set<Short> ratingSet = new HashSet<>();
+        Arrays.stream(ratings).forEach(rating -> ratingSet.add(rating.shortValue()));
+        return AlgorithmUtils.calculateRating(ratingSet);
+    }
+}
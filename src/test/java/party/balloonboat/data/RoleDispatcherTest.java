@@ -0,0 +1,281 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.data;
+
+import net.dv8tion.jda.core.entities.Guild;
+import net.dv8tion.jda.core.entities.Member;
+import net.dv8tion.jda.core.entities.Role;
+import net.dv8tion.jda.core.entities.User;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Kaidan Gustave
+ */
+public class RoleDispatcherTest
+{
+    private final Role[] roles = {role(11), role(12), role(13), role(14), role(15)};
+    private final Set<Role> unmanageable = new HashSet<>();
+    private final Set<Long> aboveSelf = new HashSet<>();
+    private final Guild guild = guild(1);
+    private final RoleDispatcher.RatingRoles links = (g, rating) -> roles[rating - 1];
+
+    private final List<Role> add = new ArrayList<>();
+    private final List<Role> remove = new ArrayList<>();
+
+    @Test
+    public void addsTheRoleForTheRatingAndRemovesTheRest()
+    {
+        Member member = member(guild, 100, roles[0], roles[3]);
+        assertTrue(diff(member, 3));
+        assertEquals(Collections.singletonList(roles[2]), add);
+        assertEquals(Arrays.asList(roles[0], roles[3]), remove);
+    }
+
+    @Test
+    public void nothingToDoWhenAlreadyRight()
+    {
+        Member member = member(guild, 100, roles[2]);
+        assertFalse(diff(member, 3));
+        assertTrue(add.isEmpty());
+        assertTrue(remove.isEmpty());
+    }
+
+    @Test
+    public void relinkingMovesMembersToTheNewRole()
+    {
+        Role old = roles[2];
+        Member member = member(guild, 100, old);
+        roles[2] = role(23);
+
+        // Without knowing it was unlinked, the old role is left alone
+        assertTrue(diff(member, 3));
+        assertEquals(Collections.singletonList(roles[2]), add);
+        assertTrue(remove.isEmpty());
+
+        add.clear();
+        assertTrue(diff(member, 3, old.getIdLong()));
+        assertEquals(Collections.singletonList(roles[2]), add);
+        assertEquals(Collections.singletonList(old), remove);
+    }
+
+    @Test
+    public void unlinkedRoleLinkedAgainIsKept()
+    {
+        // 14 was replaced at 3, then linked at 4, which is the member's rating
+        Member member = member(guild, 100, roles[3]);
+        assertFalse(diff(member, 4, roles[3].getIdLong()));
+
+        // Linked to a rating the member doesn't have, it's removed once
+        member = member(guild, 100, roles[3]);
+        assertTrue(diff(member, 2, roles[3].getIdLong()));
+        assertEquals(Collections.singletonList(roles[3]), remove);
+    }
+
+    @Test
+    public void missingRolesAreSkipped()
+    {
+        // A deleted role can't be found, so it isn't linked to anything
+        roles[2] = null;
+        Member member = member(guild, 100, roles[0]);
+        assertTrue(diff(member, 3));
+        assertTrue(add.isEmpty());
+        assertEquals(Collections.singletonList(roles[0]), remove);
+
+        add.clear();
+        remove.clear();
+        assertFalse(diff(member(guild, 100), 3));
+    }
+
+    @Test
+    public void rolesTheBotCannotManageAreSkipped()
+    {
+        unmanageable.add(roles[2]);
+        unmanageable.add(roles[0]);
+        Role unlinked = role(30);
+        unmanageable.add(unlinked);
+        Member member = member(guild, 100, roles[0], roles[1], unlinked);
+
+        assertTrue(diff(member, 3, unlinked.getIdLong()));
+        assertTrue(add.isEmpty());
+        assertEquals(Collections.singletonList(roles[1]), remove);
+    }
+
+    @Test
+    public void membersAboveTheBotAreSkipped()
+    {
+        aboveSelf.add(100L);
+        assertFalse(diff(member(guild, 100, roles[0]), 3));
+        assertTrue(add.isEmpty());
+        assertTrue(remove.isEmpty());
+    }
+
+    @Test
+    public void resubmittingReplacesTheQueuedRating()
+    {
+        RoleDispatcher dispatcher = new RoleDispatcher(links);
+        Member member = member(guild, 100, roles[0]);
+        dispatcher.submit(member, (short) 2);
+        dispatcher.submit(member, (short) 3, Collections.singleton(30L));
+        assertEquals(1, dispatcher.getQueuedCount());
+        assertEquals(2, dispatcher.getSubmittedCount());
+        assertEquals(1, dispatcher.getCoalescedCount());
+
+        // The member is already right by the time it's sent, so no request is made
+        Member now = member(guild, 100, roles[2]);
+        dispatcher.drain(id -> guild(id, now));
+        assertEquals(0, dispatcher.getQueuedCount());
+        assertEquals(0, dispatcher.getRequestCount());
+    }
+
+    @Test
+    public void drainKeepsToTheGuildLimit()
+    {
+        RoleDispatcher dispatcher = new RoleDispatcher(links);
+        for(long user = 1; user <= 5; user++)
+            dispatcher.submit(member(guild, user), (short) 1);
+
+        List<Long> drained = new ArrayList<>();
+        dispatcher.drain(id -> {
+            drained.add(id);
+            return null;
+        });
+        assertEquals(Arrays.asList(1L, 1L), drained);
+        assertEquals(3, dispatcher.getQueuedCount());
+    }
+
+    @Test
+    public void drainKeepsToTheTotalLimitAndTakesTurns()
+    {
+        RoleDispatcher dispatcher = new RoleDispatcher(links);
+        for(long guildId = 1; guildId <= 30; guildId++)
+        {
+            Guild guild = guild(guildId);
+            for(long user = 1; user <= 3; user++)
+                dispatcher.submit(member(guild, user), (short) 1);
+        }
+        assertEquals(90, dispatcher.getQueuedCount());
+
+        // 20 guilds get two each
+        List<Long> drained = drain(dispatcher);
+        assertEquals(40, drained.size());
+        assertEquals(Arrays.asList(1L, 1L, 2L, 2L), drained.subList(0, 4));
+        assertEquals(Long.valueOf(20), drained.get(39));
+        assertEquals(50, dispatcher.getQueuedCount());
+
+        // Guilds that haven't had a turn go first, then those served have their last
+        drained = drain(dispatcher);
+        assertEquals(40, drained.size());
+        assertEquals(Arrays.asList(21L, 21L), drained.subList(0, 2));
+        assertEquals(Arrays.asList(30L, 30L, 1L, 2L), drained.subList(18, 22));
+        assertEquals(10, dispatcher.getQueuedCount());
+
+        drained = drain(dispatcher);
+        assertEquals(Arrays.asList(21L, 22L, 23L, 24L, 25L, 26L, 27L, 28L, 29L, 30L), drained);
+        assertEquals(0, dispatcher.getQueuedCount());
+        assertTrue(drain(dispatcher).isEmpty());
+    }
+
+    private boolean diff(Member member, int rating, Long... unlinked)
+    {
+        return RoleDispatcher.diff(links, member, (short) rating, new HashSet<>(Arrays.asList(unlinked)), add, remove);
+    }
+
+    private static List<Long> drain(RoleDispatcher dispatcher)
+    {
+        List<Long> drained = new ArrayList<>();
+        dispatcher.drain(id -> {
+            drained.add(id);
+            return null;
+        });
+        return drained;
+    }
+
+    private Role role(long id)
+    {
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getIdLong", args -> id);
+        return fake(Role.class, answers);
+    }
+
+    // The bot can interact with every member and role except those above it
+    private Guild guild(long id, Member... members)
+    {
+        Map<String, Function<Object[], Object>> self = new HashMap<>();
+        self.put("canInteract", args -> args[0] instanceof Role
+                ? !unmanageable.contains(args[0])
+                : !aboveSelf.contains(((Member) args[0]).getUser().getIdLong()));
+        Member selfMember = fake(Member.class, self);
+
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getIdLong", args -> id);
+        answers.put("getSelfMember", args -> selfMember);
+        answers.put("getMemberById", args -> {
+            for(Member member : members)
+            {
+                if(member.getUser().getIdLong() == (long) args[0])
+                    return member;
+            }
+            return null;
+        });
+        return fake(Guild.class, answers);
+    }
+
+    private static Member member(Guild guild, long userId, Role... roles)
+    {
+        Map<String, Function<Object[], Object>> user = new HashMap<>();
+        user.put("getIdLong", args -> userId);
+        User fakeUser = fake(User.class, user);
+
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getGuild", args -> guild);
+        answers.put("getUser", args -> fakeUser);
+        answers.put("getRoles", args -> Arrays.asList(roles));
+        return fake(Member.class, answers);
+    }
+
+    // Only what the dispatcher uses is answered, anything else fails the test
+    private static <T> T fake(Class<T> type, Map<String, Function<Object[], Object>> answers)
+    {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+            switch(method.getName())
+            {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return type.getSimpleName();
+            }
+            Function<Object[], Object> answer = answers.get(method.getName());
+            if(answer == null)
+                throw new UnsupportedOperationException(type.getSimpleName()+"#"+method.getName());
+            return answer.apply(args);
+        }));
+    }
+}
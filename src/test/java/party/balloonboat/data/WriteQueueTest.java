@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.data;
+
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Kaidan Gustave
+ */
+public class WriteQueueTest
+{
+    @Test
+    public void closeFlushesEverythingInOrder() throws SQLException
+    {
+        List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        WriteQueue<Integer> queue = new WriteQueue<>("Test Writer", written::addAll, 16, 4, 5);
+        queue.start();
+        for(int i = 0; i < 100; i++)
+            queue.add(i);
+        queue.close();
+
+        assertEquals(range(0, 100), written);
+        assertEquals(100, queue.getAddedCount());
+        assertEquals(100, queue.getWrittenCount());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void groupsNeverExceedTheBatchSize() throws SQLException
+    {
+        List<Integer> sizes = Collections.synchronizedList(new ArrayList<>());
+        WriteQueue<Integer> queue = new WriteQueue<>("Test Writer", batch -> sizes.add(batch.size()), 64, 8, 20);
+        queue.start();
+        for(int i = 0; i < 200; i++)
+            queue.add(i);
+        queue.close();
+
+        int total = 0;
+        for(int size : sizes)
+        {
+            assertTrue(size >= 1 && size <= 8);
+            total += size;
+        }
+        assertEquals(200, total);
+        assertEquals(sizes.size(), queue.getFlushCount());
+    }
+
+    @Test
+    public void addingBlocksWhileFull() throws Exception
+    {
+        CountDownLatch release = new CountDownLatch(1);
+        WriteQueue<Integer> queue = new WriteQueue<>("Test Writer", batch -> await(release), 2, 1, 0);
+        queue.start();
+
+        // At most one is held by the writer and two fill the queue, so the last has to wait
+        Thread adder = new Thread(() -> {
+            try {
+                for(int i = 0; i < 4; i++)
+                    queue.add(i);
+            } catch(SQLException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        adder.start();
+        adder.join(500);
+        assertTrue(adder.isAlive());
+
+        release.countDown();
+        adder.join(5000);
+        assertFalse(adder.isAlive());
+        queue.close();
+        assertTrue(queue.getBlockedCount() >= 1);
+        assertEquals(4, queue.getWrittenCount());
+    }
+
+    @Test
+    public void addingAfterCloseFlushesImmediately() throws SQLException
+    {
+        List<Integer> written = new ArrayList<>();
+        WriteQueue<Integer> queue = new WriteQueue<>("Test Writer", written::addAll, 4, 4, 0);
+        queue.start();
+        queue.close();
+        queue.add(7);
+
+        assertEquals(Collections.singletonList(7), written);
+    }
+
+    @Test
+    public void failedGroupsAreRetried() throws SQLException
+    {
+        AtomicInteger attempts = new AtomicInteger();
+        List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        WriteQueue<Integer> queue = new WriteQueue<>("Test Writer", batch -> {
+            if(attempts.incrementAndGet() <= 2)
+                throw new SQLException("Not yet");
+            written.addAll(batch);
+        }, 16, 16, 0);
+        queue.add(1);
+        queue.add(2);
+        queue.start();
+        queue.close();
+
+        assertEquals(range(1, 3), written);
+        assertEquals(2, queue.getFailureCount());
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    // A write that can never succeed is dropped on its own, without holding up the rest
+    @Test
+    public void writesThatNeverFlushAreDroppedAlone() throws SQLException
+    {
+        List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        WriteQueue<Integer> queue = new WriteQueue<>("Test Writer", batch -> {
+            if(batch.contains(5))
+                throw new SQLException("Never");
+            written.addAll(batch);
+        }, 16, 8, 0);
+        for(int i = 0; i < 8; i++)
+            queue.add(i);
+        queue.start();
+        queue.close();
+
+        List<Integer> expected = range(0, 8);
+        expected.remove(Integer.valueOf(5));
+        assertEquals(expected, written);
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(7, queue.getWrittenCount());
+    }
+
+    @Test
+    public void nonTransientFailuresAreNotRetried() throws SQLException
+    {
+        AtomicInteger attempts = new AtomicInteger();
+        WriteQueue<Integer> queue = new WriteQueue<>("Test Writer", batch -> {
+            attempts.incrementAndGet();
+            throw new SQLNonTransientException("Never");
+        }, 16, 16, 0);
+        queue.add(1);
+        queue.start();
+        queue.close();
+
+        assertEquals(1, attempts.get());
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    // Closing on an interrupted thread gives up on retrying, but keeps the interrupt
+    @Test
+    public void interruptedCloseGivesUpAndKeepsTheInterrupt() throws SQLException
+    {
+        WriteQueue<Integer> queue = new WriteQueue<>("Test Writer", batch -> {
+            throw new SQLException("Down");
+        }, 16, 16, 0);
+        queue.add(1);
+
+        Thread.currentThread().interrupt();
+        long start = System.nanoTime();
+        queue.close();
+        boolean interrupted = Thread.interrupted();
+
+        assertTrue(interrupted);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    private static void await(CountDownLatch latch)
+    {
+        try {
+            latch.await();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static List<Integer> range(int from, int to)
+    {
+        List<Integer> list = new ArrayList<>();
+        for(int i = from; i < to; i++)
+            list.add(i);
+        return list;
+    }
+}
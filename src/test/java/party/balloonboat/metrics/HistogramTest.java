@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.metrics;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Kaidan Gustave
+ */
+public class HistogramTest
+{
+    @Test
+    public void bucketsAreExactUpToEight()
+    {
+        for(long value = 0; value < 8; value++)
+            assertEquals(value, Histogram.highestOf(Histogram.indexOf(value)));
+    }
+
+    @Test
+    public void bucketsAreWithinAnEighthAboveEight()
+    {
+        Random random = new Random(5);
+        for(int i = 0; i < 100000; i++)
+        {
+            long value = 8 + (random.nextLong() >>> (1 + random.nextInt(63)));
+            long highest = Histogram.highestOf(Histogram.indexOf(value));
+            assertTrue(value+" went in a bucket up to "+highest, highest >= value);
+            assertTrue(value+" went in a bucket up to "+highest, highest - value <= value / 8);
+        }
+    }
+
+    @Test
+    public void bucketsAscendWithValues()
+    {
+        int last = -1;
+        for(long value = 0; value < 100000; value++)
+        {
+            int index = Histogram.indexOf(value);
+            assertTrue(index == last || index == last + 1);
+            last = index;
+        }
+        assertEquals(Long.MAX_VALUE, Histogram.highestOf(Histogram.indexOf(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void emptyHistogramIsAllZeros()
+    {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getMean(), 0);
+        assertEquals(0, histogram.getPercentile(0.99));
+    }
+
+    @Test
+    public void negativeValuesCountAsZero()
+    {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getSum());
+        assertEquals(0, histogram.getPercentile(1));
+    }
+
+    // Estimates are never below the real percentile, never far above it, and never past the max
+    @Test
+    public void percentilesAreCloseAboveTheRealOnes()
+    {
+        Histogram histogram = new Histogram();
+        long[] values = new long[10000];
+        Random random = new Random(6);
+        for(int i = 0; i < values.length; i++)
+        {
+            values[i] = (long) Math.abs(random.nextGaussian() * 1000000);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        assertEquals(values.length, histogram.getCount());
+        assertEquals(values[values.length - 1], histogram.getMax());
+        double[] fractions = {0.5, 0.9, 0.99, 0.999, 1};
+        long[] estimates = new long[fractions.length];
+        histogram.getPercentiles(fractions, estimates);
+        for(int i = 0; i < fractions.length; i++)
+        {
+            long real = values[(int) Math.ceil(fractions[i] * values.length) - 1];
+            long estimate = histogram.getPercentile(fractions[i]);
+            assertEquals(estimate, estimates[i]);
+            assertTrue(estimate >= real);
+            assertTrue(estimate <= real + real / 8);
+            assertTrue(estimate <= histogram.getMax());
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.metrics;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Kaidan Gustave
+ */
+public class MetricRegistryTest
+{
+    @Test
+    public void sameNameIsTheSameMetric()
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        assertSame(metrics.timer("a"), metrics.timer("a"));
+        assertSame(metrics.histogram("a"), metrics.histogram("a"));
+        assertSame(metrics.counter("a"), metrics.counter("a"));
+        assertNotSame(metrics.timer("a"), metrics.timer("b"));
+    }
+
+    @Test
+    public void countersIncludeFunctionsSortedByName()
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        metrics.counter("b").add(2);
+        metrics.counter("a", () -> 5);
+        metrics.counter("c").increment();
+
+        assertEquals(Arrays.asList("a", "b", "c"), new ArrayList<>(metrics.getCounters().keySet()));
+        assertEquals(5, metrics.getCounters().get("a").getAsLong());
+        assertEquals(2, metrics.getCounters().get("b").getAsLong());
+        assertEquals(1, metrics.getCounters().get("c").getAsLong());
+    }
+
+    @Test
+    public void gaugesAreReadWhenAskedFor()
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        long[] size = {1};
+        metrics.gauge("queue", () -> size[0]);
+        size[0] = 7;
+        assertEquals(7, metrics.getGauges().get("queue").getAsLong());
+
+        metrics.gauge("queue", () -> 9);
+        assertEquals(9, metrics.getGauges().get("queue").getAsLong());
+    }
+
+    @Test
+    public void timersRecordElapsedNanos()
+    {
+        Timer timer = new Timer();
+        long start = System.nanoTime() - 5000000;
+        timer.recordSince(start);
+        assertEquals(1, timer.getCount());
+        assertTrue(timer.getMax() >= 5000000);
+    }
+
+    @Test
+    public void reportHasALineForEveryMetric()
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        metrics.timer("database.getUserRating").record(2000000);
+        metrics.histogram("batch.size").record(4);
+        metrics.counter("writes.written").add(3);
+        metrics.gauge("writes.queued", () -> 1);
+
+        String report = metrics.getReport();
+        assertEquals(4, report.split("\n").length);
+        assertTrue(report.contains("database.getUserRating count=1"));
+        assertTrue(report.contains("batch.size count=1"));
+        assertTrue(report.contains("writes.written 3\n"));
+        assertTrue(report.contains("writes.queued 1\n"));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 John Grosh & Kaidan Gustave
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package party.balloonboat.utils;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Kaidan Gustave
+ */
+public class LongIntMapTest
+{
+    private static final int MISSING = -1;
+
+    @Test
+    public void getsWhatWasPut()
+    {
+        LongIntMap map = new LongIntMap(MISSING);
+        assertEquals(MISSING, map.put(42L, 7));
+        assertEquals(7, map.get(42L));
+        assertTrue(map.containsKey(42L));
+        assertEquals(1, map.size());
+
+        assertEquals(7, map.put(42L, 8));
+        assertEquals(8, map.get(42L));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void missingKeysGetTheMissingValue()
+    {
+        LongIntMap map = new LongIntMap(MISSING);
+        assertEquals(MISSING, map.get(1L));
+        assertFalse(map.containsKey(1L));
+        assertEquals(MISSING, map.remove(1L));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void zeroIsAKeyLikeAnyOther()
+    {
+        LongIntMap map = new LongIntMap(MISSING);
+        assertFalse(map.containsKey(0L));
+        assertEquals(MISSING, map.put(0L, 3));
+        assertEquals(3, map.get(0L));
+        assertEquals(1, map.size());
+        assertEquals(3, map.remove(0L));
+        assertFalse(map.containsKey(0L));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void growsPastItsExpectedSize()
+    {
+        LongIntMap map = new LongIntMap(4, MISSING);
+        int capacity = map.getCapacity();
+        for(int i = 1; i <= 1000; i++)
+            map.put(i * 31L, i);
+        assertTrue(map.getCapacity() > capacity);
+        assertEquals(1000, map.size());
+        for(int i = 1; i <= 1000; i++)
+            assertEquals(i, map.get(i * 31L));
+    }
+
+    // Keys that land in the same slot must all stay reachable after some are removed
+    @Test
+    public void removingKeepsCollidingKeysReachable()
+    {
+        LongIntMap map = new LongIntMap(MISSING);
+        Map<Long, Integer> expected = new HashMap<>();
+        Random random = new Random(1);
+        for(int i = 0; i < 5000; i++)
+        {
+            long key = random.nextInt(2000) - 1000;
+            if(random.nextBoolean())
+            {
+                int value = random.nextInt(100);
+                assertEquals(expected.getOrDefault(key, MISSING).intValue(), map.put(key, value));
+                expected.put(key, value);
+            }
+            else
+            {
+                Integer removed = expected.remove(key);
+                assertEquals(removed == null ? MISSING : removed, map.remove(key));
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        for(long key = -1000; key < 1000; key++)
+            assertEquals(expected.getOrDefault(key, MISSING).intValue(), map.get(key));
+
+        Map<Long, Integer> visited = new HashMap<>();
+        map.forEach(visited::put);
+        assertEquals(expected, visited);
+    }
+
+    @Test
+    public void clearRemovesEverything()
+    {
+        LongIntMap map = new LongIntMap(MISSING);
+        map.put(0L, 1);
+        map.put(5L, 2);
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertFalse(map.containsKey(0L));
+        assertFalse(map.containsKey(5L));
+        map.put(5L, 3);
+        assertEquals(3, map.get(5L));
+    }
+}